@@ -0,0 +1,54 @@
+package me.chaopeng.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 用JDK21虚拟线程执行的 OrderedThreadPoolExecutor
+ * <p/>
+ * <ul>
+ * <li>每个活跃的key一个mailbox，每批任务在一个新的虚拟线程中执行，同key的任务仍然按顺序执行</li>
+ * <li>任务中阻塞（JDBC、RPC）只挂起虚拟线程，不占住载体线程，不影响其他key</li>
+ * <li>任务中不要在synchronized内阻塞，JDK21下会占住载体线程</li>
+ * <li>单独打包在 chaosutils-java21.jar 中（gradle java21Jar -Pjdk21.home=JDK21的目录），需要JDK21运行</li>
+ * </ul>
+ *
+ * @author chao
+ * @see OrderedThreadPoolExecutor.Builder#scheduler(Executor)
+ */
+public final class VirtualThreadOrderedExecutors {
+
+	/**
+	 * 每次提交一个新的虚拟线程，没有需要关闭的资源
+	 */
+	private static final Executor VIRTUAL_THREAD_PER_RUN = new Executor() {
+		private final ThreadFactory factory = Thread.ofVirtual().name("ordered-virtual-", 0).factory();
+
+		@Override
+		public void execute(Runnable command) {
+			factory.newThread(command).start();
+		}
+	};
+
+	private VirtualThreadOrderedExecutors() {
+	}
+
+	/**
+	 * @return 默认配置的虚拟线程 OrderedThreadPoolExecutor
+	 */
+	public static OrderedThreadPoolExecutor newOrderedExecutor() {
+		return builder().build();
+	}
+
+	/**
+	 * 已经设置了 perKeyMailbox 和虚拟线程的 scheduler，可以继续设置排队上限、batchLimit 等
+	 *
+	 * @return OrderedThreadPoolExecutor.Builder
+	 */
+	public static OrderedThreadPoolExecutor.Builder builder() {
+		return OrderedThreadPoolExecutor.builder()
+				.corePoolSize(1)
+				.perKeyMailbox(true)
+				.scheduler(VIRTUAL_THREAD_PER_RUN);
+	}
+}
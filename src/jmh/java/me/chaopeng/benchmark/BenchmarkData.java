@@ -0,0 +1,70 @@
+package me.chaopeng.benchmark;
+
+import me.chaopeng.utils.SortedSet;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 基准测试的数据
+ * <p/>
+ * key 为 0 ~ size-1，score 均匀分布在 0 ~ size*SCORE_FACTOR-1，
+ * 所以宽度为 RANGE*SCORE_FACTOR 的分数区间平均有 RANGE 个元素
+ *
+ * @author chao
+ */
+public final class BenchmarkData {
+
+	/**
+	 * 范围查询的长度
+	 */
+	public static final int RANGE = 100;
+
+	public static final int SCORE_FACTOR = 4;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * 生成 [scores, keys]
+	 */
+	public static long[][] generate(int size) {
+		Rnd rnd = new Rnd();
+		long[] scores = new long[size];
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			scores[i] = rnd.nextInt(size * SCORE_FACTOR);
+			keys[i] = i;
+		}
+		return new long[][]{scores, keys};
+	}
+
+	public static SortedSet newSortedSet(int size) {
+		long[][] data = generate(size);
+		SortedSet set = new SortedSet();
+		set.addAll(data[0], data[1]);
+		return set;
+	}
+
+	/**
+	 * 每个线程一个的 xorshift 随机数，不产生竞争和分配
+	 */
+	@State(Scope.Thread)
+	public static class Rnd {
+		private long seed = System.nanoTime() | 1;
+
+		public long nextLong() {
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			return seed;
+		}
+
+		/**
+		 * @return [0, bound)
+		 */
+		public int nextInt(int bound) {
+			return (int) ((nextLong() >>> 1) % bound);
+		}
+	}
+}
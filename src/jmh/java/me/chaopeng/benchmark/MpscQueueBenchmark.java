@@ -0,0 +1,150 @@
+package me.chaopeng.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import me.chaopeng.utils.MpscLinkedQueue;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * OrderedThreadPoolExecutor 的任务队列：MpscLinkedQueue 与 ConcurrentLinkedQueue
+ * <p/>
+ * gradle jmh -Pjmh.include=MpscQueueBenchmark
+ * <p/>
+ * 每组 3 个生产者 offer + 1 个消费者 poll，生产者数可以用 -tg 调整。
+ * 看消费者的 polled（真正取到的元素数），以及 -prof gc 的 gc.alloc.rate.norm：
+ * ConcurrentLinkedQueue 每个元素多分配一个节点
+ *
+ * @author chao
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Group)
+public class MpscQueueBenchmark {
+
+	/**
+	 * 每个生产者最多领先消费者的元素数，消费者跟不上时生产者暂停放入，避免队列无限增长
+	 */
+	private static final long MAX_PENDING = 1 << 14;
+
+	private static final int PRODUCERS = 3;
+
+	/**
+	 * consumed 中每个生产者占一个缓存行
+	 */
+	private static final int STRIDE = 16;
+
+	static final class Task extends MpscLinkedQueue.Node {
+		final int producer;
+
+		Task(int producer) {
+			this.producer = producer;
+		}
+	}
+
+	@Param({"mpsc", "clq"})
+	String queue;
+
+	private MpscLinkedQueue<Task> mpsc;
+	private ConcurrentLinkedQueue<Task> clq;
+
+	private final AtomicInteger producers = new AtomicInteger();
+
+	/**
+	 * 每个生产者被取出的元素数，消费者每取出 1024 个更新一次
+	 */
+	private AtomicLongArray consumed;
+
+	@State(Scope.Thread)
+	public static class Producer {
+		int id = -1;
+		long offered;
+
+		@Setup(Level.Iteration)
+		public void setup(MpscQueueBenchmark benchmark) {
+			if (id < 0) {
+				// -tg 指定更多生产者时共用计数，只影响限流的精度
+				id = benchmark.producers.getAndIncrement() % PRODUCERS;
+			}
+			offered = 0;
+		}
+	}
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Consumer {
+		public long polled;
+		public long empty;
+
+		final long[] consumed = new long[PRODUCERS];
+
+		@Setup(Level.Iteration)
+		public void setup() {
+			polled = 0;
+			empty = 0;
+			Arrays.fill(consumed, 0);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		mpsc = "mpsc".equals(queue) ? new MpscLinkedQueue<Task>() : null;
+		clq = "clq".equals(queue) ? new ConcurrentLinkedQueue<Task>() : null;
+		consumed = new AtomicLongArray(PRODUCERS * STRIDE);
+	}
+
+	@Benchmark
+	@Group("queue")
+	@GroupThreads(PRODUCERS)
+	public boolean offer(Producer producer) {
+		if (producer.offered - consumed.get(producer.id * STRIDE) > MAX_PENDING) {
+			return false;
+		}
+		Task task = new Task(producer.id);
+		if (mpsc != null) {
+			mpsc.offer(task);
+		} else {
+			clq.offer(task);
+		}
+		producer.offered++;
+		return true;
+	}
+
+	@Benchmark
+	@Group("queue")
+	@GroupThreads(1)
+	public Task poll(Consumer consumer) {
+		Task task = mpsc != null ? mpsc.poll() : clq.poll();
+		if (task == null) {
+			consumer.empty++;
+			return null;
+		}
+		consumer.polled++;
+		long n = ++consumer.consumed[task.producer];
+		if ((n & 1023) == 0) {
+			consumed.lazySet(task.producer * STRIDE, n);
+		}
+		return task;
+	}
+}
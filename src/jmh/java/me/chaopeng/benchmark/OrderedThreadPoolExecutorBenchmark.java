@@ -0,0 +1,143 @@
+package me.chaopeng.benchmark;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.chaopeng.utils.OrderedThreadPoolExecutor;
+import me.chaopeng.utils.OrderedThreadPoolExecutor.OrderedRunable;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * OrderedThreadPoolExecutor 的 affinity
+ * <p/>
+ * gradle jmh -Pjmh.include=OrderedThreadPoolExecutorBenchmark
+ * <p/>
+ * 每次提交 keys 个key、每个key burst 个任务并等待全部完成。每个key有 stateKB 的状态，每个任务读写一遍，
+ * 同一个key的任务在同一个线程上执行时状态还在该核的缓存里。
+ * migrations 为同一个key相邻两个任务换了线程的次数，需要多核才能看出吞吐的差别。
+ * -p metricsSampleRate=0,1,64 比较统计的开销
+ *
+ * @author chao
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Benchmark)
+public class OrderedThreadPoolExecutorBenchmark {
+
+	@Param({"false", "true"})
+	boolean affinity;
+
+	/**
+	 * 0为CPU核数
+	 */
+	@Param({"0"})
+	int threads;
+
+	@Param({"64"})
+	int keys;
+
+	@Param({"64"})
+	int burst;
+
+	@Param({"32"})
+	int stateKB;
+
+	@Param({"0"})
+	int metricsSampleRate;
+
+	private OrderedThreadPoolExecutor pool;
+	private KeyState[] states;
+	private final AtomicLong migrations = new AtomicLong();
+
+	static final class KeyState {
+		final long[] data;
+		Thread lastThread;
+
+		KeyState(int longs) {
+			this.data = new long[longs];
+		}
+	}
+
+	static final class Task extends OrderedRunable {
+		private final KeyState state;
+		private final AtomicLong migrations;
+		private final CountDownLatch done;
+
+		Task(Long key, KeyState state, AtomicLong migrations, CountDownLatch done) {
+			super(key);
+			this.state = state;
+			this.migrations = migrations;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			Thread current = Thread.currentThread();
+			if (state.lastThread != current) {
+				state.lastThread = current;
+				migrations.incrementAndGet();
+			}
+			long[] data = state.data;
+			for (int i = 0; i < data.length; i++) {
+				data[i] += i;
+			}
+			done.countDown();
+		}
+	}
+
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Counters {
+		public long migrations;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() {
+		pool = OrderedThreadPoolExecutor.builder()
+				.corePoolSize(threads > 0 ? threads : Runtime.getRuntime().availableProcessors())
+				.numOfExecutor(keys)
+				.affinity(affinity)
+				.metricsSampleRate(metricsSampleRate)
+				.build();
+		states = new KeyState[keys];
+		for (int i = 0; i < keys; i++) {
+			states[i] = new KeyState(stateKB * 1024 / 8);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public void burst(Counters counters) throws InterruptedException {
+		CountDownLatch done = new CountDownLatch(keys * burst);
+		long before = migrations.get();
+		for (int i = 0; i < burst; i++) {
+			for (int k = 0; k < keys; k++) {
+				pool.execute(new Task((long) k, states[k], migrations, done));
+			}
+		}
+		done.await();
+		counters.migrations += migrations.get() - before;
+	}
+}
@@ -0,0 +1,62 @@
+package me.chaopeng.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import me.chaopeng.benchmark.BenchmarkData.Rnd;
+import me.chaopeng.utils.ShardedSortedSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ShardedSortedSet 的写吞吐和排名查询随分片数的变化，shards=1 相当于单个 SortedSet
+ * <p/>
+ * gradle jmh -Pjmh.include=ShardedSortedSetBenchmark
+ *
+ * @author chao
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@Threads(8)
+@State(Scope.Benchmark)
+public class ShardedSortedSetBenchmark {
+
+	@Param({"1000000"})
+	int size;
+
+	@Param({"1", "4", "16"})
+	int shards;
+
+	ShardedSortedSet set;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		long[][] data = BenchmarkData.generate(size);
+		set = new ShardedSortedSet(shards);
+		set.addAll(data[0], data[1]);
+	}
+
+	@Benchmark
+	public void update(Rnd rnd) {
+		set.add(rnd.nextInt(size * BenchmarkData.SCORE_FACTOR), rnd.nextInt(size));
+	}
+
+	@Benchmark
+	public int rank(Rnd rnd) {
+		return set.rank(rnd.nextInt(size), true);
+	}
+}
@@ -0,0 +1,138 @@
+package me.chaopeng.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import me.chaopeng.benchmark.BenchmarkData.Rnd;
+import me.chaopeng.utils.SortedSet;
+import me.chaopeng.utils.SortedSet.RecordObject;
+import me.chaopeng.utils.SortedSet.RecordVisitor;
+import me.chaopeng.utils.TopKView;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SortedSet 单线程基准
+ * <p/>
+ * gradle jmh -Pjmh.include=SortedSetBenchmark
+ * <p/>
+ * 默认带 -prof gc，gc.alloc.rate.norm 为每次操作分配的字节数
+ * <ul>
+ * <li>update：已有的 key 换一个分数，即 delete + insert</li>
+ * <li>addRemove：加入一个新 key 再删除，集合大小不变</li>
+ * <li>rank/getByRank：随机的 key/排名</li>
+ * <li>rangeByRank/rangeByScore/forEachByRank：随机位置取 RANGE 个，从大到小</li>
+ * <li>topPage/topKView：前 RANGE 名，分别用 getRangeByRank 和 TopKView</li>
+ * </ul>
+ *
+ * @author chao
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class SortedSetBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	int size;
+
+	SortedSet set;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		set = BenchmarkData.newSortedSet(size);
+	}
+
+	@Benchmark
+	public void update(Rnd rnd) {
+		set.add(rnd.nextInt(size * BenchmarkData.SCORE_FACTOR), rnd.nextInt(size));
+	}
+
+	@Benchmark
+	public void addRemove(Rnd rnd) {
+		long key = -1 - rnd.nextInt(size);
+		set.add(rnd.nextInt(size * BenchmarkData.SCORE_FACTOR), key);
+		set.remove(key);
+	}
+
+	@Benchmark
+	public int rank(Rnd rnd) {
+		return set.rank(rnd.nextInt(size), true);
+	}
+
+	@Benchmark
+	public RecordObject getByRank(Rnd rnd) {
+		return set.getByRank(rnd.nextInt(size) + 1, true);
+	}
+
+	@Benchmark
+	public List<RecordObject> rangeByRank(Rnd rnd) {
+		int begin = rnd.nextInt(size - BenchmarkData.RANGE) + 1;
+		return set.getRangeByRank(begin, begin + BenchmarkData.RANGE - 1, true);
+	}
+
+	@Benchmark
+	public List<RecordObject> rangeByScore(Rnd rnd) {
+		int width = BenchmarkData.RANGE * BenchmarkData.SCORE_FACTOR;
+		int begin = rnd.nextInt(size * BenchmarkData.SCORE_FACTOR - width);
+		return set.getRangeByScore(begin, begin + width - 1, true);
+	}
+
+	@Benchmark
+	public List<RecordObject> topPage() {
+		return set.getRangeByRank(1, BenchmarkData.RANGE, true);
+	}
+
+	@Benchmark
+	public TopKView.Snapshot topKView(TopKState state) {
+		return state.topK.get();
+	}
+
+	@Benchmark
+	public long forEachByRank(Rnd rnd, SumVisitor visitor) {
+		int begin = rnd.nextInt(size - BenchmarkData.RANGE) + 1;
+		visitor.sum = 0;
+		set.forEachByRank(begin, begin + BenchmarkData.RANGE - 1, true, visitor);
+		return visitor.sum;
+	}
+
+	/**
+	 * 只有 topKView 用到，其它基准的 set 不开 TopKView，写操作不带发布的开销
+	 */
+	@State(Scope.Benchmark)
+	public static class TopKState {
+		TopKView topK;
+
+		@Setup(Level.Trial)
+		public void setup(SortedSetBenchmark benchmark) {
+			topK = benchmark.set.enableTopK(BenchmarkData.RANGE);
+		}
+	}
+
+	/**
+	 * 每个线程复用一个 visitor
+	 */
+	@State(Scope.Thread)
+	public static class SumVisitor implements RecordVisitor {
+		long sum;
+
+		@Override
+		public boolean visit(int rank, long key, long score) {
+			sum += key ^ score;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package me.chaopeng.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import me.chaopeng.benchmark.BenchmarkData.Rnd;
+import me.chaopeng.utils.ConcurrentSortedSet;
+import me.chaopeng.utils.SortedSet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 多线程竞争下的 SortedSet 与 ConcurrentSortedSet
+ * <p/>
+ * gradle jmh -Pjmh.include=SortedSetContendedBenchmark
+ * <p/>
+ * 每组 3 个线程读(rank) + 1 个线程写(update)，读线程数可以用 -tg 调整，例如 -tg 7,1 观察读的扩展性
+ *
+ * @author chao
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SortedSetContendedBenchmark {
+
+	@State(Scope.Group)
+	public static class SyncState {
+		@Param({"10000", "1000000"})
+		int size;
+
+		SortedSet set;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			set = BenchmarkData.newSortedSet(size);
+		}
+	}
+
+	@State(Scope.Group)
+	public static class ConcurrentState {
+		@Param({"10000", "1000000"})
+		int size;
+
+		ConcurrentSortedSet set;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			long[][] data = BenchmarkData.generate(size);
+			set = new ConcurrentSortedSet();
+			set.addAll(data[0], data[1]);
+		}
+	}
+
+	@Benchmark
+	@Group("sortedSet")
+	@GroupThreads(3)
+	public int sortedSetRank(SyncState state, Rnd rnd) {
+		return state.set.rank(rnd.nextInt(state.size), true);
+	}
+
+	@Benchmark
+	@Group("sortedSet")
+	@GroupThreads(1)
+	public void sortedSetUpdate(SyncState state, Rnd rnd) {
+		state.set.add(rnd.nextInt(state.size * BenchmarkData.SCORE_FACTOR), rnd.nextInt(state.size));
+	}
+
+	@Benchmark
+	@Group("concurrentSortedSet")
+	@GroupThreads(3)
+	public int concurrentRank(ConcurrentState state, Rnd rnd) {
+		return state.set.rank(rnd.nextInt(state.size), true);
+	}
+
+	@Benchmark
+	@Group("concurrentSortedSet")
+	@GroupThreads(1)
+	public void concurrentUpdate(ConcurrentState state, Rnd rnd) {
+		state.set.add(rnd.nextInt(state.size * BenchmarkData.SCORE_FACTOR), rnd.nextInt(state.size));
+	}
+}
@@ -0,0 +1,359 @@
+package me.chaopeng.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.chaopeng.utils.SortedSet.RangeSpec;
+import me.chaopeng.utils.SortedSet.Removal;
+import me.chaopeng.utils.SortedSet.SkipList;
+import me.chaopeng.utils.SortedSet.SkipListNode;
+import me.chaopeng.utils.SortedSet.TiebreakNode;
+import me.chaopeng.utils.SortedSet.TiebreakSkipList;
+
+/**
+ * CompositeSortedSet - 分数由 (score, tiebreak) 两个 long 组成的 SortedSet
+ * <p/>
+ * 排序为 (score, tiebreak, key) 升序，score 相同时按 tiebreak 决定先后，不需要把两个值压到一个 long 里。
+ * 跳表是 SortedSet.TiebreakSkipList：节点多带一个 tiebreak，只重写了按 (score, tiebreak, key) 比较的查找，
+ * 链接、删除、按排名和分数范围的查找都沿用 SortedSet.SkipList；没有 Comparator，也没有装箱。
+ * <p/>
+ * 例如"分数高的在前，分数相同时先达到的在前"，按 reverse=true 取排名时：
+ * <pre>
+ * set.add(score, ~timestamp, playerId); // ~timestamp：时间越早 tiebreak 越大，越靠前
+ * </pre>
+ * 分数范围查询（getRangeByScore/removeByScore）只看 score。
+ * <p/>
+ * dict 为两个 LongLongHashMap（key -> score, key -> tiebreak）。
+ *
+ * @author chao
+ * @see SortedSet
+ */
+public final class CompositeSortedSet {
+
+	private static final int ZSKIPLIST_MAXLEVEL = 32;
+	private static final float ZSKIPLIST_P = 0.25f;
+
+	public static final class RecordObject {
+		private final long score;
+		private final long tiebreak;
+		private final long key;
+		private int rank;
+
+		public RecordObject(long score, long tiebreak, long key, int rank) {
+			this.score = score;
+			this.tiebreak = tiebreak;
+			this.key = key;
+			this.rank = rank;
+		}
+
+		public long getScore() {
+			return score;
+		}
+
+		public long getTiebreak() {
+			return tiebreak;
+		}
+
+		public long getKey() {
+			return key;
+		}
+
+		public int getRank() {
+			return rank;
+		}
+
+		public void setRank(int rank) {
+			this.rank = rank;
+		}
+
+		@Override
+		public String toString() {
+			return "RecordObject{" +
+					"score=" + score +
+					", tiebreak=" + tiebreak +
+					", key=" + key +
+					", rank=" + rank +
+					'}';
+		}
+	}
+
+	/**
+	 * 遍历回调，不产生 RecordObject
+	 * <p/>
+	 * 回调在 CompositeSortedSet 的锁内执行，不能在回调里修改这个 CompositeSortedSet
+	 */
+	public interface RecordVisitor {
+		/**
+		 * @param rank 按遍历方向的排名，reverse=true 时为从大到小的排名
+		 * @return true=继续 false=停止遍历
+		 */
+		boolean visit(int rank, long key, long score, long tiebreak);
+	}
+
+	private TiebreakSkipList list = newSkipList();
+
+	private final LongLongHashMap scores = new LongLongHashMap();
+	private final LongLongHashMap tiebreaks = new LongLongHashMap();
+
+	/**
+	 * 范围删除时同步两个 dict
+	 */
+	private final Removal removal = new Removal() {
+		@Override
+		public void removed(SkipListNode x) {
+			scores.remove(x.obj);
+			tiebreaks.remove(x.obj);
+		}
+	};
+
+	private static TiebreakSkipList newSkipList() {
+		return new TiebreakSkipList(ZSKIPLIST_MAXLEVEL, ZSKIPLIST_P, System.nanoTime());
+	}
+
+	private static long tiebreak(SkipListNode x) {
+		return ((TiebreakNode) x).tiebreak;
+	}
+
+	private static RecordObject toRecordObject(SkipListNode x, int rank) {
+		return new RecordObject(x.score, tiebreak(x), x.obj, rank);
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * sorted set API
+	 *----------------------------------------------------------------------------*/
+
+	public void clear() {
+		synchronized (this) {
+			this.list = newSkipList();
+			this.scores.clear();
+			this.tiebreaks.clear();
+		}
+	}
+
+	/**
+	 * 添加，会自动合并重复的key
+	 */
+	public void add(long score, long tiebreak, long key) {
+		synchronized (this) {
+			if (this.scores.containsKey(key)) {
+				long oldScore = this.scores.get(key, 0L);
+				long oldTiebreak = this.tiebreaks.get(key, 0L);
+				if (oldScore == score && oldTiebreak == tiebreak) {
+					return;
+				}
+				this.list.delete(oldScore, oldTiebreak, key);
+			}
+			this.scores.put(key, score);
+			this.tiebreaks.put(key, tiebreak);
+			this.list.insert(score, tiebreak, key);
+		}
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key，同一批里重复的key以最后一个为准
+	 */
+	public void addAll(long[] scores, long[] tiebreaks, long[] keys) {
+		if (scores.length != keys.length || tiebreaks.length != keys.length) {
+			throw new IllegalArgumentException("scores, tiebreaks and keys must have the same length");
+		}
+		synchronized (this) {
+			for (int i = 0; i < keys.length; i++) {
+				this.add(scores[i], tiebreaks[i], keys[i]);
+			}
+		}
+	}
+
+	public void remove(long key) {
+		synchronized (this) {
+			if (this.scores.containsKey(key)) {
+				this.list.delete(this.scores.get(key, 0L), this.tiebreaks.get(key, 0L), key);
+				this.scores.remove(key);
+				this.tiebreaks.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * 通过分数范围删除，只看 score
+	 */
+	public void removeByScore(RangeSpec range) {
+		synchronized (this) {
+			this.list.deleteRangeByScore(range, this.removal);
+		}
+	}
+
+	/**
+	 * 通过排名删除
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public void removeByRank(int start, int end, boolean reverse) {
+		synchronized (this) {
+			if (reverse) {
+				int size = this.list.length;
+				this.list.deleteRangeByRank(size + 1 - end, size + 1 - start, this.removal);
+			} else {
+				this.list.deleteRangeByRank(start, end, this.removal);
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (this) {
+			return this.list.length;
+		}
+	}
+
+	/**
+	 * @return null if not found
+	 */
+	public Long getScore(long key) {
+		synchronized (this) {
+			return this.scores.containsKey(key) ? this.scores.get(key, 0L) : null;
+		}
+	}
+
+	/**
+	 * 无装箱版本
+	 */
+	public long getScore(long key, long defaultScore) {
+		synchronized (this) {
+			return this.scores.get(key, defaultScore);
+		}
+	}
+
+	public long getTiebreak(long key, long defaultTiebreak) {
+		synchronized (this) {
+			return this.tiebreaks.get(key, defaultTiebreak);
+		}
+	}
+
+	/**
+	 * 获取排名
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return -1 if not found
+	 */
+	public int rank(long key, boolean reverse) {
+		synchronized (this) {
+			if (!this.scores.containsKey(key)) {
+				return -1;
+			}
+			int rank = this.list.getRank(this.scores.get(key, 0L), this.tiebreaks.get(key, 0L), key);
+			return reverse ? this.list.length + 1 - rank : rank;
+		}
+	}
+
+	/**
+	 * 获得排名第x的对象
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return null if rank 不在 [1, size] 内
+	 */
+	public RecordObject getByRank(int rank, boolean reverse) {
+		synchronized (this) {
+			// getElementByRank(0) 返回表头
+			if (rank < 1 || rank > this.list.length) {
+				return null;
+			}
+			SkipListNode x = this.list.getElementByRank(reverse ? this.list.length + 1 - rank : rank);
+			return x != null ? toRecordObject(x, rank) : null;
+		}
+	}
+
+	/**
+	 * 通过排名获取一段
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByRank(int rankBegin, int rankEnd, boolean reverse) {
+		if (rankBegin > rankEnd) {
+			return null;
+		}
+		final List<RecordObject> ls = new ArrayList<>();
+		this.forEachByRank(rankBegin, rankEnd, reverse, new RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score, long tiebreak) {
+				ls.add(new RecordObject(score, tiebreak, key, rank));
+				return true;
+			}
+		});
+		return ls;
+	}
+
+	/**
+	 * 通过分数获取一段 双闭区间，只看 score
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByScore(long scoreBegin, long scoreEnd, boolean reverse) {
+		if (scoreBegin > scoreEnd) {
+			return null;
+		}
+		final List<RecordObject> ls = new ArrayList<>();
+		this.forEachByScore(new RangeSpec(scoreBegin, scoreEnd), reverse, new RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score, long tiebreak) {
+				ls.add(new RecordObject(score, tiebreak, key, rank));
+				return true;
+			}
+		});
+		return ls;
+	}
+
+	/**
+	 * 按排名遍历，不产生 RecordObject
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return 访问的元素个数
+	 */
+	public int forEachByRank(int rankBegin, int rankEnd, boolean reverse, RecordVisitor visitor) {
+		synchronized (this) {
+			int size = this.list.length;
+			rankBegin = rankBegin < 1 ? 1 : rankBegin;
+			rankEnd = rankEnd > size ? size : rankEnd;
+			if (rankBegin > rankEnd) {
+				return 0;
+			}
+
+			int visited = 0;
+			SkipListNode x = this.list.getElementByRank(reverse ? size + 1 - rankBegin : rankBegin);
+			for (int rank = rankBegin; x != null && rank <= rankEnd; rank++) {
+				visited++;
+				if (!visitor.visit(rank, x.obj, x.score, tiebreak(x))) {
+					break;
+				}
+				x = reverse ? x.backward : x.forward[0];
+			}
+			return visited;
+		}
+	}
+
+	/**
+	 * 按分数范围遍历，不产生 RecordObject
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return 访问的元素个数
+	 */
+	public int forEachByScore(RangeSpec range, boolean reverse, RecordVisitor visitor) {
+		synchronized (this) {
+			SkipListNode x = reverse ? this.list.lastInRange(range) : this.list.firstInRange(range);
+			if (x == null) {
+				return 0;
+			}
+
+			int visited = 0;
+			long tiebreak = tiebreak(x);
+			int r = this.list.getRank(x.score, tiebreak, x.obj);
+			int rank = reverse ? this.list.length + 1 - r : r;
+			while (x != null && (reverse ? SkipList.keyGteMin(x.score, range) : SkipList.keyLteMax(x.score, range))) {
+				visited++;
+				if (!visitor.visit(rank++, x.obj, x.score, tiebreak(x))) {
+					break;
+				}
+				x = reverse ? x.backward : x.forward[0];
+			}
+			return visited;
+		}
+	}
+}
@@ -0,0 +1,476 @@
+package me.chaopeng.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import me.chaopeng.utils.SortedSet.RangeSpec;
+import me.chaopeng.utils.SortedSet.RecordObject;
+import me.chaopeng.utils.SortedSet.RecordVisitor;
+
+/**
+ * ConcurrentSortedSet - 读不阻塞写、也不被写阻塞的 SortedSet
+ * <p/>
+ * 接口与 SortedSet 一致，内部直接复用 SortedSet 的跳表与 dict，只是换了同步方式：
+ * <ul>
+ * <li>写操作(add/remove/...)持有写锁，进入和离开时各把 version 加一，写期间 version 为奇数</li>
+ * <li>读操作先不加锁乐观地读，把结果复制出来（RecordObject、数值），再检查 version，
+ * 没有变化就返回；有变化（或读到了写了一半的结构抛出异常）就重试，重试失败后退化为读锁</li>
+ * </ul>
+ * 乐观读不写任何共享变量，读线程之间没有竞争，也不阻塞写。
+ * <p/>
+ * 这相当于 java8 的 StampedLock.tryOptimisticRead()/validate()，项目是 java7 所以自己实现：
+ * <ul>
+ * <li>StampedLock.validate 之前有 loadFence，保证之前的普通读不会被重排到 version 的读之后。
+ * java7 没有 loadFence，这里先对当前线程自己的一个 volatile 字段写一次，
+ * volatile 写之前的读不能重排到它之后，它之后的 volatile 读也不能重排到它之前</li>
+ * <li>跳表节点的 score/obj/forward/span 是 final 的，看见节点时这些字段一定初始化完成；
+ * forward[i] 只会指向层数大于 i 的节点，所以按层查找时不会越界</li>
+ * <li>不一致的读可能抛出 NullPointerException、ArrayIndexOutOfBoundsException 等，一律当作校验失败</li>
+ * </ul>
+ * forEachXXX 的回调不在乐观读的过程中执行：先把范围内的元素复制出来，校验通过后再回调，
+ * 所以 visitor 提前停止不会减少复制的量；退化为读锁时回调在读锁内执行。
+ *
+ * @author chao
+ * @see SortedSet
+ */
+public final class ConcurrentSortedSet {
+
+	/**
+	 * 乐观读的次数，之后改为读锁
+	 */
+	private static final int OPTIMISTIC_RETRIES = 2;
+
+	/**
+	 * 读线程自己的 volatile 字段，见 validate
+	 */
+	private static final ThreadLocal<Fence> FENCE = new ThreadLocal<Fence>() {
+		@Override
+		protected Fence initialValue() {
+			return new Fence();
+		}
+	};
+
+	private static final class Fence {
+		private volatile int value;
+	}
+
+	private final SortedSet set = new SortedSet();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * 偶数=没有写 奇数=正在写
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	private void beginWrite() {
+		lock.writeLock().lock();
+		version.incrementAndGet();
+	}
+
+	private void endWrite() {
+		version.incrementAndGet();
+		lock.writeLock().unlock();
+	}
+
+	/**
+	 * @return 可以开始乐观读的 version，正在写时返回 -1
+	 */
+	private long tryOptimisticRead() {
+		long v = version.get();
+		return (v & 1) == 0 ? v : -1;
+	}
+
+	/**
+	 * @return true=从 tryOptimisticRead 到现在没有写，这期间读到的值是一致的
+	 */
+	private boolean validate(long stamp) {
+		// 相当于 loadFence：之前的普通读都完成后才读 version
+		FENCE.get().value = 0;
+		return version.get() == stamp;
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * write API
+	 *----------------------------------------------------------------------------*/
+
+	public void clear() {
+		beginWrite();
+		try {
+			set.doClear();
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * 添加，会自动合并重复的key
+	 */
+	public void add(long score, long key) {
+		beginWrite();
+		try {
+			set.doAdd(score, key);
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key
+	 *
+	 * @param recordObjects RecordObject::rank不会自动更新
+	 */
+	public void addAdll(RecordObject[] recordObjects) {
+		addAdll(Arrays.asList(recordObjects));
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key
+	 *
+	 * @param recordObjects RecordObject::rank不会自动更新
+	 */
+	public void addAdll(Collection<RecordObject> recordObjects) {
+		long[][] arrays = SortedSet.toArrays(recordObjects);
+		addAll(arrays[0], arrays[1]);
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key，同一批里重复的key以最后一个为准
+	 *
+	 * @see SortedSet#addAll(long[], long[])
+	 */
+	public void addAll(long[] scores, long[] keys) {
+		if (scores.length != keys.length) {
+			throw new IllegalArgumentException("scores.length != keys.length");
+		}
+		beginWrite();
+		try {
+			set.doAddAll(scores, keys, keys.length);
+		} finally {
+			endWrite();
+		}
+	}
+
+	public void remove(long key) {
+		beginWrite();
+		try {
+			set.doRemove(key);
+		} finally {
+			endWrite();
+		}
+	}
+
+	public void removeByScore(RangeSpec range) {
+		beginWrite();
+		try {
+			set.doRemoveByScore(range);
+		} finally {
+			endWrite();
+		}
+	}
+
+	public void removeByRank(int start, int end, boolean reverse) {
+		beginWrite();
+		try {
+			set.doRemoveByRank(start, end, reverse);
+		} finally {
+			endWrite();
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * read API
+	 *----------------------------------------------------------------------------*/
+
+	public int size() {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp >= 0) {
+				int size = set.size();
+				if (validate(stamp)) {
+					return size;
+				}
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return null if not found
+	 */
+	public Long getScore(long key) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				boolean found = set.doContainsKey(key);
+				long score = set.doGetScore(key, 0L);
+				if (validate(stamp)) {
+					return found ? score : null;
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doContainsKey(key) ? set.doGetScore(key, 0L) : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 无装箱版本
+	 */
+	public long getScore(long key, long defaultScore) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				long score = set.doGetScore(key, defaultScore);
+				if (validate(stamp)) {
+					return score;
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doGetScore(key, defaultScore);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 获取排名
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return -1 if not found
+	 */
+	public int rank(long key, boolean reverse) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				int rank = set.doRank(key, reverse);
+				if (validate(stamp)) {
+					return rank;
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doRank(key, reverse);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 获得排名第x的对象
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public RecordObject getByRank(int rank, boolean reverse) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				RecordObject res = set.doGetByRank(rank, reverse);
+				if (validate(stamp)) {
+					return res;
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doGetByRank(rank, reverse);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 通过排名获取一段
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByRank(int rankBegin, int rankEnd, boolean reverse) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				List<RecordObject> res = set.doGetRangeByRank(rankBegin, rankEnd, reverse);
+				if (validate(stamp)) {
+					return res;
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doGetRangeByRank(rankBegin, rankEnd, reverse);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 通过分数获取一段 双闭区间
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByScore(long scoreBegin, long scoreEnd, boolean reverse) {
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				List<RecordObject> res = set.doGetRangeByScore(scoreBegin, scoreEnd, reverse);
+				if (validate(stamp)) {
+					return res;
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doGetRangeByScore(scoreBegin, scoreEnd, reverse);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 按排名遍历，不产生 RecordObject，校验通过后才回调，退化为读锁时回调持有读锁
+	 *
+	 * @see SortedSet#forEachByRank(int, int, boolean, RecordVisitor)
+	 */
+	public int forEachByRank(int rankBegin, int rankEnd, boolean reverse, RecordVisitor visitor) {
+		Copy copy = new Copy();
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				copy.size = 0;
+				set.doForEachByRank(rankBegin, rankEnd, reverse, copy);
+				if (validate(stamp)) {
+					return copy.replay(visitor);
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doForEachByRank(rankBegin, rankEnd, reverse, visitor);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 按分数范围遍历，不产生 RecordObject，校验通过后才回调，退化为读锁时回调持有读锁
+	 *
+	 * @see SortedSet#forEachByScore(RangeSpec, boolean, RecordVisitor)
+	 */
+	public int forEachByScore(RangeSpec range, boolean reverse, RecordVisitor visitor) {
+		Copy copy = new Copy();
+		for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+			long stamp = tryOptimisticRead();
+			if (stamp < 0) {
+				continue;
+			}
+			try {
+				copy.size = 0;
+				set.doForEachByScore(range, reverse, copy);
+				if (validate(stamp)) {
+					return copy.replay(visitor);
+				}
+			} catch (RuntimeException ignored) {
+				// 读到写了一半的结构，重试
+			}
+		}
+
+		lock.readLock().lock();
+		try {
+			return set.doForEachByScore(range, reverse, visitor);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 乐观读时先把遍历到的元素复制出来，排名是连续的，只记第一个
+	 */
+	private static final class Copy implements RecordVisitor {
+		private int firstRank;
+		private long[] keys = new long[16];
+		private long[] scores = new long[16];
+		private int size;
+
+		@Override
+		public boolean visit(int rank, long key, long score) {
+			if (size == 0) {
+				firstRank = rank;
+			} else if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size << 1);
+				scores = Arrays.copyOf(scores, size << 1);
+			}
+			keys[size] = key;
+			scores[size] = score;
+			size++;
+			return true;
+		}
+
+		/**
+		 * @return 访问的元素个数，和直接遍历的返回值一致
+		 */
+		private int replay(RecordVisitor visitor) {
+			for (int i = 0; i < size; i++) {
+				if (!visitor.visit(firstRank + i, keys[i], scores[i])) {
+					return i + 1;
+				}
+			}
+			return size;
+		}
+	}
+}
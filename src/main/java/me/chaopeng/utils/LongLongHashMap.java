@@ -0,0 +1,216 @@
+package me.chaopeng.utils;
+
+import java.util.Arrays;
+
+/**
+ * long -> long 的开放寻址哈希表
+ * <p/>
+ * 线性探测 + 删除时后移（backward shift），没有墓碑，不做任何装箱。
+ * key=0 作为空槽标记，真正的 0 单独存放。
+ * <p/>
+ * 每个槽位 16 字节（key + value），负载因子上限 0.75 。
+ * <p/>
+ * <b>非线程安全</b>
+ *
+ * @author chao
+ */
+public final class LongLongHashMap {
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int resizeAt;
+	private int size;
+
+	private boolean hasZeroKey;
+	private long zeroValue;
+
+	public LongLongHashMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize 预计元素个数
+	 */
+	public LongLongHashMap(int expectedSize) {
+		allocate(tableSizeFor((int) Math.ceil(expectedSize / LOAD_FACTOR)));
+	}
+
+	private static int tableSizeFor(int n) {
+		int cap = MIN_CAPACITY;
+		while (cap < n) {
+			cap <<= 1;
+		}
+		return cap;
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new long[capacity];
+		this.mask = capacity - 1;
+		this.resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(long key) {
+		if (key == 0) {
+			return hasZeroKey;
+		}
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * @return key 对应的值，不存在则返回 defaultValue
+	 */
+	public long get(long key, long defaultValue) {
+		if (key == 0) {
+			return hasZeroKey ? zeroValue : defaultValue;
+		}
+		int i = indexOf(key);
+		return i >= 0 ? values[i] : defaultValue;
+	}
+
+	/**
+	 * @return true=新增 false=覆盖
+	 */
+	public boolean put(long key, long value) {
+		if (key == 0) {
+			zeroValue = value;
+			if (hasZeroKey) {
+				return false;
+			}
+			hasZeroKey = true;
+			size++;
+			return true;
+		}
+
+		long[] keys = this.keys;
+		int mask = this.mask;
+		int i = mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != 0) {
+			if (k == key) {
+				values[i] = value;
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > resizeAt) {
+			rehash(keys.length << 1);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true=删除成功 false=不存在
+	 */
+	public boolean remove(long key) {
+		if (key == 0) {
+			if (!hasZeroKey) {
+				return false;
+			}
+			hasZeroKey = false;
+			zeroValue = 0;
+			size--;
+			return true;
+		}
+
+		int i = indexOf(key);
+		if (i < 0) {
+			return false;
+		}
+		shiftKeys(i);
+		size--;
+		return true;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, 0);
+		hasZeroKey = false;
+		zeroValue = 0;
+		size = 0;
+	}
+
+	private int indexOf(long key) {
+		long[] keys = this.keys;
+		// mask 取自同一个数组：ConcurrentSortedSet 乐观读时 keys 和 mask 可能来自扩容前后不同的表
+		int mask = keys.length - 1;
+		int i = mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != 0) {
+			if (k == key) {
+				return i;
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * 删除槽位 i 后把同一探测链上的后续元素前移，保持链不断
+	 */
+	private void shiftKeys(int i) {
+		long[] keys = this.keys;
+		long[] values = this.values;
+		int mask = this.mask;
+		int last;
+		for (; ; ) {
+			last = i;
+			i = (i + 1) & mask;
+			long k;
+			for (; ; ) {
+				if ((k = keys[i]) == 0) {
+					keys[last] = 0;
+					values[last] = 0;
+					return;
+				}
+				int slot = mix(k) & mask;
+				// slot 不在 (last, i] 之间时，这个元素可以前移到 last
+				if (last <= i ? (last >= slot || slot > i) : (last >= slot && slot > i)) {
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[last] = k;
+			values[last] = values[i];
+		}
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = this.keys;
+		long[] oldValues = this.values;
+		allocate(capacity);
+		long[] keys = this.keys;
+		long[] values = this.values;
+		int mask = this.mask;
+		for (int j = 0; j < oldKeys.length; j++) {
+			long k = oldKeys[j];
+			if (k != 0) {
+				int i = mix(k) & mask;
+				while (keys[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = k;
+				values[i] = oldValues[j];
+			}
+		}
+	}
+}
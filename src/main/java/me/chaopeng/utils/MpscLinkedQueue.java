@@ -0,0 +1,166 @@
+package me.chaopeng.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 多生产者单消费者的无锁侵入式队列，Dmitry Vyukov 的 intrusive MPSC node-based queue
+ * <p/>
+ * <ul>
+ * <li>元素自己就是链表节点（继承 {@link Node}），入队不分配对象</li>
+ * <li>offer 可以多个线程同时调用，一次 getAndSet，没有CAS重试</li>
+ * <li>poll/peek/successor 同一时间只能有一个线程调用（消费者），更换消费者线程时需要 happens-before，例如加锁</li>
+ * <li>一个元素同一时间只能在一个队列中出现一次，poll 返回后才能再次 offer；
+ * 还在队列中（包括其他队列）时再次 offer 抛出 IllegalStateException，否则会把它之后的元素从链表中断开</li>
+ * <li>生产者 getAndSet 之后、链接之前，消费者暂时看不到它和它之后的元素：poll 返回null，isEmpty 返回false</li>
+ * </ul>
+ *
+ * @param <E> 元素类型
+ * @author chao
+ */
+public final class MpscLinkedQueue<E extends MpscLinkedQueue.Node> {
+
+	/**
+	 * 队列的节点
+	 */
+	public abstract static class Node {
+		volatile Node next;
+
+		/**
+		 * 1=在队列中，offer 时CAS设置，poll 出队时清除
+		 */
+		volatile int queued;
+
+		/**
+		 * @return 是否还在队列中，poll 返回之前为true
+		 */
+		public boolean isQueued() {
+			return queued != 0;
+		}
+	}
+
+	private static final class Stub extends Node {
+	}
+
+	private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+			AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+	private static final AtomicIntegerFieldUpdater<Node> QUEUED =
+			AtomicIntegerFieldUpdater.newUpdater(Node.class, "queued");
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<MpscLinkedQueue, Node> TAIL =
+			AtomicReferenceFieldUpdater.newUpdater(MpscLinkedQueue.class, Node.class, "tail");
+
+	/**
+	 * 队列为空时 head == tail == stub
+	 */
+	private final Node stub = new Stub();
+
+	/**
+	 * 生产者入队的位置
+	 */
+	private volatile Node tail = stub;
+
+	/**
+	 * 消费者出队的位置，只有消费者访问
+	 */
+	private Node head = stub;
+
+	/**
+	 * @throws IllegalStateException e 还在队列中
+	 */
+	public void offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		if (!QUEUED.compareAndSet(e, 0, 1)) {
+			throw new IllegalStateException(e + " is already queued");
+		}
+		push(e);
+	}
+
+	private void push(Node node) {
+		// getAndSet 之前不需要立即可见
+		NEXT.lazySet(node, null);
+		Node prev = TAIL.getAndSet(this, node);
+		prev.next = node;
+	}
+
+	/**
+	 * 只能由消费者调用
+	 *
+	 * @return 队首元素，没有为null
+	 */
+	public E poll() {
+		Node h = head;
+		Node next = h.next;
+		if (h == stub) {
+			if (next == null) {
+				return null;
+			}
+			head = next;
+			h = next;
+			next = next.next;
+		}
+
+		if (next != null) {
+			head = next;
+			return dequeued(h);
+		}
+
+		// 还有生产者没有链接完
+		if (h != tail) {
+			return null;
+		}
+
+		// h 是最后一个，放回 stub 之后才能取出 h
+		push(stub);
+		next = h.next;
+		if (next != null) {
+			head = next;
+			return dequeued(h);
+		}
+		return null;
+	}
+
+	/**
+	 * 读完 h.next 之后才能清除，清除后生产者可以再次 offer
+	 */
+	@SuppressWarnings("unchecked")
+	private E dequeued(Node h) {
+		NEXT.lazySet(h, null);
+		QUEUED.lazySet(h, 0);
+		return (E) h;
+	}
+
+	/**
+	 * 只能由消费者调用
+	 *
+	 * @return 队首元素，不出队，没有为null
+	 */
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		Node h = head;
+		return (E) (h == stub ? h.next : h);
+	}
+
+	/**
+	 * 只能由消费者调用，用于从 {@link #peek()} 开始遍历队列
+	 *
+	 * @param e 队列中的元素
+	 * @return e 之后的元素，没有为null
+	 */
+	@SuppressWarnings("unchecked")
+	public E successor(E e) {
+		Node next = ((Node) e).next;
+		return (E) (next == stub ? next.next : next);
+	}
+
+	/**
+	 * 任何线程都可以调用，生产者正在入队时返回false
+	 */
+	public boolean isEmpty() {
+		return tail == stub;
+	}
+}
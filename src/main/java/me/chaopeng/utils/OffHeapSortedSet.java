@@ -0,0 +1,961 @@
+package me.chaopeng.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import me.chaopeng.utils.SortedSet.RangeSpec;
+import me.chaopeng.utils.SortedSet.RecordObject;
+import me.chaopeng.utils.SortedSet.RecordVisitor;
+
+/**
+ * OffHeapSortedSet - 数据放在堆外的 SortedSet
+ * <p/>
+ * 接口和 SortedSet 一致，跳表的实现也一样，只是节点不是 java 对象：
+ * <ul>
+ * <li>节点分配在按 16M 分块（slab）的 ByteBuffer 里，用 int 地址引用，地址以 8 字节为单位，最多 16G</li>
+ * <li>节点布局：score(8) key(8) backward(4) level(4) + 每层 forward(4) span(4)，按层数分别维护空闲链表</li>
+ * <li>key -> 节点地址 的索引也在堆外，开放寻址 + 线性探测，每槽 16 字节</li>
+ * <li>平均约 35 字节/节点 + 约 28 字节/索引，堆上只有几十个 ByteBuffer 对象，GC 不需要扫描</li>
+ * </ul>
+ * 两种模式：
+ * <ul>
+ * <li>new OffHeapSortedSet()：direct buffer，close 后等 GC 回收</li>
+ * <li>OffHeapSortedSet.open(file)：mmap 文件（file 和 file.idx），close 时写入元数据并标记正常关闭，
+ * 下次 open 直接使用，不需要重建；没有正常关闭的文件拒绝打开，崩溃恢复请用 SortedSetSnapshot/SortedSetJournal</li>
+ * </ul>
+ * 文件按本机字节序保存，不能跨字节序的机器使用。
+ *
+ * @author chao
+ * @see SortedSet
+ */
+public final class OffHeapSortedSet implements Closeable {
+
+	private static final int ZSKIPLIST_MAXLEVEL = 32;
+	private static final float ZSKIPLIST_P = 0.25f;
+	/**
+	 * 升一层的概率 * 65536
+	 */
+	private static final int LEVEL_THRESHOLD = (int) (ZSKIPLIST_P * 0x10000);
+
+	private static final int SLAB_SHIFT = 24;
+	private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+	private static final int SLAB_MASK = SLAB_SIZE - 1;
+
+	private static final int MAGIC = 0x4F485353; // "OHSS"
+	private static final int VERSION = 1;
+
+	/**
+	 * 文件头，单位为字节
+	 */
+	private static final int H_MAGIC = 0;
+	private static final int H_VERSION = 4;
+	private static final int H_CLEAN = 8;
+	private static final int H_LEVEL = 12;
+	private static final int H_LENGTH = 16;
+	private static final int H_TAIL = 20;
+	private static final int H_ALLOC_TOP = 24;
+	private static final int H_INDEX_CAPACITY = 28;
+	private static final int H_INDEX_SIZE = 32;
+	private static final int H_FREE_LISTS = 36; // 每层一个 int，共 ZSKIPLIST_MAXLEVEL + 1 个
+	private static final int HEADER_UNITS = 32;
+
+	/**
+	 * 跳表头节点的地址，紧跟文件头
+	 */
+	private static final int HEADER_NODE = HEADER_UNITS;
+
+	/**
+	 * 节点内的偏移，单位为字节
+	 */
+	private static final int N_SCORE = 0;
+	private static final int N_KEY = 8;
+	private static final int N_BACKWARD = 16;
+	private static final int N_LEVEL = 20;
+	private static final int N_LEVELS = 24;
+
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MIN_INDEX_CAPACITY = 1024;
+	private static final int MAX_INDEX_CAPACITY = 1 << 30;
+	private static final int SLOT_SIZE = 16;
+
+	/**
+	 * 按 16M 分块的堆外内存，按 long 型的字节偏移读写，用到时才分配
+	 */
+	private static final class Slabs {
+		private final RandomAccessFile file;
+		private ByteBuffer[] slabs = new ByteBuffer[8];
+
+		/**
+		 * @param file null=direct buffer
+		 */
+		private Slabs(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		private ByteBuffer slab(long offset) {
+			int i = (int) (offset >>> SLAB_SHIFT);
+			if (slabs == null) {
+				throw new IllegalStateException("closed");
+			}
+			if (i >= slabs.length) {
+				slabs = Arrays.copyOf(slabs, Math.max(slabs.length * 2, i + 1));
+			}
+			ByteBuffer slab = slabs[i];
+			if (slab == null) {
+				if (file == null) {
+					slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+				} else {
+					try {
+						slab = file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) i << SLAB_SHIFT, SLAB_SIZE);
+					} catch (IOException e) {
+						throw new IllegalStateException("can not map slab " + i, e);
+					}
+				}
+				slab.order(ByteOrder.nativeOrder());
+				slabs[i] = slab;
+			}
+			return slab;
+		}
+
+		private long getLong(long offset) {
+			return slab(offset).getLong((int) (offset & SLAB_MASK));
+		}
+
+		private void putLong(long offset, long value) {
+			slab(offset).putLong((int) (offset & SLAB_MASK), value);
+		}
+
+		private int getInt(long offset) {
+			return slab(offset).getInt((int) (offset & SLAB_MASK));
+		}
+
+		private void putInt(long offset, int value) {
+			slab(offset).putInt((int) (offset & SLAB_MASK), value);
+		}
+
+		private void force() {
+			for (ByteBuffer slab : slabs) {
+				if (slab instanceof MappedByteBuffer) {
+					((MappedByteBuffer) slab).force();
+				}
+			}
+		}
+
+		private void close() {
+			if (slabs == null) {
+				return;
+			}
+			if (file != null) {
+				force();
+				CloseUtils.close(file);
+			}
+			slabs = null;
+		}
+	}
+
+	/**
+	 * 数据文件，null=direct buffer
+	 */
+	private final File file;
+
+	private Slabs nodes;
+	private Slabs index;
+
+	/**
+	 * xorshift 随机数状态，只在锁内使用，不需要 java.util.Random 的 CAS
+	 */
+	private long seed = System.nanoTime() | 1;
+
+	// 跳表和分配器的状态，在内存里维护，close 时写入文件头
+	private int level;
+	private int length;
+	private int tail;
+	private int allocTop;
+	private final int[] freeLists = new int[ZSKIPLIST_MAXLEVEL + 1];
+
+	private int indexCapacity;
+	private int indexMask;
+	private int indexSize;
+
+	/**
+	 * 查找过程中的临时数组，所有操作都在锁内，可以复用
+	 */
+	private final int[] update = new int[ZSKIPLIST_MAXLEVEL];
+	private final int[] rank = new int[ZSKIPLIST_MAXLEVEL];
+
+	/**
+	 * 使用 direct buffer
+	 */
+	public OffHeapSortedSet() {
+		this.file = null;
+		this.nodes = new Slabs(null);
+		this.index = new Slabs(null);
+		this.reset(MIN_INDEX_CAPACITY);
+	}
+
+	private OffHeapSortedSet(File file) throws IOException {
+		this.file = file;
+		boolean exists = file.exists() && file.length() > 0;
+		this.nodes = new Slabs(new RandomAccessFile(file, "rw"));
+		this.index = new Slabs(new RandomAccessFile(indexFile(file), "rw"));
+
+		try {
+			this.load(exists);
+		} catch (IOException e) {
+			this.nodes.close();
+			this.index.close();
+			throw e;
+		}
+
+		// 使用期间标记为未正常关闭
+		nodes.putInt(H_MAGIC, MAGIC);
+		nodes.putInt(H_VERSION, VERSION);
+		nodes.putInt(H_CLEAN, 0);
+		nodes.force();
+	}
+
+	private void load(boolean exists) throws IOException {
+		if (!exists) {
+			this.reset(MIN_INDEX_CAPACITY);
+		} else {
+			if (nodes.getInt(H_MAGIC) != MAGIC) {
+				throw new IOException("not an OffHeapSortedSet file: " + file);
+			}
+			int version = nodes.getInt(H_VERSION);
+			if (version != VERSION) {
+				throw new IOException("unsupported OffHeapSortedSet version " + version + ": " + file);
+			}
+			if (nodes.getInt(H_CLEAN) != 1) {
+				throw new IOException("OffHeapSortedSet was not closed cleanly: " + file);
+			}
+			this.level = nodes.getInt(H_LEVEL);
+			this.length = nodes.getInt(H_LENGTH);
+			this.tail = nodes.getInt(H_TAIL);
+			this.allocTop = nodes.getInt(H_ALLOC_TOP);
+			this.setIndexCapacity(nodes.getInt(H_INDEX_CAPACITY));
+			this.indexSize = nodes.getInt(H_INDEX_SIZE);
+			for (int i = 1; i <= ZSKIPLIST_MAXLEVEL; i++) {
+				this.freeLists[i] = nodes.getInt(H_FREE_LISTS + 4 * i);
+			}
+		}
+	}
+
+	/**
+	 * 打开或创建文件模式的 OffHeapSortedSet，索引保存在 file.idx
+	 *
+	 * @throws IOException 文件格式不对，或者上次没有正常 close
+	 */
+	public static OffHeapSortedSet open(File file) throws IOException {
+		return new OffHeapSortedSet(file);
+	}
+
+	private static File indexFile(File file) {
+		return new File(file.getPath() + ".idx");
+	}
+
+	/**
+	 * 写入元数据，direct 模式直接释放引用，文件模式刷盘并标记为正常关闭
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (nodes == null) {
+				return;
+			}
+			if (file != null) {
+				nodes.putInt(H_LEVEL, level);
+				nodes.putInt(H_LENGTH, length);
+				nodes.putInt(H_TAIL, tail);
+				nodes.putInt(H_ALLOC_TOP, allocTop);
+				nodes.putInt(H_INDEX_CAPACITY, indexCapacity);
+				nodes.putInt(H_INDEX_SIZE, indexSize);
+				for (int i = 1; i <= ZSKIPLIST_MAXLEVEL; i++) {
+					nodes.putInt(H_FREE_LISTS + 4 * i, freeLists[i]);
+				}
+				index.close();
+				nodes.force();
+				nodes.putInt(H_CLEAN, 1);
+			}
+			nodes.close();
+			index.close();
+			nodes = null;
+			index = null;
+		}
+	}
+
+	private void reset(int indexCapacity) {
+		this.level = 1;
+		this.length = 0;
+		this.tail = 0;
+		this.allocTop = HEADER_NODE + 3 + ZSKIPLIST_MAXLEVEL;
+		Arrays.fill(this.freeLists, 0);
+
+		nodes.putInt(addr(HEADER_NODE) + N_LEVEL, ZSKIPLIST_MAXLEVEL);
+		nodes.putInt(addr(HEADER_NODE) + N_BACKWARD, 0);
+		for (int i = 0; i < ZSKIPLIST_MAXLEVEL; i++) {
+			setForward(HEADER_NODE, i, 0);
+			setSpan(HEADER_NODE, i, 0);
+		}
+
+		this.setIndexCapacity(indexCapacity);
+		this.indexSize = 0;
+		for (long i = 0; i < indexCapacity; i++) {
+			index.putInt(i * SLOT_SIZE + 8, 0);
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * 节点
+	 *----------------------------------------------------------------------------*/
+
+	private static long addr(int node) {
+		return (long) node << 3;
+	}
+
+	private long score(int node) {
+		return nodes.getLong(addr(node) + N_SCORE);
+	}
+
+	private long key(int node) {
+		return nodes.getLong(addr(node) + N_KEY);
+	}
+
+	private int backward(int node) {
+		return nodes.getInt(addr(node) + N_BACKWARD);
+	}
+
+	private void setBackward(int node, int backward) {
+		nodes.putInt(addr(node) + N_BACKWARD, backward);
+	}
+
+	private int forward(int node, int i) {
+		return nodes.getInt(addr(node) + N_LEVELS + 8 * i);
+	}
+
+	private void setForward(int node, int i, int forward) {
+		nodes.putInt(addr(node) + N_LEVELS + 8 * i, forward);
+	}
+
+	private int span(int node, int i) {
+		return nodes.getInt(addr(node) + N_LEVELS + 8 * i + 4);
+	}
+
+	private void setSpan(int node, int i, int span) {
+		nodes.putInt(addr(node) + N_LEVELS + 8 * i + 4, span);
+	}
+
+	private RecordObject toRecordObject(int node, int rank) {
+		return new RecordObject(score(node), key(node), rank);
+	}
+
+	/**
+	 * 分配一个 level 层的节点，优先使用空闲链表，节点不会跨 slab
+	 */
+	private int allocNode(int level, long score, long key) {
+		int node = freeLists[level];
+		if (node != 0) {
+			freeLists[level] = nodes.getInt(addr(node));
+		} else {
+			int units = 3 + level;
+			long top = allocTop;
+			if ((addr((int) top) >>> SLAB_SHIFT) != ((addr((int) top) + units * 8 - 1) >>> SLAB_SHIFT)) {
+				top = ((addr((int) top) >>> SLAB_SHIFT) + 1) << (SLAB_SHIFT - 3);
+			}
+			if (top + units > Integer.MAX_VALUE) {
+				throw new IllegalStateException("off-heap space exhausted");
+			}
+			node = (int) top;
+			allocTop = (int) (top + units);
+		}
+		nodes.putLong(addr(node) + N_SCORE, score);
+		nodes.putLong(addr(node) + N_KEY, key);
+		nodes.putInt(addr(node) + N_LEVEL, level);
+		return node;
+	}
+
+	private void freeNode(int node) {
+		int level = nodes.getInt(addr(node) + N_LEVEL);
+		nodes.putInt(addr(node), freeLists[level]);
+		freeLists[level] = node;
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * key 索引
+	 *----------------------------------------------------------------------------*/
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void setIndexCapacity(int capacity) {
+		this.indexCapacity = capacity;
+		this.indexMask = capacity - 1;
+	}
+
+	private long slotKey(int slot) {
+		return index.getLong((long) slot * SLOT_SIZE);
+	}
+
+	private int slotNode(int slot) {
+		return index.getInt((long) slot * SLOT_SIZE + 8);
+	}
+
+	private void setSlot(int slot, long key, int node) {
+		index.putLong((long) slot * SLOT_SIZE, key);
+		index.putInt((long) slot * SLOT_SIZE + 8, node);
+	}
+
+	/**
+	 * @return key 所在的槽，或者应该插入的空槽
+	 */
+	private int findSlot(long key) {
+		int slot = mix(key) & indexMask;
+		while (slotNode(slot) != 0 && slotKey(slot) != key) {
+			slot = (slot + 1) & indexMask;
+		}
+		return slot;
+	}
+
+	/**
+	 * @return 0 if not found
+	 */
+	private int findNode(long key) {
+		return slotNode(findSlot(key));
+	}
+
+	private void putNode(long key, int node) {
+		int slot = findSlot(key);
+		if (slotNode(slot) == 0) {
+			indexSize++;
+		}
+		setSlot(slot, key, node);
+		if (indexSize > indexCapacity * LOAD_FACTOR && indexCapacity < MAX_INDEX_CAPACITY) {
+			resizeIndex(indexCapacity << 1);
+		}
+	}
+
+	/**
+	 * 删除后把后面的元素前移（backward shift），没有墓碑
+	 */
+	private void removeNode(long key) {
+		int free = findSlot(key);
+		if (slotNode(free) == 0) {
+			return;
+		}
+		indexSize--;
+		for (int i = (free + 1) & indexMask; slotNode(i) != 0; i = (i + 1) & indexMask) {
+			int ideal = mix(slotKey(i)) & indexMask;
+			if (((i - ideal) & indexMask) >= ((i - free) & indexMask)) {
+				setSlot(free, slotKey(i), slotNode(i));
+				free = i;
+			}
+		}
+		setSlot(free, 0L, 0);
+	}
+
+	private void resizeIndex(int capacity) {
+		Slabs old = this.index;
+		int oldCapacity = this.indexCapacity;
+
+		File tmp = file == null ? null : new File(indexFile(file).getPath() + ".tmp");
+		try {
+			RandomAccessFile raf = null;
+			if (tmp != null) {
+				raf = new RandomAccessFile(tmp, "rw");
+				raf.setLength(0);
+			}
+			this.index = new Slabs(raf);
+			this.setIndexCapacity(capacity);
+			for (int slot = 0; slot < oldCapacity; slot++) {
+				int node = old.getInt((long) slot * SLOT_SIZE + 8);
+				if (node != 0) {
+					long key = old.getLong((long) slot * SLOT_SIZE);
+					setSlot(findSlot(key), key, node);
+				}
+			}
+			old.close();
+			if (tmp != null) {
+				Files.move(tmp.toPath(), indexFile(file).toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("can not resize index of " + file, e);
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * 跳表，和 SortedSet.SkipList 相同
+	 *----------------------------------------------------------------------------*/
+
+	/**
+	 * xorshift64*
+	 */
+	private long nextRandom() {
+		long x = this.seed;
+		x ^= x >>> 12;
+		x ^= x << 25;
+		x ^= x >>> 27;
+		this.seed = x;
+		return x * 0x2545F4914F6CDD1DL;
+	}
+
+	private int randomLevel() {
+		int level = 1;
+		while (level < ZSKIPLIST_MAXLEVEL && (int) (nextRandom() >>> 48) < LEVEL_THRESHOLD)
+			level += 1;
+		return level;
+	}
+
+	private static boolean less(long score1, long key1, long score2, long key2) {
+		return score1 < score2 || (score1 == score2 && key1 < key2);
+	}
+
+	private int insert(long score, long key) {
+		int x = HEADER_NODE;
+		int i;
+		for (i = this.level - 1; i >= 0; i--) {
+			rank[i] = i == (this.level - 1) ? 0 : rank[i + 1];
+			int next;
+			while ((next = forward(x, i)) != 0 && less(score(next), key(next), score, key)) {
+				rank[i] += span(x, i);
+				x = next;
+			}
+			update[i] = x;
+		}
+
+		int level = randomLevel();
+		if (level > this.level) {
+			for (i = this.level; i < level; i++) {
+				rank[i] = 0;
+				update[i] = HEADER_NODE;
+				setSpan(HEADER_NODE, i, this.length);
+			}
+			this.level = level;
+		}
+
+		x = allocNode(level, score, key);
+		for (i = 0; i < level; i++) {
+			setForward(x, i, forward(update[i], i));
+			setForward(update[i], i, x);
+			setSpan(x, i, span(update[i], i) - (rank[0] - rank[i]));
+			setSpan(update[i], i, (rank[0] - rank[i]) + 1);
+		}
+		for (i = level; i < this.level; i++) {
+			setSpan(update[i], i, span(update[i], i) + 1);
+		}
+
+		setBackward(x, update[0] == HEADER_NODE ? 0 : update[0]);
+		int next = forward(x, 0);
+		if (next != 0) {
+			setBackward(next, x);
+		} else {
+			this.tail = x;
+		}
+		this.length++;
+		return x;
+	}
+
+	private void deleteNode(int x) {
+		int i;
+		for (i = 0; i < this.level; i++) {
+			if (forward(update[i], i) == x) {
+				setSpan(update[i], i, span(update[i], i) + span(x, i) - 1);
+				setForward(update[i], i, forward(x, i));
+			} else {
+				setSpan(update[i], i, span(update[i], i) - 1);
+			}
+		}
+		int next = forward(x, 0);
+		if (next != 0) {
+			setBackward(next, backward(x));
+		} else {
+			this.tail = backward(x);
+		}
+		while (this.level > 1 && forward(HEADER_NODE, this.level - 1) == 0)
+			this.level--;
+		this.length--;
+		freeNode(x);
+	}
+
+	private void delete(long score, long key) {
+		int x = HEADER_NODE;
+		for (int i = this.level - 1; i >= 0; i--) {
+			int next;
+			while ((next = forward(x, i)) != 0 && less(score(next), key(next), score, key)) {
+				x = next;
+			}
+			update[i] = x;
+		}
+		x = forward(x, 0);
+		if (x != 0 && score == score(x) && key == key(x)) {
+			deleteNode(x);
+		}
+	}
+
+	private int getRank(long score, long key) {
+		int rank = 0;
+		int x = HEADER_NODE;
+		for (int i = this.level - 1; i >= 0; i--) {
+			int next;
+			while ((next = forward(x, i)) != 0 && !less(score, key, score(next), key(next))) {
+				rank += span(x, i);
+				x = next;
+			}
+			if (x != HEADER_NODE && key(x) == key) {
+				return rank;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return 0 if not found
+	 */
+	private int getElementByRank(int rank) {
+		if (rank < 1 || rank > this.length) {
+			return 0;
+		}
+		int traversed = 0;
+		int x = HEADER_NODE;
+		for (int i = this.level - 1; i >= 0; i--) {
+			while (forward(x, i) != 0 && (traversed + span(x, i)) <= rank) {
+				traversed += span(x, i);
+				x = forward(x, i);
+			}
+			if (traversed == rank) {
+				return x;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean keyGteMin(long score, RangeSpec range) {
+		return range.minex ? (score > range.min) : (score >= range.min);
+	}
+
+	private static boolean keyLteMax(long score, RangeSpec range) {
+		return range.maxex ? (score < range.max) : (score <= range.max);
+	}
+
+	/**
+	 * @return 第一个在范围内的节点，0 if not found
+	 */
+	private int firstInRange(RangeSpec range) {
+		int x = HEADER_NODE;
+		for (int i = this.level - 1; i >= 0; i--) {
+			int next;
+			while ((next = forward(x, i)) != 0 && !keyGteMin(score(next), range)) {
+				x = next;
+			}
+		}
+		x = forward(x, 0);
+		return x != 0 && keyLteMax(score(x), range) ? x : 0;
+	}
+
+	/**
+	 * @return 最后一个在范围内的节点，0 if not found
+	 */
+	private int lastInRange(RangeSpec range) {
+		int x = HEADER_NODE;
+		for (int i = this.level - 1; i >= 0; i--) {
+			int next;
+			while ((next = forward(x, i)) != 0 && keyLteMax(score(next), range)) {
+				x = next;
+			}
+		}
+		return x != HEADER_NODE && keyGteMin(score(x), range) ? x : 0;
+	}
+
+	/**
+	 * 从 start 开始删除 count 个节点（或者到末尾）
+	 */
+	private void deleteFrom(int start, int count) {
+		int traversed = 0;
+		int x = HEADER_NODE;
+		for (int i = this.level - 1; i >= 0; i--) {
+			while (forward(x, i) != 0 && (traversed + span(x, i)) < start) {
+				traversed += span(x, i);
+				x = forward(x, i);
+			}
+			update[i] = x;
+		}
+
+		x = forward(x, 0);
+		for (int removed = 0; x != 0 && removed < count; removed++) {
+			int next = forward(x, 0);
+			removeNode(key(x));
+			deleteNode(x);
+			x = next;
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * sorted set API
+	 *----------------------------------------------------------------------------*/
+
+	public void clear() {
+		synchronized (this) {
+			this.reset(this.indexCapacity);
+		}
+	}
+
+	/**
+	 * 添加，会自动合并重复的key
+	 */
+	public void add(long score, long key) {
+		synchronized (this) {
+			int node = findNode(key);
+			if (node != 0) {
+				if (score(node) == score) {
+					return;
+				}
+				delete(score(node), key);
+			}
+			putNode(key, insert(score, key));
+		}
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key
+	 *
+	 * @param recordObjects RecordObject::rank不会自动更新
+	 */
+	public void addAdll(RecordObject[] recordObjects) {
+		addAdll(Arrays.asList(recordObjects));
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key
+	 *
+	 * @param recordObjects RecordObject::rank不会自动更新
+	 */
+	public void addAdll(Collection<RecordObject> recordObjects) {
+		long[][] arrays = SortedSet.toArrays(recordObjects);
+		addAll(arrays[0], arrays[1]);
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key，同一批里重复的key以最后一个为准
+	 */
+	public void addAll(long[] scores, long[] keys) {
+		if (scores.length != keys.length) {
+			throw new IllegalArgumentException("scores.length != keys.length");
+		}
+		synchronized (this) {
+			for (int i = 0; i < keys.length; i++) {
+				add(scores[i], keys[i]);
+			}
+		}
+	}
+
+	public void remove(long key) {
+		synchronized (this) {
+			int node = findNode(key);
+			if (node != 0) {
+				removeNode(key);
+				delete(score(node), key);
+			}
+		}
+	}
+
+	/**
+	 * 通过分数范围删除
+	 */
+	public void removeByScore(RangeSpec range) {
+		synchronized (this) {
+			int node = firstInRange(range);
+			if (node == 0) {
+				return;
+			}
+			int start = getRank(score(node), key(node));
+			int count = 0;
+			for (; node != 0 && keyLteMax(score(node), range); node = forward(node, 0)) {
+				count++;
+			}
+			deleteFrom(start, count);
+		}
+	}
+
+	/**
+	 * 通过排名删除
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public void removeByRank(int start, int end, boolean reverse) {
+		synchronized (this) {
+			if (reverse) {
+				int size = this.length;
+				int tmp = size + 1 - end;
+				end = size + 1 - start;
+				start = tmp;
+			}
+			start = start < 1 ? 1 : start;
+			if (start <= end) {
+				deleteFrom(start, end - start + 1);
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (this) {
+			return this.length;
+		}
+	}
+
+	/**
+	 * @return null if not found
+	 */
+	public Long getScore(long key) {
+		synchronized (this) {
+			int node = findNode(key);
+			return node != 0 ? score(node) : null;
+		}
+	}
+
+	/**
+	 * 无装箱版本
+	 */
+	public long getScore(long key, long defaultScore) {
+		synchronized (this) {
+			int node = findNode(key);
+			return node != 0 ? score(node) : defaultScore;
+		}
+	}
+
+	/**
+	 * 获取排名
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return -1 if not found
+	 */
+	public int rank(long key, boolean reverse) {
+		synchronized (this) {
+			int node = findNode(key);
+			if (node == 0) {
+				return -1;
+			}
+			int rank = getRank(score(node), key);
+			return reverse ? this.length + 1 - rank : rank;
+		}
+	}
+
+	/**
+	 * 获得排名第x的对象
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public RecordObject getByRank(int rank, boolean reverse) {
+		synchronized (this) {
+			int node = getElementByRank(reverse ? this.length + 1 - rank : rank);
+			return node != 0 ? toRecordObject(node, rank) : null;
+		}
+	}
+
+	/**
+	 * 通过排名获取一段
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByRank(int rankBegin, int rankEnd, boolean reverse) {
+		if (rankBegin > rankEnd) {
+			return null;
+		}
+		final List<RecordObject> ls = new ArrayList<>();
+		forEachByRank(rankBegin, rankEnd, reverse, new RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score) {
+				ls.add(new RecordObject(score, key, rank));
+				return true;
+			}
+		});
+		return ls;
+	}
+
+	/**
+	 * 通过分数获取一段 双闭区间
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByScore(long scoreBegin, long scoreEnd, boolean reverse) {
+		if (scoreBegin > scoreEnd) {
+			return null;
+		}
+		final List<RecordObject> ls = new ArrayList<>();
+		forEachByScore(new RangeSpec(scoreBegin, scoreEnd), reverse, new RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score) {
+				ls.add(new RecordObject(score, key, rank));
+				return true;
+			}
+		});
+		return ls;
+	}
+
+	/**
+	 * 按排名遍历，不产生 RecordObject
+	 *
+	 * @return 访问的元素个数
+	 * @see SortedSet#forEachByRank(int, int, boolean, RecordVisitor)
+	 */
+	public int forEachByRank(int rankBegin, int rankEnd, boolean reverse, RecordVisitor visitor) {
+		synchronized (this) {
+			int size = this.length;
+			rankBegin = rankBegin < 1 ? 1 : rankBegin;
+			rankEnd = rankEnd > size ? size : rankEnd;
+			if (rankBegin > rankEnd) {
+				return 0;
+			}
+
+			int visited = 0;
+			int node = getElementByRank(reverse ? size + 1 - rankBegin : rankBegin);
+			for (int rank = rankBegin; node != 0 && rank <= rankEnd; rank++) {
+				visited++;
+				if (!visitor.visit(rank, key(node), score(node))) {
+					break;
+				}
+				node = reverse ? backward(node) : forward(node, 0);
+			}
+			return visited;
+		}
+	}
+
+	/**
+	 * 按分数范围遍历，不产生 RecordObject
+	 *
+	 * @return 访问的元素个数
+	 * @see SortedSet#forEachByScore(RangeSpec, boolean, RecordVisitor)
+	 */
+	public int forEachByScore(RangeSpec range, boolean reverse, RecordVisitor visitor) {
+		synchronized (this) {
+			int node = reverse ? lastInRange(range) : firstInRange(range);
+			if (node == 0) {
+				return 0;
+			}
+
+			int visited = 0;
+			int r = getRank(score(node), key(node));
+			int rank = reverse ? this.length + 1 - r : r;
+			while (node != 0 && (reverse ? keyGteMin(score(node), range) : keyLteMax(score(node), range))) {
+				visited++;
+				if (!visitor.visit(rank++, key(node), score(node))) {
+					break;
+				}
+				node = reverse ? backward(node) : forward(node, 0);
+			}
+			return visited;
+		}
+	}
+}
@@ -0,0 +1,556 @@
+package me.chaopeng.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * OrderedExecutorMetrics - OrderedThreadPoolExecutor 的采样统计，可注册为JMX MBean
+ * <p/>
+ * 每 sampleRate 个任务随机采样一个，记录：
+ * <ul>
+ * <li>排队时间（execute 到开始执行，不包括 BLOCK 等待空间的时间）和执行时间的直方图</li>
+ * <li>加入时所在队列的排队数的直方图</li>
+ * <li>热点key：采样到的任务按key计数（Space-Saving，每条最多记录 {@link #HOT_KEY_CAPACITY} 个key），
+ * 乘以 sampleRate 为估算的任务数和执行时间</li>
+ * </ul>
+ * 另外每次执行一批任务、执行完一批后队列还有任务而重新调度都计数，不采样。
+ * <p/>
+ * 直方图按2的幂分段、每段4个桶，百分位误差不超过25%。计数按线程分条（ForkJoinWorkerThread 按 getPoolIndex，
+ * 其他线程按线程id），记录一次是一次几乎没有竞争的原子加。没有采样到的任务只多一次随机数，
+ * 采样到的任务多两次 System.nanoTime()；热点key每条一个，只锁自己这条，计数最小的key在最小堆的堆顶，
+ * 替换是 O(log K) 而不是扫一遍，读取时再把各条合并。
+ * <p/>
+ * 合并执行的 BatchRunable 按第一个任务记录。读取不加锁，读到的是各个计数在不同时刻的值。
+ *
+ * @author chao
+ * @see OrderedThreadPoolExecutor.Builder#metricsSampleRate(int)
+ */
+public final class OrderedExecutorMetrics implements OrderedExecutorMetricsMBean {
+
+	/**
+	 * 每条热点key最多记录的key数
+	 */
+	public static final int HOT_KEY_CAPACITY = 64;
+	private static final int JMX_TOP_N = 16;
+
+	/**
+	 * 0-3 各一个桶，之后 [2^e, 2^(e+1)) 分为4个桶，e 最大为62
+	 */
+	private static final int BUCKETS = 248;
+
+	/**
+	 * 每条：排队时间、执行时间、排队数三个直方图，批次数、重新调度数，最后填充到下一条
+	 */
+	private static final int WAIT = 0;
+	private static final int EXEC = BUCKETS;
+	private static final int DEPTH = BUCKETS * 2;
+	private static final int BATCHES = BUCKETS * 3;
+	private static final int RESCHEDULES = BUCKETS * 3 + 1;
+	private static final int STRIPE_SIZE = BUCKETS * 3 + 16;
+
+	private final OrderedThreadPoolExecutor executor;
+
+	private final int sampleRate;
+	private final int sampleMask;
+
+	private final int stripeMask;
+	private final AtomicLongArray stripes;
+
+	/**
+	 * 热点key，和 stripes 一样按线程分条
+	 */
+	private final HotKeySummary[] hotKeys;
+
+	private volatile ObjectName objectName;
+
+	OrderedExecutorMetrics(OrderedThreadPoolExecutor executor, int sampleRate, int parallelism) {
+		this.executor = executor;
+		this.sampleRate = sampleRate <= 1 ? 1 : Integer.highestOneBit(sampleRate - 1) << 1;
+		this.sampleMask = this.sampleRate - 1;
+		int n = Math.max(parallelism, Runtime.getRuntime().availableProcessors());
+		n = n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+		this.stripeMask = n - 1;
+		this.stripes = new AtomicLongArray(n * STRIPE_SIZE);
+		this.hotKeys = new HotKeySummary[n];
+		for (int i = 0; i < n; i++) {
+			this.hotKeys[i] = new HotKeySummary();
+		}
+	}
+
+	/**
+	 * 热点key
+	 */
+	public static final class HotKey {
+		private final Long key;
+		private long count;
+		private long error;
+		private long execNanos;
+
+		private HotKey(Long key) {
+			this.key = key;
+		}
+
+		private HotKey(HotKey other, int sampleRate) {
+			this.key = other.key;
+			this.count = other.count * sampleRate;
+			this.error = other.error * sampleRate;
+			this.execNanos = other.execNanos * sampleRate;
+		}
+
+		public Long getKey() {
+			return key;
+		}
+
+		/**
+		 * @return 估算的任务数
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return count 最多多估的任务数，key替换进来之前的计数
+		 */
+		public long getError() {
+			return error;
+		}
+
+		/**
+		 * @return 估算的执行时间之和
+		 */
+		public long getExecNanos() {
+			return execNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "key=" + key + ",count=" + count + ",execMicros=" + TimeUnit.NANOSECONDS.toMicros(execNanos);
+		}
+	}
+
+	/**
+	 * Space-Saving：满了之后新key替换计数最小的key，继承它的计数，count 最多多估 error
+	 * <p/>
+	 * 按 count 排成最小堆，计数只会增加，记录时只需要向下调整
+	 */
+	private static final class HotKeySummary {
+		private final Map<Long, Counter> index = new HashMap<>();
+		private final Counter[] heap = new Counter[HOT_KEY_CAPACITY];
+		private int size;
+
+		private static final class Counter {
+			private Long key;
+			private long count;
+			private long error;
+			private long execNanos;
+			private int pos;
+		}
+
+		private synchronized void add(Long key, long execNanos) {
+			Counter c = index.get(key);
+			if (c == null) {
+				if (size < heap.length) {
+					c = new Counter();
+					c.pos = size;
+					heap[size++] = c;
+				} else {
+					c = heap[0];
+					index.remove(c.key);
+				}
+				c.key = key;
+				c.error = c.count;
+				c.execNanos = 0;
+				index.put(key, c);
+				siftUp(c.pos);
+			}
+			++c.count;
+			c.execNanos += execNanos;
+			siftDown(c.pos);
+		}
+
+		/**
+		 * 合并到 res，res 中的 HotKey 还没有乘 sampleRate
+		 * <p/>
+		 * 满了的条里没有的key，计数最多是这条的最小计数，count 和 error 都加上它，count 仍然不会少估。
+		 * 这里先对有的key减去，调用方最后给所有key加上各条最小计数之和
+		 *
+		 * @return 这条的最小计数，没满时为0
+		 */
+		private synchronized long mergeTo(Map<Long, HotKey> res) {
+			long min = size == heap.length ? heap[0].count : 0;
+			for (int i = 0; i < size; i++) {
+				Counter c = heap[i];
+				HotKey hot = res.get(c.key);
+				if (hot == null) {
+					hot = new HotKey(c.key);
+					res.put(c.key, hot);
+				}
+				hot.count += c.count - min;
+				hot.error += c.error - min;
+				hot.execNanos += c.execNanos;
+			}
+			return min;
+		}
+
+		private synchronized void clear() {
+			index.clear();
+			Arrays.fill(heap, null);
+			size = 0;
+		}
+
+		private void siftUp(int pos) {
+			Counter c = heap[pos];
+			while (pos > 0) {
+				int parent = (pos - 1) >>> 1;
+				Counter p = heap[parent];
+				if (p.count <= c.count) {
+					break;
+				}
+				heap[pos] = p;
+				p.pos = pos;
+				pos = parent;
+			}
+			heap[pos] = c;
+			c.pos = pos;
+		}
+
+		private void siftDown(int pos) {
+			Counter c = heap[pos];
+			int half = size >>> 1;
+			while (pos < half) {
+				int child = (pos << 1) + 1;
+				int right = child + 1;
+				if (right < size && heap[right].count < heap[child].count) {
+					child = right;
+				}
+				Counter ch = heap[child];
+				if (c.count <= ch.count) {
+					break;
+				}
+				heap[pos] = ch;
+				ch.pos = pos;
+				pos = child;
+			}
+			heap[pos] = c;
+			c.pos = pos;
+		}
+	}
+
+	/**
+	 * @return 实际的采样率，向上取2的幂
+	 */
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * 是否采样这个任务
+	 */
+	boolean sample() {
+		return sampleMask == 0 || (ThreadLocalRandom.current().nextInt() & sampleMask) == 0;
+	}
+
+	/**
+	 * @param depth 加入后所在队列的排队数
+	 */
+	void recordEnqueue(int depth) {
+		stripes.getAndIncrement(stripe() + DEPTH + bucket(depth));
+	}
+
+	void recordTask(Long key, long waitNanos, long execNanos) {
+		int index = stripeIndex();
+		int base = index * STRIPE_SIZE;
+		stripes.getAndIncrement(base + WAIT + bucket(waitNanos));
+		stripes.getAndIncrement(base + EXEC + bucket(execNanos));
+		hotKeys[index].add(key, Math.max(execNanos, 0));
+	}
+
+	/**
+	 * @param rescheduled 执行完一批后队列还有任务，重新调度
+	 */
+	void recordBatch(boolean rescheduled) {
+		int base = stripe();
+		stripes.getAndIncrement(base + BATCHES);
+		if (rescheduled) {
+			stripes.getAndIncrement(base + RESCHEDULES);
+		}
+	}
+
+	private int stripe() {
+		return stripeIndex() * STRIPE_SIZE;
+	}
+
+	private int stripeIndex() {
+		Thread current = Thread.currentThread();
+		int index = current instanceof ForkJoinWorkerThread ? ((ForkJoinWorkerThread) current).getPoolIndex() : (int) current.getId();
+		return index & stripeMask;
+	}
+
+	static int bucket(long value) {
+		if (value < 4) {
+			return value <= 0 ? 0 : (int) value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		return ((exp - 1) << 2) + ((int) (value >>> (exp - 2)) & 3);
+	}
+
+	/**
+	 * @return 桶中最大的值
+	 */
+	static long upperBound(int bucket) {
+		if (bucket >= BUCKETS - 1) {
+			return Long.MAX_VALUE;
+		}
+		int next = bucket + 1;
+		if (next < 4) {
+			return bucket;
+		}
+		int exp = (next >> 2) + 1;
+		return ((4L + (next & 3)) << (exp - 2)) - 1;
+	}
+
+	private long sum(int offset) {
+		long sum = 0;
+		for (int base = 0; base < stripes.length(); base += STRIPE_SIZE) {
+			sum += stripes.get(base + offset);
+		}
+		return sum;
+	}
+
+	private long percentile(int histogram, double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = sum(histogram + i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * @param percentile 0-1，例如0.99
+	 * @return 排队时间的百分位，没有采样时为0
+	 */
+	public long getWaitNanos(double percentile) {
+		return percentile(WAIT, percentile);
+	}
+
+	/**
+	 * @param percentile 0-1，例如0.99
+	 * @return 执行时间的百分位，没有采样时为0
+	 */
+	public long getExecNanos(double percentile) {
+		return percentile(EXEC, percentile);
+	}
+
+	/**
+	 * @param percentile 0-1，例如0.99
+	 * @return 任务加入时所在队列的排队数（包括它自己）的百分位，没有采样时为0
+	 */
+	public long getQueueDepth(double percentile) {
+		return percentile(DEPTH, percentile);
+	}
+
+	/**
+	 * @return 采样到并执行完的任务数
+	 */
+	@Override
+	public long getSampledTasks() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += sum(EXEC + i);
+		}
+		return count;
+	}
+
+	/**
+	 * @return 执行了多少批任务（线程池调度一次队列执行一批）
+	 */
+	@Override
+	public long getBatchCount() {
+		return sum(BATCHES);
+	}
+
+	/**
+	 * @return 执行完一批后队列还有任务（超过 batchLimit 或 timeBudgetMicros）而重新调度的次数
+	 */
+	@Override
+	public long getRescheduleCount() {
+		return sum(RESCHEDULES);
+	}
+
+	/**
+	 * @param n 最多返回的个数
+	 * @return 估算任务数最多的n个key，从多到少
+	 */
+	public List<HotKey> getHotKeys(int n) {
+		Map<Long, HotKey> merged = new HashMap<>();
+		long min = 0;
+		for (HotKeySummary summary : hotKeys) {
+			min += summary.mergeTo(merged);
+		}
+		List<HotKey> res = new ArrayList<>(merged.size());
+		for (HotKey hot : merged.values()) {
+			hot.count += min;
+			hot.error += min;
+			res.add(new HotKey(hot, sampleRate));
+		}
+		Collections.sort(res, new Comparator<HotKey>() {
+			@Override
+			public int compare(HotKey o1, HotKey o2) {
+				return Long.compare(o2.count, o1.count);
+			}
+		});
+		return res.size() > n ? new ArrayList<>(res.subList(0, n)) : res;
+	}
+
+	/**
+	 * 清空直方图、计数和热点key
+	 */
+	@Override
+	public void reset() {
+		for (int i = 0; i < stripes.length(); i++) {
+			stripes.set(i, 0);
+		}
+		for (HotKeySummary summary : hotKeys) {
+			summary.clear();
+		}
+	}
+
+	/**
+	 * 注册到 platform MBeanServer，ObjectName 为 me.chaopeng.utils:type=OrderedThreadPoolExecutor,name="name"
+	 */
+	public void registerMBean(String name) {
+		try {
+			ObjectName objectName = new ObjectName("me.chaopeng.utils:type=OrderedThreadPoolExecutor,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			this.objectName = objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 没有注册时什么也不做，线程池 shutdown 后调用
+	 */
+	public void unregisterMBean() {
+		ObjectName objectName = this.objectName;
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			this.objectName = null;
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// 以下为JMX的属性
+
+	@Override
+	public long getWaitP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getWaitNanos(0.5));
+	}
+
+	@Override
+	public long getWaitP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getWaitNanos(0.99));
+	}
+
+	@Override
+	public long getWaitP999Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getWaitNanos(0.999));
+	}
+
+	@Override
+	public long getExecP50Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getExecNanos(0.5));
+	}
+
+	@Override
+	public long getExecP99Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getExecNanos(0.99));
+	}
+
+	@Override
+	public long getExecP999Micros() {
+		return TimeUnit.NANOSECONDS.toMicros(getExecNanos(0.999));
+	}
+
+	@Override
+	public long getQueueDepthP50() {
+		return getQueueDepth(0.5);
+	}
+
+	@Override
+	public long getQueueDepthP99() {
+		return getQueueDepth(0.99);
+	}
+
+	@Override
+	public int getPendingCount() {
+		return executor.getPendingCount();
+	}
+
+	@Override
+	public int getMailboxCount() {
+		return executor.getMailboxCount();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return executor.getRejectedCount();
+	}
+
+	@Override
+	public long getBlockedCount() {
+		return executor.getBlockedCount();
+	}
+
+	@Override
+	public String[] getHotKeys() {
+		List<HotKey> top = getHotKeys(JMX_TOP_N);
+		String[] res = new String[top.size()];
+		for (int i = 0; i < res.length; i++) {
+			res[i] = top.get(i).toString();
+		}
+		return res;
+	}
+
+	@Override
+	public String[] getDeepestQueues() {
+		Map<Long, Integer> top = executor.getDeepestQueues(JMX_TOP_N);
+		String[] res = new String[top.size()];
+		int i = 0;
+		for (Map.Entry<Long, Integer> e : top.entrySet()) {
+			res[i++] = e.getKey() + "=" + e.getValue();
+		}
+		return res;
+	}
+}
@@ -0,0 +1,57 @@
+package me.chaopeng.utils;
+
+/**
+ * OrderedExecutorMetrics 的JMX接口，时间单位为微秒，百分位为所在桶的上界
+ *
+ * @author chao
+ * @see OrderedExecutorMetrics#registerMBean(String)
+ */
+public interface OrderedExecutorMetricsMBean {
+
+	int getSampleRate();
+
+	long getSampledTasks();
+
+	long getWaitP50Micros();
+
+	long getWaitP99Micros();
+
+	long getWaitP999Micros();
+
+	long getExecP50Micros();
+
+	long getExecP99Micros();
+
+	long getExecP999Micros();
+
+	/**
+	 * @return 任务加入时所在队列的排队数（包括它自己）的中位数
+	 */
+	long getQueueDepthP50();
+
+	long getQueueDepthP99();
+
+	long getBatchCount();
+
+	long getRescheduleCount();
+
+	int getPendingCount();
+
+	int getMailboxCount();
+
+	long getRejectedCount();
+
+	long getBlockedCount();
+
+	/**
+	 * @return 估算任务数最多的key，"key=...,count=...,execMicros=..."
+	 */
+	String[] getHotKeys();
+
+	/**
+	 * @return 当前排队最多的队列，"key=排队数"，没有perKeyMailbox时key为executor的序号
+	 */
+	String[] getDeepestQueues();
+
+	void reset();
+}
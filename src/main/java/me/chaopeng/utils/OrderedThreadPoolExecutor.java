@@ -1,28 +1,69 @@
 package me.chaopeng.utils;
 
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * OrderedThreadPoolExecutor是参考netty3的OrderedMemoryAwareThreadPoolExecutor实现的有序线程池，<b>没有MemoryAware的实现</b>
+ * OrderedThreadPoolExecutor是参考netty3的OrderedMemoryAwareThreadPoolExecutor实现的有序线程池
  * <p/>
  * <ul>
  * <li>线程池会确保相同key的Runable按照execute的顺序执行</li>
  * <li>线程池不会会确保相同的key的Runable按照始终在同一个线程内执行</li>
  * <li>线程池不会会确保不同的key的Runable按照execute的顺序执行</li>
- * <li>如果某个相同key的Runable很多，会导致线程池内执行该key的线程长时间被占用</li>
- * <li>同时间过多的task可能导致内存泄露！！！此处可能会被利用做hash攻击！！！</li>
+ * <li>如果某个相同key的Runable很多，会导致线程池内执行该key的线程长时间被占用；
+ * 每次最多执行 batchLimit 个任务，或者用 {@link Builder#timeBudgetMicros(long)} 按执行时间限制，
+ * 并用 {@link KeyWeigher} 给不同的key不同的时间；热点key一直重新调度时，用 {@link Builder#fairReschedule(boolean)} 让其他队列轮流执行</li>
+ * <li>默认不限制排队的任务数，同时间过多的task可能导致内存泄露！！！此处可能会被利用做hash攻击！！！
+ * 通过 {@link Builder} 设置每个key和全局的排队任务数/字节数上限，满了之后按 {@link RejectPolicy} 处理</li>
+ * <li>{@link BatchRunable} 执行时会把队列里同key、可合并的任务一起取出，合并成一次调用，见 {@link CoalescingRunable}</li>
+ * <li>默认 key 按 key % numOfExecutor 分到固定数量的队列，分到同一个队列的不同key互相排队；
+ * {@link Builder#perKeyMailbox(boolean)} 后每个活跃的key有自己的队列（mailbox），
+ * 按需创建，队列为空后回收，不同的key互不阻塞</li>
+ * <li>{@link Builder#affinity(boolean)} 后，队列由上次执行它的线程重新调度时放入该线程的本地队列，
+ * 热点key尽量留在同一个线程上，该线程忙时仍然可以被空闲的线程偷走</li>
+ * <li>{@link Builder#scheduler(Executor)} 后队列不在ForkJoinPool中执行，而是交给指定的Executor，
+ * 例如JDK21的虚拟线程（chaosutils-java21.jar 的 VirtualThreadOrderedExecutors），任务阻塞时不会占住线程池的线程</li>
+ * <li>{@link Builder#metricsSampleRate(int)} 后采样统计排队时间、执行时间、队列深度和热点key，
+ * 见 {@link #getMetrics()}，可以注册为JMX MBean</li>
+ * <li>需要结果时用 {@link #submit(Long, Callable)}，返回在该key的队列中完成的 ListenableFuture，不需要阻塞等待；
+ * {@link #submit(Long, ListenableFuture, Function)} 把依赖上一步结果的下一步一次提交，同key的下一步立即排队</li>
  * </ul>
  *
  * @author chao
  * @see OrderedRunable
+ * @see BatchRunable
+ * @see Builder
  */
 public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 
@@ -32,15 +73,147 @@ public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 	private final static int DEFAULT_BATCH_LIMIT = 5;
 
 	/**
-	 * executors
+	 * 合并 BatchRunable 时最多向后查看的任务数，避免队列很长时每次合并都扫全队列
+	 */
+	private final static int MAX_BATCH_SCAN = 1024;
+
+	/**
+	 * 阻塞等待时每次最多等待的时间，防止错过唤醒
+	 */
+	private final static long MAX_WAIT_MILLIS = 10;
+
+	/**
+	 * affinity 时连续放入本地队列的最多次数，之后放回公共队列一次。
+	 * ForkJoinWorkerThread 会一直执行本地队列直到为空，不限制的话热点key会让该线程不再处理公共队列
+	 */
+	private final static int MAX_LOCAL_FORKS = 16;
+
+	/**
+	 * 按时间限制时一次最多执行的任务数，以及每执行多少个任务看一次时间
+	 */
+	private final static int MAX_ADAPTIVE_BATCH = 4096;
+	private final static int CLOCK_CHECK_MASK = 15;
+
+	/**
+	 * 默认每个任务按64字节估算
+	 */
+	public final static SizeEstimator FIXED_SIZE_ESTIMATOR = new SizeEstimator() {
+		@Override
+		public int estimateSize(OrderedRunable task) {
+			return 64;
+		}
+	};
+
+	/**
+	 * 排队已满时的处理策略
+	 */
+	public enum RejectPolicy {
+		/**
+		 * 抛出 RejectedExecutionException
+		 */
+		ABORT,
+		/**
+		 * 阻塞调用者直到有空间，超过 blockTimeoutMillis 抛出 RejectedExecutionException
+		 */
+		BLOCK,
+		/**
+		 * 调用者帮忙执行该key队列中的任务（仍然按顺序），腾出空间后再加入；
+		 * 队列是空的（全局上限已满）时和 BLOCK 一样等待
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * 设置了 timeBudgetMicros 后，每次执行的时间为 timeBudgetMicros * weight
+	 */
+	public interface KeyWeigher {
+		/**
+		 * @param key 队列中第一个任务的key
+		 * @return 权重，至少为1
+		 */
+		int weight(Long key);
+	}
+
+	/**
+	 * 估算任务占用的内存，同一个任务多次调用需要返回相同的值
+	 */
+	public interface SizeEstimator {
+		int estimateSize(OrderedRunable task);
+	}
+
+	/**
+	 * executors，perKeyMailbox 时为null
 	 */
 	private final ChildExecutor[] childExecutors;
 
+	/**
+	 * 每个活跃key的mailbox，没有perKeyMailbox时为null
+	 */
+	private final ConcurrentHashMap<Long, ChildExecutor> mailboxes;
+
 	/**
 	 * the limit of batch process tasks
 	 */
 	private final int batchLimit;
 
+	/**
+	 * 排队上限，0为不限制，排队的任务包括正在执行的任务
+	 */
+	private final int maxPendingPerKey;
+	private final long maxPendingBytesPerKey;
+	private final int maxPending;
+	private final long maxPendingBytes;
+
+	private final RejectPolicy rejectPolicy;
+	private final long blockTimeoutMillis;
+	private final SizeEstimator sizeEstimator;
+
+	/**
+	 * 有字节上限时才估算任务大小，有全局上限时才维护全局计数
+	 */
+	private final boolean measureBytes;
+	private final boolean countGlobal;
+
+	private final boolean affinity;
+
+	/**
+	 * 线程池内重新调度时先让一个外部提交的队列执行
+	 */
+	private final boolean fairReschedule;
+
+	/**
+	 * 0为按 batchLimit 限制
+	 */
+	private final long timeBudgetNanos;
+	private final KeyWeigher keyWeigher;
+
+	/**
+	 * 不为null时队列在这里执行，不使用ForkJoinPool的线程
+	 */
+	private final Executor scheduler;
+
+	/**
+	 * 没有开启统计时为null
+	 */
+	private final OrderedExecutorMetrics metrics;
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong blockedCount = new AtomicLong();
+
+	/**
+	 * 等待空间的调用者在此等待，任务执行完后有等待者才唤醒。
+	 * 不用synchronized/wait，JDK21的虚拟线程在里面等待会占住载体线程
+	 */
+	private final ReentrantLock spaceLock = new ReentrantLock();
+	private final Condition spaceAvailable = spaceLock.newCondition();
+	private final AtomicInteger waiters = new AtomicInteger();
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
 	/**
 	 * 类似于 Executors.newFiexedThreadPool() 永远保持一定的线程池大小
 	 *
@@ -60,35 +233,54 @@ public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 	 * @return OrderedThreadPoolExecutor
 	 */
 	public static OrderedThreadPoolExecutor newFixesOrderedThreadPool(int corePoolSize, int numOfExecutor, int batchLimit) {
-		logger.info("!!! init " + corePoolSize + " core OrderedThreadPoolExecutor");
-		return new OrderedThreadPoolExecutor(
-				corePoolSize, numOfExecutor, batchLimit
-		);
+		return builder().corePoolSize(corePoolSize).numOfExecutor(numOfExecutor).batchLimit(batchLimit).build();
 	}
 
 	/**
 	 * Creates a new instance.
-	 *
-	 * @param numOfExecutor the number of executor
-	 * @param batchLimit    the limit of batch process tasks
 	 */
-	private OrderedThreadPoolExecutor(int corePoolSize, int numOfExecutor, int batchLimit) {
+	private OrderedThreadPoolExecutor(Builder builder) {
 
-		super(corePoolSize, ForkJoinPool.defaultForkJoinWorkerThreadFactory, new Thread.UncaughtExceptionHandler() {
+		super(builder.corePoolSize, ForkJoinPool.defaultForkJoinWorkerThreadFactory, new Thread.UncaughtExceptionHandler() {
 			@Override
 			public void uncaughtException(Thread t, Throwable e) {
 				logger.error(e.getMessage(), e);
 			}
 		}, true);
 
-		this.childExecutors = new ChildExecutor[numOfExecutor];
-		for (int i = 0; i < this.childExecutors.length; ++i) {
-			this.childExecutors[i] = new ChildExecutor(i);
+		if (builder.perKeyMailbox) {
+			this.childExecutors = null;
+			this.mailboxes = new ConcurrentHashMap<>();
+		} else {
+			this.childExecutors = new ChildExecutor[builder.numOfExecutor];
+			for (int i = 0; i < this.childExecutors.length; ++i) {
+				this.childExecutors[i] = new ChildExecutor(i, null);
+			}
+			this.mailboxes = null;
 		}
 
-		this.batchLimit = batchLimit;
+		this.batchLimit = builder.batchLimit;
+		this.maxPendingPerKey = builder.maxPendingPerKey;
+		this.maxPendingBytesPerKey = builder.maxPendingBytesPerKey;
+		this.maxPending = builder.maxPending;
+		this.maxPendingBytes = builder.maxPendingBytes;
+		this.rejectPolicy = builder.rejectPolicy;
+		this.blockTimeoutMillis = builder.blockTimeoutMillis;
+		this.sizeEstimator = builder.sizeEstimator;
+		this.measureBytes = maxPendingBytesPerKey > 0 || maxPendingBytes > 0;
+		this.countGlobal = maxPending > 0 || maxPendingBytes > 0;
+		this.affinity = builder.affinity;
+		this.fairReschedule = builder.fairReschedule || builder.affinity || builder.timeBudgetMicros > 0;
+		this.timeBudgetNanos = TimeUnit.MICROSECONDS.toNanos(builder.timeBudgetMicros);
+		this.keyWeigher = builder.keyWeigher;
+		this.scheduler = builder.scheduler;
+		this.metrics = builder.metricsSampleRate > 0 ? new OrderedExecutorMetrics(this, builder.metricsSampleRate, builder.corePoolSize) : null;
 	}
 
+	/**
+	 * @throws RejectedExecutionException task 不是 OrderedRunable，或者排队已满
+	 * @throws IllegalStateException task 还在队列中
+	 */
 	@Override
 	public void execute(Runnable task) {
 		if (task instanceof OrderedRunable) {
@@ -99,25 +291,619 @@ public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 	}
 
 	private void doExecute(OrderedRunable task) {
-		getChildExecutor(task.key).execute(task);
+		if (scheduler != null && isShutdown()) {
+			throw new RejectedExecutionException("OrderedThreadPoolExecutor has been shutdown");
+		}
+		// 修改 estimatedSize 等字段之前检查，还在队列中的任务释放时要用
+		if (task.isQueued()) {
+			throw new IllegalStateException(task + " is already queued");
+		}
+		task.estimatedSize = measureBytes ? sizeEstimator.estimateSize(task) : 0;
+		ChildExecutor child = reserve(task);
+		if (child == null) {
+			child = awaitCapacity(task);
+		}
+		// 每次都重新赋值，再次 execute 的任务不能沿用上一次的采样
+		task.sampled = metrics != null && metrics.sample();
+		if (task.sampled) {
+			metrics.recordEnqueue(child.pendingCount.get());
+			task.enqueueNanos = System.nanoTime();
+		}
+		try {
+			child.execute(task);
+		} catch (IllegalStateException e) {
+			// 其他线程同时 execute 了同一个任务
+			release(child, task);
+			throw e;
+		}
 	}
 
+	/**
+	 * 只有把 isRunning 从 false 改为 true 的线程调用
+	 */
 	private void doUnorderedExecute(ChildExecutor runnable) {
+		if (scheduler != null) {
+			scheduler.execute(runnable);
+			return;
+		}
+
+		Thread current = Thread.currentThread();
+		if (current instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) current).getPool() == this) {
+			// 线程池内调度时（JDK7、JDK9+ 的 execute 以及 fork）会放入当前线程的本地队列，
+			// 而线程会一直执行本地队列直到为空，热点key会让外部提交的队列一直等待。
+			// 先取一个外部提交的放到本地队列前面（asyncMode，先进先出），保证轮流执行
+			if (fairReschedule) {
+				ForkJoinTask<?> waiting = pollSubmission();
+				if (waiting != null) {
+					waiting.fork();
+				}
+			}
+
+			if (affinity && runnable.lastConsumer == current && runnable.localForks < MAX_LOCAL_FORKS) {
+				++runnable.localForks;
+				ForkJoinTask.adapt(runnable).fork();
+				return;
+			}
+		}
+		runnable.localForks = 0;
 		super.execute(runnable);
 	}
 
+	/**
+	 * 提交有结果的任务，和 execute 一样按key排队，排队已满时按 rejectPolicy 处理
+	 * <p/>
+	 * future 在该key的队列中完成，用 directExecutor 的listener也在该key的队列中执行，不要在里面阻塞。
+	 * cancel 后还没有开始执行的任务不再执行，已经开始的不会被中断
+	 *
+	 * @return task的返回值或抛出的异常
+	 * @throws RejectedExecutionException 排队已满或已经shutdown
+	 */
+	public <T> ListenableFuture<T> submit(Long key, Callable<T> task) {
+		FutureRunable<Object, T> runable = new FutureRunable<>(this, key, task, null, null);
+		enqueue(runable);
+		return runable.future;
+	}
+
+	/**
+	 * 流水线：input 完成后在key的队列中执行 stage，调用者不阻塞，可以一次提交多步
+	 * <ul>
+	 * <li>input 是本线程池同一个key的 submit 返回的，或者已经完成时，stage 立即排队，
+	 * 排在之后提交的同key任务前面；同key的顺序保证执行 stage 时 input 已经完成</li>
+	 * <li>其他情况在 input 完成时才排队，不会占住key的队列等待</li>
+	 * <li>input 失败或被cancel时，stage 不执行，返回的 future 以同样的原因结束</li>
+	 * </ul>
+	 * input 完成后才排队时，排队已满等 RejectedExecutionException 设置到返回的 future 中；
+	 * BLOCK 和 CALLER_RUNS 会在完成 input 的线程中等待或执行
+	 *
+	 * @param input 上一步的结果
+	 * @param stage 下一步
+	 * @throws RejectedExecutionException 立即排队时排队已满或已经shutdown
+	 */
+	public <I, O> ListenableFuture<O> submit(Long key, final ListenableFuture<I> input, Function<? super I, ? extends O> stage) {
+		final FutureRunable<I, O> runable = new FutureRunable<>(this, key, null, input, stage);
+		if (input.isDone() || (input instanceof OrderedFuture && ((OrderedFuture<?>) input).isQueuedBefore(this, key))) {
+			enqueue(runable);
+			return runable.future;
+		}
+
+		input.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					enqueue(runable);
+				} catch (RejectedExecutionException e) {
+					runable.future.setException(e);
+				}
+			}
+		}, MoreExecutors.directExecutor());
+		return runable.future;
+	}
+
+	private void enqueue(FutureRunable<?, ?> runable) {
+		doExecute(runable);
+		// 加入队列之后才能让同key的下一步立即排队，否则下一步会排在它前面等待它
+		runable.future.queued = true;
+	}
+
 	private ChildExecutor getChildExecutor(Long key) {
-		return childExecutors[(int) (key % childExecutors.length)];
+		if (mailboxes == null) {
+			int index = (int) (key % childExecutors.length);
+			return childExecutors[index < 0 ? index + childExecutors.length : index];
+		}
+
+		ChildExecutor child = mailboxes.get(key);
+		if (child == null) {
+			ChildExecutor created = new ChildExecutor(-1, key);
+			child = mailboxes.putIfAbsent(key, created);
+			if (child == null) {
+				child = created;
+			}
+		}
+		return child;
+	}
+
+	/**
+	 * 只查找不创建mailbox
+	 *
+	 * @return key所在的队列，perKeyMailbox时key没有mailbox为null
+	 */
+	private ChildExecutor peekChildExecutor(Long key) {
+		return mailboxes == null ? getChildExecutor(key) : mailboxes.get(key);
+	}
+
+	/**
+	 * 在task的key所在的队列占用排队空间
+	 *
+	 * @return 占用成功的队列，已满时为null
+	 */
+	private ChildExecutor reserve(OrderedRunable task) {
+		for (; ; ) {
+			ChildExecutor child = getChildExecutor(task.key);
+			if (tryReserve(child, task.estimatedSize)) {
+				return child;
+			}
+			if (!child.isDead()) {
+				return null;
+			}
+			// mailbox 刚被回收，换一个新的
+			mailboxes.remove(task.key, child);
+		}
+	}
+
+	/**
+	 * 占用排队空间，超过上限或mailbox已被回收时失败
+	 * <p/>
+	 * 单个任务超过字节上限时，只在队列为空时接受，否则永远加不进去
+	 */
+	private boolean tryReserve(ChildExecutor child, int size) {
+		int count;
+		for (; ; ) {
+			count = child.pendingCount.get();
+			if (count < 0 || (maxPendingPerKey > 0 && count >= maxPendingPerKey)) {
+				return false;
+			}
+			if (child.pendingCount.compareAndSet(count, count + 1)) {
+				++count;
+				break;
+			}
+		}
+
+		long bytes = child.pendingBytes.addAndGet(size);
+		boolean ok = (maxPendingPerKey <= 0 || count <= maxPendingPerKey)
+				&& (maxPendingBytesPerKey <= 0 || bytes <= maxPendingBytesPerKey || count == 1);
+
+		if (ok && countGlobal) {
+			int total = pendingCount.incrementAndGet();
+			long totalBytes = pendingBytes.addAndGet(size);
+			if ((maxPending > 0 && total > maxPending)
+					|| (maxPendingBytes > 0 && totalBytes > maxPendingBytes && total > 1)) {
+				pendingCount.decrementAndGet();
+				pendingBytes.addAndGet(-size);
+				ok = false;
+			}
+		}
+
+		if (!ok) {
+			child.pendingBytes.addAndGet(-size);
+			child.decrementPending();
+		}
+		return ok;
+	}
+
+	/**
+	 * 任务执行完后释放排队空间，被合并执行的任务在出队时才释放
+	 */
+	private void release(ChildExecutor child, OrderedRunable task) {
+		child.pendingBytes.addAndGet(-task.estimatedSize);
+		child.decrementPending();
+		if (countGlobal) {
+			pendingCount.decrementAndGet();
+			pendingBytes.addAndGet(-task.estimatedSize);
+		}
+		if (waiters.get() > 0) {
+			spaceLock.lock();
+			try {
+				spaceAvailable.signalAll();
+			} finally {
+				spaceLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 排队已满，按 rejectPolicy 处理
+	 *
+	 * @return 已经占用了空间的队列
+	 */
+	private ChildExecutor awaitCapacity(OrderedRunable task) {
+		if (rejectPolicy == RejectPolicy.ABORT) {
+			throw rejected(task, "queue is full");
+		}
+		// 该key的任务中再提交同一个executor的任务，等待只会死锁
+		ChildExecutor child = peekChildExecutor(task.key);
+		if (child != null && child.consumer == Thread.currentThread()) {
+			throw rejected(task, "queue is full and the caller is its consumer");
+		}
+
+		blockedCount.incrementAndGet();
+		CapacityBlocker blocker = new CapacityBlocker(task);
+		try {
+			// 在线程池内阻塞时让ForkJoinPool补偿线程
+			ForkJoinPool.managedBlock(blocker);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw rejected(task, "interrupted");
+		}
+		if (blocker.reserved == null) {
+			throw rejected(task, "timeout after " + blockTimeoutMillis + "ms");
+		}
+		return blocker.reserved;
+	}
+
+	private RejectedExecutionException rejected(OrderedRunable task, String reason) {
+		rejectedCount.incrementAndGet();
+		return new RejectedExecutionException(task + " rejected: " + reason);
+	}
+
+	/**
+	 * @return 排队（包括正在执行）的任务数
+	 */
+	public int getPendingCount() {
+		if (countGlobal) {
+			return pendingCount.get();
+		}
+		int count = 0;
+		for (ChildExecutor child : mailboxes == null ? Arrays.asList(childExecutors) : mailboxes.values()) {
+			count += Math.max(child.pendingCount.get(), 0);
+		}
+		return count;
+	}
+
+	/**
+	 * @return 排队（包括正在执行）的任务估算字节数，没有设置字节上限时为0
+	 */
+	public long getPendingBytes() {
+		if (countGlobal) {
+			return pendingBytes.get();
+		}
+		long bytes = 0;
+		for (ChildExecutor child : mailboxes == null ? Arrays.asList(childExecutors) : mailboxes.values()) {
+			bytes += child.pendingBytes.get();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return key所在队列排队（包括正在执行）的任务数
+	 */
+	public int getPendingCount(Long key) {
+		ChildExecutor child = peekChildExecutor(key);
+		return child == null ? 0 : Math.max(child.pendingCount.get(), 0);
+	}
+
+	/**
+	 * @return perKeyMailbox 时当前活跃的mailbox数，否则为numOfExecutor
+	 */
+	public int getMailboxCount() {
+		return mailboxes == null ? childExecutors.length : mailboxes.size();
+	}
+
+	/**
+	 * @param n 最多返回的个数
+	 * @return 排队（包括正在执行）最多的n个队列，从多到少；perKeyMailbox 时为 key -&gt; 排队数，否则为 executor的序号 -&gt; 排队数
+	 */
+	public Map<Long, Integer> getDeepestQueues(int n) {
+		List<Map.Entry<Long, Integer>> queues = new ArrayList<>();
+		for (ChildExecutor child : mailboxes == null ? Arrays.asList(childExecutors) : mailboxes.values()) {
+			int count = child.pendingCount.get();
+			if (count > 0) {
+				queues.add(new AbstractMap.SimpleImmutableEntry<>(child.key != null ? child.key : (long) child.executorId, count));
+			}
+		}
+		Collections.sort(queues, new Comparator<Map.Entry<Long, Integer>>() {
+			@Override
+			public int compare(Map.Entry<Long, Integer> o1, Map.Entry<Long, Integer> o2) {
+				return Integer.compare(o2.getValue(), o1.getValue());
+			}
+		});
+
+		Map<Long, Integer> res = new LinkedHashMap<>();
+		for (int i = 0; i < queues.size() && i < n; i++) {
+			res.put(queues.get(i).getKey(), queues.get(i).getValue());
+		}
+		return res;
+	}
+
+	/**
+	 * @return 采样统计，没有设置 metricsSampleRate 时为null
+	 */
+	public OrderedExecutorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return 因为排队已满被拒绝的任务数
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return 因为排队已满阻塞（或帮忙执行）的次数
+	 */
+	public long getBlockedCount() {
+		return blockedCount.get();
+	}
+
+	/**
+	 * 构造 OrderedThreadPoolExecutor，默认不限制排队
+	 */
+	public static final class Builder {
+		private int corePoolSize = Runtime.getRuntime().availableProcessors();
+		private int numOfExecutor = DEFAULT_NUM_EXECUTOR;
+		private int batchLimit = DEFAULT_BATCH_LIMIT;
+		private int maxPendingPerKey;
+		private long maxPendingBytesPerKey;
+		private int maxPending;
+		private long maxPendingBytes;
+		private RejectPolicy rejectPolicy = RejectPolicy.ABORT;
+		private long blockTimeoutMillis;
+		private SizeEstimator sizeEstimator = FIXED_SIZE_ESTIMATOR;
+		private boolean perKeyMailbox = false;
+		private boolean affinity = false;
+		private boolean fairReschedule = false;
+		private long timeBudgetMicros = 0;
+		private KeyWeigher keyWeigher = null;
+		private Executor scheduler = null;
+		private int metricsSampleRate = 0;
+
+		private Builder() {
+		}
+
+		/**
+		 * @param corePoolSize 线程池大小
+		 */
+		public Builder corePoolSize(int corePoolSize) {
+			this.corePoolSize = corePoolSize;
+			return this;
+		}
+
+		/**
+		 * @param numOfExecutor executor的数量
+		 */
+		public Builder numOfExecutor(int numOfExecutor) {
+			this.numOfExecutor = numOfExecutor;
+			return this;
+		}
+
+		/**
+		 * @param batchLimit 批量执行任务，保证executor的公平性
+		 */
+		public Builder batchLimit(int batchLimit) {
+			this.batchLimit = batchLimit;
+			return this;
+		}
+
+		/**
+		 * @param maxPendingPerKey 每个key最多排队的任务数，0为不限制。没有perKeyMailbox时 key % numOfExecutor 相同的key共用这个上限
+		 */
+		public Builder maxPendingPerKey(int maxPendingPerKey) {
+			this.maxPendingPerKey = maxPendingPerKey;
+			return this;
+		}
+
+		/**
+		 * @param maxPendingBytesPerKey 每个key最多排队的字节数，0为不限制
+		 */
+		public Builder maxPendingBytesPerKey(long maxPendingBytesPerKey) {
+			this.maxPendingBytesPerKey = maxPendingBytesPerKey;
+			return this;
+		}
+
+		/**
+		 * @param maxPending 全部最多排队的任务数，0为不限制
+		 */
+		public Builder maxPending(int maxPending) {
+			this.maxPending = maxPending;
+			return this;
+		}
+
+		/**
+		 * @param maxPendingBytes 全部最多排队的字节数，0为不限制
+		 */
+		public Builder maxPendingBytes(long maxPendingBytes) {
+			this.maxPendingBytes = maxPendingBytes;
+			return this;
+		}
+
+		/**
+		 * @param rejectPolicy 排队已满时的处理策略，默认 ABORT
+		 */
+		public Builder rejectPolicy(RejectPolicy rejectPolicy) {
+			this.rejectPolicy = rejectPolicy;
+			return this;
+		}
+
+		/**
+		 * @param blockTimeoutMillis BLOCK/CALLER_RUNS 最多等待的时间，0为一直等待
+		 */
+		public Builder blockTimeoutMillis(long blockTimeoutMillis) {
+			this.blockTimeoutMillis = blockTimeoutMillis;
+			return this;
+		}
+
+		/**
+		 * @param sizeEstimator 估算任务大小，默认 {@link #FIXED_SIZE_ESTIMATOR}
+		 */
+		public Builder sizeEstimator(SizeEstimator sizeEstimator) {
+			this.sizeEstimator = sizeEstimator;
+			return this;
+		}
+
+		/**
+		 * @param perKeyMailbox true=每个活跃的key一个队列，按需创建，空闲时回收，numOfExecutor不再使用
+		 */
+		public Builder perKeyMailbox(boolean perKeyMailbox) {
+			this.perKeyMailbox = perKeyMailbox;
+			return this;
+		}
+
+		/**
+		 * @param affinity true=队列尽量在上次执行它的线程上继续执行
+		 */
+		public Builder affinity(boolean affinity) {
+			this.affinity = affinity;
+			return this;
+		}
+
+		/**
+		 * 队列执行完一批后在线程池内重新调度时，会进入当前线程的本地队列并被它继续执行，
+		 * 线程池外 execute 的队列可能一直等待。开启后每次重新调度先把一个外部提交的队列放到本地队列前面，轮流执行。
+		 * 设置了 affinity 或 timeBudgetMicros 时自动开启
+		 *
+		 * @param fairReschedule true=重新调度时让外部提交的队列先执行，默认false
+		 */
+		public Builder fairReschedule(boolean fairReschedule) {
+			this.fairReschedule = fairReschedule;
+			return this;
+		}
+
+		/**
+		 * 按时间而不是任务数限制每次执行：根据该队列任务执行时间的移动平均估算本次执行的任务数，
+		 * 执行中超时也会停止。小任务一次执行更多，减少调度开销；大任务一次执行更少，不会让其他key等太久
+		 *
+		 * @param timeBudgetMicros 每次执行的时间，0为按 batchLimit 限制；还没有估算时按 batchLimit 执行
+		 */
+		public Builder timeBudgetMicros(long timeBudgetMicros) {
+			this.timeBudgetMicros = timeBudgetMicros;
+			return this;
+		}
+
+		/**
+		 * @param keyWeigher 设置了 timeBudgetMicros 时，不同key的执行时间的权重，默认都为1
+		 */
+		public Builder keyWeigher(KeyWeigher keyWeigher) {
+			this.keyWeigher = keyWeigher;
+			return this;
+		}
+
+		/**
+		 * 队列交给scheduler执行，每次执行一批任务（batchLimit 或 timeBudgetMicros），执行完如果还有任务会再次提交。
+		 * ForkJoinPool的线程不再使用，affinity无效；shutdown后不再接受任务，scheduler由调用者关闭
+		 *
+		 * @param scheduler 例如每个任务一个虚拟线程的Executor
+		 */
+		public Builder scheduler(Executor scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * 采样统计排队时间、执行时间、队列深度和热点key，见 {@link OrderedExecutorMetrics}。
+		 * 采样率越大开销越小，线上建议64以上
+		 *
+		 * @param metricsSampleRate 每多少个任务采样一个，向上取2的幂；0为不统计（默认），1为每个任务都统计
+		 */
+		public Builder metricsSampleRate(int metricsSampleRate) {
+			this.metricsSampleRate = metricsSampleRate;
+			return this;
+		}
+
+		public OrderedThreadPoolExecutor build() {
+			if (corePoolSize <= 0 || numOfExecutor <= 0 || batchLimit <= 0 || timeBudgetMicros < 0 || metricsSampleRate < 0) {
+				throw new IllegalArgumentException("corePoolSize, numOfExecutor and batchLimit must be positive");
+			}
+			if (rejectPolicy == null || sizeEstimator == null) {
+				throw new NullPointerException();
+			}
+			logger.info("!!! init " + corePoolSize + " core OrderedThreadPoolExecutor");
+			return new OrderedThreadPoolExecutor(this);
+		}
+	}
+
+	/**
+	 * 等待排队空间，CALLER_RUNS 时先帮忙执行该key的任务
+	 */
+	private final class CapacityBlocker implements ManagedBlocker {
+		private final OrderedRunable task;
+		private final long deadline;
+
+		/**
+		 * 占用成功的队列
+		 */
+		private ChildExecutor reserved = null;
+
+		CapacityBlocker(OrderedRunable task) {
+			this.task = task;
+			this.deadline = blockTimeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis) : 0;
+		}
+
+		private boolean timeout() {
+			return blockTimeoutMillis > 0 && System.nanoTime() - deadline >= 0;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			if (reserved == null) {
+				reserved = reserve(task);
+			}
+			return reserved != null || timeout();
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			if (rejectPolicy == RejectPolicy.CALLER_RUNS) {
+				ChildExecutor child = peekChildExecutor(task.key);
+				if (child != null && child.drain(false) > 0) {
+					return isReleasable();
+				}
+			}
+
+			spaceLock.lock();
+			waiters.incrementAndGet();
+			try {
+				if (!isReleasable()) {
+					long wait = MAX_WAIT_MILLIS;
+					if (blockTimeoutMillis > 0) {
+						wait = Math.min(wait, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1);
+					}
+					spaceAvailable.await(wait, TimeUnit.MILLISECONDS);
+				}
+			} finally {
+				waiters.decrementAndGet();
+				spaceLock.unlock();
+			}
+			return isReleasable();
+		}
 	}
 
 	/**
 	 * Runable Task for OrderedThreadPoolExecutor
+	 * <p/>
+	 * 任务本身就是队列的节点，还在队列中（包括被合并执行、还没有出队的 BatchRunable）时
+	 * 再次 execute 同一个对象抛出 IllegalStateException；开始执行后可以再次 execute，例如在 run 中重试
 	 *
 	 * @see OrderedThreadPoolExecutor
 	 */
-	public abstract static class OrderedRunable implements Runnable {
+	public abstract static class OrderedRunable extends MpscLinkedQueue.Node implements Runnable {
 		protected Long key;
 
+		/**
+		 * 加入队列时估算的大小，释放时使用
+		 */
+		private int estimatedSize;
+
+		/**
+		 * 已经被合并执行，还留在队列中，出队时跳过。只有消费者访问
+		 */
+		private boolean merged;
+
+		/**
+		 * 被采样统计时加入队列的时间
+		 */
+		private boolean sampled;
+		private long enqueueNanos;
+
 		public OrderedRunable(Long key) {
 			this.key = key;
 		}
@@ -130,22 +916,234 @@ public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 		}
 	}
 
+	/**
+	 * 可以批量执行的任务
+	 * <p/>
+	 * 执行到一个 BatchRunable 时，会从队列中把后面同key、{@link #canMergeWith} 的任务一并取出，
+	 * 按 execute 的顺序交给第一个任务的 {@link #runBatch} 一次处理，例如合并成一次DB写。
+	 * <ul>
+	 * <li>遇到同key但不能合并的任务即停止，所以同key的任务仍然按 execute 的顺序生效</li>
+	 * <li>合并时只会越过其他key的任务</li>
+	 * <li>一批最多 {@link #maxBatchSize()} 个，算作 batchLimit 中的一次</li>
+	 * <li>batch 中除第一个以外的任务 runBatch 返回后才出队，出队时才释放排队空间（maxPending 等仍然算上它们），
+	 * runBatch 中重试需要新建任务，不能再次 execute 它们</li>
+	 * </ul>
+	 *
+	 * @param <T> 具体的任务类型
+	 */
+	public abstract static class BatchRunable<T extends BatchRunable<T>> extends OrderedRunable {
+
+		private static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+		public BatchRunable(Long key) {
+			super(key);
+		}
+
+		/**
+		 * 能否与后面的同key任务合并，默认同一个类就可以合并
+		 *
+		 * @param other 同key的后续任务
+		 */
+		protected boolean canMergeWith(BatchRunable<?> other) {
+			return other.getClass() == getClass();
+		}
+
+		/**
+		 * @return 一批最多合并的任务数
+		 */
+		protected int maxBatchSize() {
+			return DEFAULT_MAX_BATCH_SIZE;
+		}
+
+		/**
+		 * @param batch 按 execute 顺序的任务，batch.get(0) 为 this，至少一个
+		 */
+		protected abstract void runBatch(List<T> batch);
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public final void run() {
+			runBatch(Collections.singletonList((T) this));
+		}
+	}
+
+	/**
+	 * 只有最后一个有效的任务，例如保存玩家数据：排队中的同key任务只执行最新的一个
+	 *
+	 * @param <T> 具体的任务类型
+	 */
+	public abstract static class CoalescingRunable<T extends CoalescingRunable<T>> extends BatchRunable<T> {
+
+		public CoalescingRunable(Long key) {
+			super(key);
+		}
+
+		@Override
+		protected final void runBatch(List<T> batch) {
+			batch.get(batch.size() - 1).runLatest();
+		}
+
+		/**
+		 * 被合并的任务中最新的一个执行
+		 */
+		protected abstract void runLatest();
+	}
+
+	/**
+	 * submit 返回的 future，记录是哪个线程池哪个key的任务
+	 */
+	private static final class OrderedFuture<T> extends AbstractFuture<T> {
+		private final OrderedThreadPoolExecutor pool;
+		private final Long key;
+
+		/**
+		 * 任务已经加入key的队列
+		 */
+		private volatile boolean queued;
+
+		OrderedFuture(OrderedThreadPoolExecutor pool, Long key) {
+			this.pool = pool;
+			this.key = key;
+		}
+
+		/**
+		 * @return 已经在 pool 的 key 的队列中，之后提交的同key任务执行时它已经完成
+		 */
+		boolean isQueuedBefore(OrderedThreadPoolExecutor pool, Long key) {
+			return queued && this.pool == pool && this.key.equals(key);
+		}
+
+		@Override
+		protected boolean set(T value) {
+			return super.set(value);
+		}
+
+		@Override
+		protected boolean setException(Throwable throwable) {
+			return super.setException(throwable);
+		}
+	}
+
+	/**
+	 * submit 的任务，执行 callable，或者取 input 的结果执行 stage
+	 */
+	private static final class FutureRunable<I, O> extends OrderedRunable {
+		private final OrderedFuture<O> future;
+		private final Callable<O> callable;
+		private final ListenableFuture<I> input;
+		private final Function<? super I, ? extends O> stage;
+
+		FutureRunable(OrderedThreadPoolExecutor pool, Long key, Callable<O> callable,
+				ListenableFuture<I> input, Function<? super I, ? extends O> stage) {
+			super(key);
+			this.future = new OrderedFuture<>(pool, key);
+			this.callable = callable;
+			this.input = input;
+			this.stage = stage;
+		}
+
+		@Override
+		public void run() {
+			if (future.isCancelled()) {
+				return;
+			}
+
+			I value = null;
+			if (input != null) {
+				try {
+					// 同key的顺序或listener保证已经完成，不会阻塞
+					value = Uninterruptibles.getUninterruptibly(input);
+				} catch (ExecutionException e) {
+					future.setException(e.getCause());
+					return;
+				} catch (CancellationException e) {
+					future.cancel(false);
+					return;
+				}
+			}
+
+			O result;
+			try {
+				result = callable != null ? callable.call() : stage.apply(value);
+			} catch (Throwable e) {
+				future.setException(e);
+				return;
+			}
+			future.set(result);
+		}
+	}
+
+	private static final AtomicReferenceFieldUpdater<ChildExecutor, Thread> CONSUMER =
+			AtomicReferenceFieldUpdater.newUpdater(ChildExecutor.class, Thread.class, "consumer");
+
 	/**
 	 * 实际执行者
 	 */
 	protected final class ChildExecutor implements Executor, Runnable {
-		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/**
+		 * 同一时间只有一个线程在 drain 中消费
+		 */
+		private final MpscLinkedQueue<OrderedRunable> tasks = new MpscLinkedQueue<>();
 		private final AtomicBoolean isRunning = new AtomicBoolean();
 
+		private final AtomicInteger pendingCount = new AtomicInteger();
+		private final AtomicLong pendingBytes = new AtomicLong();
+
+		/**
+		 * 正在消费队列的线程，CAS设置，线程池和 CALLER_RUNS 的调用者互斥地消费队列。
+		 * 不用synchronized，JDK21的虚拟线程在synchronized中阻塞会占住载体线程
+		 */
+		volatile Thread consumer;
+
+		/**
+		 * 等待 consumer 释放的线程。只有线程池调度的 run 会等待（CALLER_RUNS 的调用者正在消费时），同一时间最多一个
+		 */
+		private volatile Thread waiter;
+
+		/**
+		 * 上次消费队列的线程和连续放入它本地队列的次数，affinity 时使用，只是调度的参考，不需要精确
+		 */
+		private Thread lastConsumer;
+		private int localForks;
+
+		/**
+		 * 任务执行时间的移动平均，timeBudgetMicros 时使用，只在 drain 中访问
+		 */
+		private long avgTaskNanos;
+
 		private final int executorId;
 
-		public ChildExecutor(int executorId) {
+		/**
+		 * mailbox 的key，没有perKeyMailbox时为null
+		 */
+		private final Long key;
+
+		public ChildExecutor(int executorId, Long key) {
 			this.executorId = executorId;
+			this.key = key;
 		}
 
+		/**
+		 * 排队数为-1表示mailbox已被回收，不能再加入任务
+		 */
+		boolean isDead() {
+			return pendingCount.get() < 0;
+		}
+
+		/**
+		 * 排队数减到0的mailbox标记为回收，此后加入任务的调用者会创建新的mailbox
+		 */
+		void decrementPending() {
+			if (pendingCount.decrementAndGet() == 0 && key != null && pendingCount.compareAndSet(0, -1)) {
+				mailboxes.remove(key, this);
+			}
+		}
+
+		/**
+		 * 调用前已经占用了排队空间
+		 */
 		public void execute(Runnable command) {
-			// TODO: What todo if the add return false ?
-			tasks.add(command);
+			tasks.offer((OrderedRunable) command);
 //			logger.debug("add cmd " + command + " to ChildExecutor-" + executorId);
 
 			// add to schedule if executor is not waiting to process
@@ -155,25 +1153,7 @@ public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 		}
 
 		public void run() {
-			for (int i = 0; i < batchLimit; ++i) {
-				final Runnable task = tasks.poll();
-				// if the task is null we should exit the loop
-				if (task == null) {
-					break;
-				}
-
-//				logger.debug("execute cmd " + task + " in ChildExecutor-" + executorId);
-				boolean ran = false;
-				try {
-					task.run();
-					ran = true;
-				} catch (RuntimeException e) {
-					if (!ran) {
-						logger.error("execute cmd " + task + " error:" + e.getMessage(), e);
-					}
-//					throw e;
-				}
-			}
+			drain(true);
 
 //			logger.debug("ChildExecutor-" + executorId + " exit");
 			
@@ -182,12 +1162,162 @@ public final class OrderedThreadPoolExecutor extends ForkJoinPool {
 			// maybe need finally
 			isRunning.set(false);
 			
-			if (!tasks.isEmpty()) {
-				if (isRunning.compareAndSet(false, true)) {
-					doUnorderedExecute(this);
+			boolean rescheduled = !tasks.isEmpty() && isRunning.compareAndSet(false, true);
+			if (metrics != null) {
+				metrics.recordBatch(rescheduled);
+			}
+			if (rescheduled) {
+				doUnorderedExecute(this);
+			}
+
+		}
+
+		/**
+		 * 执行最多 batchLimit 个任务（或 timeBudgetMicros 的时间），线程池和 CALLER_RUNS 的调用者互斥地消费队列
+		 *
+		 * @param wait 有其他线程在消费时是否等待，CALLER_RUNS 的调用者不等待
+		 * @return 执行的任务数
+		 */
+		int drain(boolean wait) {
+			Thread current = Thread.currentThread();
+			if (!CONSUMER.compareAndSet(this, null, current)) {
+				if (!wait) {
+					return 0;
+				}
+				// 只有 CALLER_RUNS 的调用者会同时消费，最多执行一批，释放时唤醒
+				waiter = current;
+				try {
+					while (!CONSUMER.compareAndSet(this, null, current)) {
+						LockSupport.park(this);
+					}
+				} finally {
+					waiter = null;
+				}
+			}
+			lastConsumer = current;
+			int executed = 0;
+			int limit = batchLimit;
+			long budget = 0;
+			long start = 0;
+			if (timeBudgetNanos > 0) {
+				budget = timeBudgetNanos * weight();
+				if (avgTaskNanos > 0) {
+					limit = (int) Math.max(1, Math.min(MAX_ADAPTIVE_BATCH, budget / avgTaskNanos));
+				}
+				start = System.nanoTime();
+			}
+			try {
+				for (int i = 0; i < limit; ) {
+					// 估算不准时（任务突然变慢）在这里停下
+					if (budget > 0 && i > 0 && (i & CLOCK_CHECK_MASK) == 0 && System.nanoTime() - start >= budget) {
+						break;
+					}
+
+					final OrderedRunable task = tasks.poll();
+					// if the task is null we should exit the loop
+					if (task == null) {
+						break;
+					}
+					if (task.merged) {
+						// 已经合并执行过，出队后才释放，之前一直占着排队空间
+						task.merged = false;
+						release(this, task);
+						continue;
+					}
+					++i;
+
+//					logger.debug("execute cmd " + task + " in ChildExecutor-" + executorId);
+					List<BatchRunable<?>> batch = task instanceof BatchRunable ? collectBatch((BatchRunable<?>) task) : null;
+					long runStart = task.sampled ? System.nanoTime() : 0;
+					boolean ran = false;
+					try {
+						if (batch == null) {
+							task.run();
+						} else {
+							runBatch(batch);
+						}
+						ran = true;
+					} catch (RuntimeException e) {
+						if (!ran) {
+							logger.error("execute cmd " + task + " error:" + e.getMessage(), e);
+						}
+//						throw e;
+					} finally {
+						if (task.sampled) {
+							metrics.recordTask(task.key, runStart - task.enqueueNanos, System.nanoTime() - runStart);
+						}
+						// 合并的任务还在队列中，只释放已经出队的 task
+						release(this, task);
+						executed += batch == null ? 1 : batch.size();
+					}
+				}
+
+				if (budget > 0 && executed > 0) {
+					long perTask = Math.max(1, (System.nanoTime() - start) / executed);
+					avgTaskNanos = avgTaskNanos == 0 ? perTask : Math.max(1, avgTaskNanos + ((perTask - avgTaskNanos) >> 3));
+				}
+			} finally {
+				// 先释放再看 waiter，waiter 先设置再CAS，两边都是volatile，不会错过唤醒
+				consumer = null;
+				Thread w = waiter;
+				if (w != null) {
+					LockSupport.unpark(w);
 				}
 			}
+			return executed;
+		}
+
+		/**
+		 * @return 本次执行时间的权重
+		 */
+		private int weight() {
+			if (keyWeigher == null) {
+				return 1;
+			}
+			Long k = key;
+			if (k == null) {
+				OrderedRunable head = tasks.peek();
+				if (head == null) {
+					return 1;
+				}
+				k = head.key;
+			}
+			return Math.max(1, keyWeigher.weight(k));
+		}
+
+		/**
+		 * 只有当前 ChildExecutor 在消费队列，可以遍历队列，把合并的任务标记为 merged
+		 *
+		 * @return 按顺序的 head 和可以合并的后续任务，没有可以合并的任务时为null
+		 */
+		private List<BatchRunable<?>> collectBatch(BatchRunable<?> head) {
+			int maxBatchSize = head.maxBatchSize();
+			List<BatchRunable<?>> batch = null;
+			int scanned = 0;
+			for (OrderedRunable next = tasks.peek(); next != null && scanned < MAX_BATCH_SCAN; next = tasks.successor(next), ++scanned) {
+				if (next.merged || !head.key.equals(next.key)) {
+					continue;
+				}
+				// 同key不能合并的任务之后的任务不能提前执行
+				if (!(next instanceof BatchRunable) || !head.canMergeWith((BatchRunable<?>) next)) {
+					break;
+				}
+				if (batch == null) {
+					batch = new ArrayList<>();
+					batch.add(head);
+				}
+				batch.add((BatchRunable<?>) next);
+				next.merged = true;
+				if (batch.size() >= maxBatchSize) {
+					break;
+				}
+			}
+			return batch;
+		}
 
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private void runBatch(List batch) {
+			((BatchRunable) batch.get(0)).runBatch(batch);
 		}
 	}
 }
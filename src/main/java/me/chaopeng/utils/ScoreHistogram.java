@@ -0,0 +1,294 @@
+package me.chaopeng.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ScoreHistogram - SortedSet 的分数直方图，用于近似排名
+ * <p/>
+ * 把分数划分为 B 个桶，记录每个桶的元素个数，另外保存一份各个桶的前缀和快照：
+ * <ul>
+ * <li>近似排名 = 比所在桶小（或大）的元素个数（读快照）+ 桶内按分数线性插值，
+ * 误差不超过 所在桶的元素个数 + maxPrefixError，见 {@link #maxRankError(long)}</li>
+ * <li>查询不持有 SortedSet 的锁，读快照的两个元素和所在桶的计数，O(1)；
+ * 定位桶时 fixed 为 O(1)，equiDepth 为 O(log B) 的二分查找。精确排名仍然用 SortedSet.rank</li>
+ * <li>SortedSet 的每次修改在锁内更新所在桶的计数，O(1)；累计超过 maxPrefixError 次修改后重新计算快照，O(B)，
+ * 均摊 O(B / maxPrefixError)</li>
+ * </ul>
+ * 两种分桶方式：
+ * <ul>
+ * <li>{@link #fixed(long, long, int, int)}：等宽分桶，分数分布已知时使用</li>
+ * <li>{@link #equiDepth(SortedSet, int, int)}：按当前数据的分位数分桶，每个桶的元素个数约为 N/B，
+ * 误差约为 N/B；数据分布变化很大后可以重新生成</li>
+ * </ul>
+ * 所在桶的元素个数只能通过分桶控制，maxPrefixError 控制快照过期带来的误差和修改的开销。
+ * 用法：set.setHistogram(ScoreHistogram.fixed(0, 100000, 1024))，一个直方图只能挂在一个 SortedSet 上。
+ * <p/>
+ * 查询和修改并发时，读到的是各个桶在不同时刻的计数，结果仍然在误差范围附近，适合"第 1,234,567 名"这类展示。
+ *
+ * @author chao
+ * @see SortedSet#setHistogram(ScoreHistogram)
+ */
+public final class ScoreHistogram {
+
+	/**
+	 * 每个桶的最小分数，严格升序
+	 */
+	private final long[] lowerBounds;
+
+	/**
+	 * 最后一个桶的最大分数
+	 */
+	private final long maxScore;
+
+	/**
+	 * 等宽分桶时的桶宽，用于 O(1) 定位桶；0=按 lowerBounds 二分查找
+	 */
+	private final long width;
+
+	private final AtomicLongArray counts;
+
+	/**
+	 * 快照过期允许的最大误差，即重新计算前最多累计的修改次数
+	 */
+	private final int maxPrefixError;
+
+	/**
+	 * prefix[i] = 前 i 个桶的元素个数，prefix[B] 为总数。只在 SortedSet 的锁内整个替换，发布后不再修改
+	 */
+	private volatile long[] prefix;
+
+	/**
+	 * 上次计算快照之后的修改次数，只在 SortedSet 的锁内修改
+	 */
+	private volatile int changes;
+
+	/**
+	 * 当前的元素个数，只在 SortedSet 的锁内修改
+	 */
+	private volatile long total;
+
+	private ScoreHistogram(long[] lowerBounds, long maxScore, long width, int maxPrefixError) {
+		if (maxPrefixError < 0) {
+			throw new IllegalArgumentException("maxPrefixError must >= 0");
+		}
+		this.lowerBounds = lowerBounds;
+		this.maxScore = maxScore;
+		this.width = width;
+		this.maxPrefixError = maxPrefixError;
+		this.counts = new AtomicLongArray(lowerBounds.length);
+		this.prefix = new long[lowerBounds.length + 1];
+	}
+
+	/**
+	 * 等宽分桶，maxPrefixError 为桶的个数
+	 *
+	 * @see #fixed(long, long, int, int)
+	 */
+	public static ScoreHistogram fixed(long minScore, long maxScore, int numOfBuckets) {
+		return fixed(minScore, maxScore, numOfBuckets, numOfBuckets);
+	}
+
+	/**
+	 * 等宽分桶，超出 [minScore, maxScore] 的分数计入第一个或最后一个桶
+	 *
+	 * @param numOfBuckets   桶的个数，分数范围比桶数小时按分数范围
+	 * @param maxPrefixError 快照过期允许的最大排名误差，0为每次修改都重新计算快照
+	 */
+	public static ScoreHistogram fixed(long minScore, long maxScore, int numOfBuckets, int maxPrefixError) {
+		if (numOfBuckets < 1) {
+			throw new IllegalArgumentException("numOfBuckets must >= 1");
+		}
+		if (maxScore < minScore || maxScore - minScore < 0) {
+			throw new IllegalArgumentException("invalid score range [" + minScore + ", " + maxScore + "]");
+		}
+
+		long width = (maxScore - minScore) / numOfBuckets + 1;
+		int n = (int) ((maxScore - minScore) / width + 1);
+		long[] lowerBounds = new long[n];
+		for (int i = 0; i < n; i++) {
+			lowerBounds[i] = minScore + i * width;
+		}
+		return new ScoreHistogram(lowerBounds, maxScore, width, maxPrefixError);
+	}
+
+	/**
+	 * 按分位数分桶，maxPrefixError 为桶的个数
+	 *
+	 * @see #equiDepth(SortedSet, int, int)
+	 */
+	public static ScoreHistogram equiDepth(SortedSet set, int numOfBuckets) {
+		return equiDepth(set, numOfBuckets, numOfBuckets);
+	}
+
+	/**
+	 * 按 set 当前数据的分位数分桶，相同分数不会被拆到两个桶里
+	 *
+	 * @param numOfBuckets   桶的个数上限
+	 * @param maxPrefixError 快照过期允许的最大排名误差，0为每次修改都重新计算快照
+	 */
+	public static ScoreHistogram equiDepth(SortedSet set, int numOfBuckets, int maxPrefixError) {
+		if (numOfBuckets < 1) {
+			throw new IllegalArgumentException("numOfBuckets must >= 1");
+		}
+
+		long[] lowerBounds = new long[numOfBuckets];
+		long maxScore;
+		int n = 0;
+		synchronized (set) {
+			int size = set.size();
+			if (size == 0) {
+				throw new IllegalStateException("set is empty");
+			}
+			for (int i = 0; i < numOfBuckets; i++) {
+				long score = set.doGetByRank((int) ((long) i * size / numOfBuckets) + 1, false).getScore();
+				if (n == 0 || score > lowerBounds[n - 1]) {
+					lowerBounds[n++] = score;
+				}
+			}
+			maxScore = set.doGetByRank(size, false).getScore();
+		}
+		return new ScoreHistogram(Arrays.copyOf(lowerBounds, n), maxScore, 0, maxPrefixError);
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * 由 SortedSet 在锁内调用
+	 *----------------------------------------------------------------------------*/
+
+	void add(long score) {
+		update(bucketIndex(score), 1);
+	}
+
+	void remove(long score) {
+		update(bucketIndex(score), -1);
+	}
+
+	/**
+	 * 重新挂到 SortedSet 上时批量加入，之后调用 {@link #rebuild()}
+	 */
+	void load(long score) {
+		counts.incrementAndGet(bucketIndex(score));
+		total++;
+	}
+
+	void clear() {
+		for (int i = 0; i < lowerBounds.length; i++) {
+			counts.set(i, 0);
+		}
+		total = 0;
+		rebuild();
+	}
+
+	private void update(int bucket, long delta) {
+		counts.addAndGet(bucket, delta);
+		total += delta;
+		if (changes >= maxPrefixError) {
+			rebuild();
+		} else {
+			changes++;
+		}
+	}
+
+	void rebuild() {
+		long[] prefix = new long[lowerBounds.length + 1];
+		for (int i = 0; i < lowerBounds.length; i++) {
+			prefix[i + 1] = prefix[i] + counts.get(i);
+		}
+		this.prefix = prefix;
+		this.changes = 0;
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * 查询，不加锁
+	 *----------------------------------------------------------------------------*/
+
+	private int bucketIndex(long score) {
+		if (score <= lowerBounds[0]) {
+			return 0;
+		}
+		if (width > 0) {
+			long i = (score - lowerBounds[0]) / width;
+			// score - lowerBounds[0] 溢出时为负数
+			return i < 0 || i >= lowerBounds.length ? lowerBounds.length - 1 : (int) i;
+		}
+		int i = Arrays.binarySearch(lowerBounds, score);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * @return score 在所在桶中的相对位置 [0, 1)
+	 */
+	private double fraction(int bucket, long score) {
+		long lo = lowerBounds[bucket];
+		long hi = bucket + 1 < lowerBounds.length ? lowerBounds[bucket + 1] - 1 : maxScore;
+		if (score <= lo) {
+			return 0;
+		}
+		if (score > hi) {
+			return 1;
+		}
+		return ((double) score - lo) / ((double) hi - lo + 1);
+	}
+
+	/**
+	 * @return 元素个数
+	 */
+	public long count() {
+		return total;
+	}
+
+	/**
+	 * @return 桶的个数
+	 */
+	public int getNumOfBuckets() {
+		return lowerBounds.length;
+	}
+
+	/**
+	 * 近似排名，与 SortedSet.rank 一样从 1 开始
+	 *
+	 * @param score   分数，通常是调用者已知的自己的分数
+	 * @param reverse true=从大到小 false=从小到大
+	 * @see #maxRankError(long)
+	 */
+	public long approxRank(long score, boolean reverse) {
+		int bucket = bucketIndex(score);
+		long[] prefix = this.prefix;
+		long count = counts.get(bucket);
+		double fraction = fraction(bucket, score);
+		long rank;
+		if (reverse) {
+			long above = prefix[prefix.length - 1] - prefix[bucket + 1];
+			rank = above + (long) ((1 - fraction) * count) + 1;
+		} else {
+			rank = prefix[bucket] + (long) (fraction * count) + 1;
+		}
+		return Math.max(1, Math.min(rank, total));
+	}
+
+	/**
+	 * 近似百分位：分数比 score 低的元素所占的比例
+	 *
+	 * @return [0, 1]
+	 */
+	public double percentile(long score) {
+		long total = this.total;
+		if (total <= 0) {
+			return 0;
+		}
+		int bucket = bucketIndex(score);
+		double below = this.prefix[bucket] + fraction(bucket, score) * counts.get(bucket);
+		return Math.max(0, Math.min(below / total, 1));
+	}
+
+	/**
+	 * approxRank 当前的误差上限：score 所在桶的元素个数 + 快照之后的修改次数（不超过 maxPrefixError）
+	 */
+	public long maxRankError(long score) {
+		return counts.get(bucketIndex(score)) + changes;
+	}
+
+	public int getMaxPrefixError() {
+		return maxPrefixError;
+	}
+}
@@ -0,0 +1,420 @@
+package me.chaopeng.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import me.chaopeng.utils.SortedSet.RangeSpec;
+import me.chaopeng.utils.SortedSet.RecordObject;
+
+/**
+ * ShardedSortedSet - 按 key 分片的 SortedSet
+ * <p/>
+ * key 按 hash 分到 N 个内部 SortedSet，每个分片有自己的锁，不同分片的写可以并行。
+ * 全局排名通过合并各分片的结果得到：
+ * <ul>
+ * <li>rank：各分片中 (score, key) 比它小的元素个数之和 + 1，O(N_shard * log n)</li>
+ * <li>getByRank：在各分片的局部排名上做多路二分选择，O(N_shard^2 * log^2 n)</li>
+ * <li>getRangeByRank/getRangeByScore：先定位起点，各分片从起点取一页，再多路归并</li>
+ * </ul>
+ * 跨分片的读不是原子的，分片在查询过程中被修改时，结果可能是不同时刻的混合（和 ConcurrentHashMap.size() 一样），
+ * 适合排行榜这类能容忍瞬时误差的场景
+ *
+ * @author chao
+ * @see SortedSet
+ */
+public final class ShardedSortedSet {
+
+	private final SortedSet[] shards;
+
+	/**
+	 * @param numOfShards 分片数量
+	 */
+	public ShardedSortedSet(int numOfShards) {
+		if (numOfShards < 1) {
+			throw new IllegalArgumentException("numOfShards must >= 1");
+		}
+		this.shards = new SortedSet[numOfShards];
+		for (int i = 0; i < numOfShards; i++) {
+			this.shards[i] = new SortedSet();
+		}
+	}
+
+	private int shardIndex(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) ((h >>> 33) % shards.length);
+	}
+
+	private SortedSet shard(long key) {
+		return shards[shardIndex(key)];
+	}
+
+	private static int compare(long score1, long key1, long score2, long key2) {
+		if (score1 != score2) {
+			return score1 < score2 ? -1 : 1;
+		}
+		return key1 < key2 ? -1 : (key1 == key2 ? 0 : 1);
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * write API
+	 *----------------------------------------------------------------------------*/
+
+	public void clear() {
+		for (SortedSet shard : shards) {
+			shard.clear();
+		}
+	}
+
+	/**
+	 * 添加，会自动合并重复的key
+	 */
+	public void add(long score, long key) {
+		shard(key).add(score, key);
+	}
+
+	/**
+	 * 批量添加，按分片拆开后分别批量添加
+	 *
+	 * @see SortedSet#addAll(long[], long[])
+	 */
+	public void addAll(long[] scores, long[] keys) {
+		if (scores.length != keys.length) {
+			throw new IllegalArgumentException("scores.length != keys.length");
+		}
+		int[] counts = new int[shards.length];
+		for (long key : keys) {
+			counts[shardIndex(key)]++;
+		}
+		long[][] shardScores = new long[shards.length][];
+		long[][] shardKeys = new long[shards.length][];
+		for (int i = 0; i < shards.length; i++) {
+			shardScores[i] = new long[counts[i]];
+			shardKeys[i] = new long[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			int s = shardIndex(keys[i]);
+			shardScores[s][counts[s]] = scores[i];
+			shardKeys[s][counts[s]] = keys[i];
+			counts[s]++;
+		}
+		for (int i = 0; i < shards.length; i++) {
+			if (counts[i] > 0) {
+				shards[i].addAll(shardScores[i], shardKeys[i]);
+			}
+		}
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key
+	 *
+	 * @param recordObjects RecordObject::rank不会自动更新
+	 */
+	public void addAdll(Collection<RecordObject> recordObjects) {
+		long[][] arrays = SortedSet.toArrays(recordObjects);
+		addAll(arrays[0], arrays[1]);
+	}
+
+	public void remove(long key) {
+		shard(key).remove(key);
+	}
+
+	/**
+	 * 通过分数范围删除
+	 */
+	public void removeByScore(RangeSpec range) {
+		for (SortedSet shard : shards) {
+			shard.removeByScore(range);
+		}
+	}
+
+	/**
+	 * 通过排名删除，先把排名范围换算成 (score, key) 范围，再在各分片删除
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public void removeByRank(int start, int end, boolean reverse) {
+		int size = size();
+		start = start < 1 ? 1 : start;
+		end = end > size ? size : end;
+		if (start > end) {
+			return;
+		}
+
+		RecordObject first = select(reverse ? size + 1 - end : start);
+		RecordObject last = select(reverse ? size + 1 - start : end);
+		if (first == null || last == null) {
+			return;
+		}
+
+		for (int i = 0; i < shards.length; i++) {
+			SortedSet shard = shards[i];
+			synchronized (shard) {
+				int from = shard.doCountLess(first.getScore(), first.getKey()) + 1;
+				int to = shard.doCountLess(last.getScore(), last.getKey())
+						+ (shardIndex(last.getKey()) == i ? 1 : 0);
+				if (from <= to) {
+					shard.doRemoveByRank(from, to, false);
+				}
+			}
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * read API
+	 *----------------------------------------------------------------------------*/
+
+	public int size() {
+		int size = 0;
+		for (SortedSet shard : shards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return null if not found
+	 */
+	public Long getScore(long key) {
+		return shard(key).getScore(key);
+	}
+
+	/**
+	 * 无装箱版本
+	 */
+	public long getScore(long key, long defaultScore) {
+		return shard(key).getScore(key, defaultScore);
+	}
+
+	/**
+	 * (score, key) 严格小于给定值的元素个数，各分片分别计数后求和
+	 */
+	private int countLess(long score, long key) {
+		int count = 0;
+		for (SortedSet shard : shards) {
+			synchronized (shard) {
+				count += shard.doCountLess(score, key);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 获取排名
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 * @return -1 if not found
+	 */
+	public int rank(long key, boolean reverse) {
+		SortedSet own = shard(key);
+		long score;
+		synchronized (own) {
+			if (!own.doContainsKey(key)) {
+				return -1;
+			}
+			score = own.doGetScore(key, 0L);
+		}
+
+		int rank = countLess(score, key) + 1;
+		return reverse ? size() + 1 - rank : rank;
+	}
+
+	/**
+	 * 获得排名第x的对象
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public RecordObject getByRank(int rank, boolean reverse) {
+		int size = size();
+		if (rank < 1 || rank > size) {
+			return null;
+		}
+		RecordObject res = select(reverse ? size + 1 - rank : rank);
+		if (res != null) {
+			res.setRank(rank);
+		}
+		return res;
+	}
+
+	/**
+	 * 多路选择：找到全局升序第 k 个元素
+	 * <p/>
+	 * 每个分片维护一个局部排名窗口 (lo, hi]，每次取窗口最大的分片的中点作为 pivot，
+	 * 用 countLess 算出 pivot 的全局排名，然后在所有分片上同时收缩窗口
+	 */
+	private RecordObject select(int k) {
+		int n = shards.length;
+		int[] lo = new int[n];
+		int[] hi = new int[n];
+		for (int i = 0; i < n; i++) {
+			hi[i] = shards[i].size();
+		}
+		int[] counts = new int[n];
+
+		for (; ; ) {
+			int widest = -1;
+			for (int i = 0; i < n; i++) {
+				if (hi[i] > lo[i] && (widest < 0 || hi[i] - lo[i] > hi[widest] - lo[widest])) {
+					widest = i;
+				}
+			}
+			if (widest < 0) {
+				// 查询过程中被并发修改，窗口不再一致
+				return null;
+			}
+
+			RecordObject pivot = shards[widest].getByRank((lo[widest] + hi[widest] + 1) >>> 1, false);
+			if (pivot == null) {
+				return null;
+			}
+
+			int less = 0;
+			for (int i = 0; i < n; i++) {
+				synchronized (shards[i]) {
+					counts[i] = shards[i].doCountLess(pivot.getScore(), pivot.getKey());
+				}
+				less += counts[i];
+			}
+
+			int rank = less + 1;
+			if (rank == k) {
+				pivot.setRank(k);
+				return pivot;
+			}
+			for (int i = 0; i < n; i++) {
+				if (rank < k) {
+					// pivot 以及比它小的都不是答案
+					int excluded = counts[i] + (i == widest ? 1 : 0);
+					lo[i] = Math.max(lo[i], excluded);
+				} else {
+					hi[i] = Math.min(hi[i], counts[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 通过排名获取一段
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByRank(int rankBegin, int rankEnd, boolean reverse) {
+		if (rankBegin > rankEnd) {
+			return null;
+		}
+		int size = size();
+		rankBegin = rankBegin < 1 ? 1 : rankBegin;
+		rankEnd = rankEnd > size ? size : rankEnd;
+		if (rankBegin > rankEnd) {
+			return new ArrayList<>();
+		}
+
+		RecordObject start = select(reverse ? size + 1 - rankBegin : rankBegin);
+		if (start == null) {
+			return new ArrayList<>();
+		}
+
+		int limit = rankEnd - rankBegin + 1;
+		List<List<RecordObject>> pages = new ArrayList<>(shards.length);
+		for (SortedSet shard : shards) {
+			synchronized (shard) {
+				pages.add(shard.doRangeFrom(start.getScore(), start.getKey(), reverse, limit));
+			}
+		}
+
+		return merge(pages, reverse, limit, rankBegin);
+	}
+
+	/**
+	 * 通过分数获取一段 双闭区间
+	 *
+	 * @param reverse true=从大到小 false=从小到大
+	 */
+	public List<RecordObject> getRangeByScore(long scoreBegin, long scoreEnd, boolean reverse) {
+		if (scoreBegin > scoreEnd) {
+			return null;
+		}
+		RangeSpec range = new RangeSpec(scoreBegin, scoreEnd);
+		List<List<RecordObject>> pages = new ArrayList<>(shards.length);
+		int total = 0;
+		int before = 0;
+		for (SortedSet shard : shards) {
+			synchronized (shard) {
+				List<RecordObject> page = new ArrayList<>();
+				collect(shard, range, reverse, page);
+				pages.add(page);
+				total += page.size();
+				// 排在第一个结果之前的元素个数
+				if (reverse) {
+					int notAbove = scoreEnd == Long.MAX_VALUE
+							? shard.size() : shard.doCountLess(scoreEnd + 1, Long.MIN_VALUE);
+					before += shard.size() - notAbove;
+				} else {
+					before += shard.doCountLess(scoreBegin, Long.MIN_VALUE);
+				}
+			}
+		}
+		return merge(pages, reverse, total, before + 1);
+	}
+
+	private static void collect(SortedSet shard, RangeSpec range, boolean reverse, final List<RecordObject> page) {
+		shard.doForEachByScore(range, reverse, new SortedSet.RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score) {
+				page.add(new RecordObject(key, score));
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * 多路归并各分片已经有序的页，取前 limit 个并设置全局排名
+	 */
+	private static List<RecordObject> merge(List<List<RecordObject>> pages, boolean reverse, int limit, int firstRank) {
+		int n = pages.size();
+		int[] heads = new int[n];
+		List<RecordObject> res = new ArrayList<>(limit);
+		while (res.size() < limit) {
+			int best = -1;
+			RecordObject bestRo = null;
+			for (int i = 0; i < n; i++) {
+				List<RecordObject> page = pages.get(i);
+				if (heads[i] < page.size()) {
+					RecordObject ro = page.get(heads[i]);
+					int c = bestRo == null ? -1 : compare(ro.getScore(), ro.getKey(), bestRo.getScore(), bestRo.getKey());
+					if (bestRo == null || (reverse ? c > 0 : c < 0)) {
+						best = i;
+						bestRo = ro;
+					}
+				}
+			}
+			if (best < 0) {
+				break;
+			}
+			heads[best]++;
+			bestRo.setRank(firstRank + res.size());
+			res.add(bestRo);
+		}
+		return res;
+	}
+
+	/**
+	 * @return 分片数量
+	 */
+	public int getNumOfShards() {
+		return shards.length;
+	}
+
+	/**
+	 * @return 各分片元素个数，用于观察分布是否均匀
+	 */
+	public List<Integer> getShardSizes() {
+		List<Integer> sizes = new ArrayList<>(shards.length);
+		for (SortedSet shard : shards) {
+			sizes.add(shard.size());
+		}
+		return Collections.unmodifiableList(sizes);
+	}
+}
@@ -1,11 +1,21 @@
 package me.chaopeng.utils;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * SortedSet - 跳表仿redis的实现
  * <p/>
- * 只支持score:Long key:Long
+ * 只支持score:long key:long
  * <p/>
  * 这里的 skiplist 实现和 William Pugh 在 "Skip Lists: A Probabilistic
  * Alternative to Balanced Trees" 里描述的差不多，只有三个地方进行了修改：
@@ -15,12 +25,22 @@ import java.util.*;
  * <li>不仅对 score 进行比对，还需要对 key 进行比对</li>
  * <li>每个节点都带有一个前驱指针，用于从表尾向表头迭代</li>
  * </ul>
+ * <p/>
+ * 内存占用（64位JVM，开启压缩指针，ZSKIPLIST_P=0.25 时平均 1.33 层）：
+ * <ul>
+ * <li>SkipListNode 40 字节 + forward[] 约 24.5 字节 + span[] 约 24.5 字节</li>
+ * <li>dict 为 LongLongHashMap，每槽 16 字节，负载 0.375~0.75，平均约 28 字节</li>
+ * <li>合计约 117 字节/条目，3 个对象，无装箱</li>
+ * </ul>
+ * 原来的 HashMap&lt;Long, Long&gt; + 装箱节点约为 190 字节/条目，8~9 个对象。
  *
  * @author chao
  * @version 1.0 - 2014-04-06
  */
 public final class SortedSet {
 
+	private static final Logger logger = LoggerFactory.getLogger(SortedSet.class);
+
 	public static final class RecordObject {
 		private long score;
 		private long key;
@@ -87,40 +107,253 @@ public final class SortedSet {
 		}
 	}
 
-	private static final class SkipListLevel {
+	/**
+	 * 跳表的统计，用于调整 P 和 maxLevel
+	 *
+	 * @see SortedSet#stats(int)
+	 */
+	public static final class Stats {
+		private final int length;
+		private final int level;
+		private final int[] levelHistogram;
+		private final double averageSearchLength;
+
+		private Stats(int length, int level, int[] levelHistogram, double averageSearchLength) {
+			this.length = length;
+			this.level = level;
+			this.levelHistogram = levelHistogram;
+			this.averageSearchLength = averageSearchLength;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @return 当前最高层数
+		 */
+		public int getLevel() {
+			return level;
+		}
+
+		/**
+		 * @return levelHistogram[i] = 层数为 i+1 的节点个数
+		 */
+		public int[] getLevelHistogram() {
+			return levelHistogram.clone();
+		}
+
+		/**
+		 * @return 每个节点平均的层数，即 forward[]/span[] 的平均长度
+		 */
+		public double getAverageLevel() {
+			long sum = 0;
+			for (int i = 0; i < levelHistogram.length; i++) {
+				sum += (long) (i + 1) * levelHistogram[i];
+			}
+			return length == 0 ? 0 : (double) sum / length;
+		}
+
+		/**
+		 * @return 采样得到的查找一个元素平均需要比较的次数
+		 */
+		public double getAverageSearchLength() {
+			return averageSearchLength;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats{" +
+					"length=" + length +
+					", level=" + level +
+					", averageLevel=" + getAverageLevel() +
+					", averageSearchLength=" + averageSearchLength +
+					", levelHistogram=" + Arrays.toString(levelHistogram) +
+					'}';
+		}
+	}
+
+	/**
+	 * union/intersect 时同一个 key 的多个分数的合并方式
+	 */
+	public enum Aggregate {
+		SUM, MIN, MAX;
+
+		long apply(long a, long b) {
+			switch (this) {
+				case MIN:
+					return a < b ? a : b;
+				case MAX:
+					return a > b ? a : b;
+				default:
+					return a + b;
+			}
+		}
+	}
+
+	/**
+	 * 遍历回调，不产生 RecordObject
+	 * <p/>
+	 * 回调在 SortedSet 的锁内执行，不能在回调里修改这个 SortedSet
+	 */
+	public interface RecordVisitor {
+		/**
+		 * @param rank  按遍历方向的排名，reverse=true 时为从大到小的排名
+		 * @param key
+		 * @param score
+		 * @return true=继续 false=停止遍历
+		 */
+		boolean visit(int rank, long key, long score);
+	}
+
+	/**
+	 * 游标，沿着 forward[0]（或 backward）指针逐个读取，每一步不分配对象
+	 * <p/>
+	 * 一个游标可以反复 seek 重用；每次 next() 都会短暂持有 SortedSet 的锁，
+	 * 如果两次 next() 之间 SortedSet 被修改，会抛出 ConcurrentModificationException
+	 * <p/>
+	 * 游标本身非线程安全，不要在多个线程间共享
+	 */
+	public final class Cursor {
+		private SkipList list;
+		private int modCount;
+
+		private SkipListNode next;
+		private boolean reverse;
+		private int remaining;
+		private RangeSpec range;
+
+		private int rank;
+		private long key;
+		private long score;
+
+		private Cursor() {
+		}
+
+		/**
+		 * 定位到排名 [rankBegin, rankEnd]
+		 *
+		 * @param reverse true=从大到小 false=从小到大
+		 * @return this
+		 */
+		public Cursor seekRank(int rankBegin, int rankEnd, boolean reverse) {
+			synchronized (SortedSet.this) {
+				this.reset(reverse);
+				int size = this.list.length;
+				rankBegin = rankBegin < 1 ? 1 : rankBegin;
+				rankEnd = rankEnd > size ? size : rankEnd;
+				if (rankBegin > rankEnd) {
+					return this;
+				}
+				this.next = this.list.getElementByRank(reverse ? size + 1 - rankBegin : rankBegin);
+				this.remaining = rankEnd - rankBegin + 1;
+				this.rank = rankBegin - 1;
+				return this;
+			}
+		}
+
 		/**
-		 * 前进指针
+		 * 定位到分数范围 range
+		 *
+		 * @param reverse true=从大到小 false=从小到大
+		 * @return this
 		 */
-		private SkipListNode forward = null;
+		public Cursor seekScore(RangeSpec range, boolean reverse) {
+			synchronized (SortedSet.this) {
+				this.reset(reverse);
+				this.next = reverse ? this.list.lastInRange(range) : this.list.firstInRange(range);
+				if (this.next == null) {
+					return this;
+				}
+				int r = this.list.getRank(this.next.score, this.next.obj);
+				this.rank = (reverse ? this.list.length + 1 - r : r) - 1;
+				this.remaining = Integer.MAX_VALUE;
+				this.range = range;
+				return this;
+			}
+		}
+
+		private void reset(boolean reverse) {
+			this.list = SortedSet.this.list;
+			this.modCount = this.list.modCount;
+			this.next = null;
+			this.reverse = reverse;
+			this.remaining = 0;
+			this.range = null;
+		}
+
 		/**
-		 * 这个层跨越的节点数量
+		 * 移动到下一个元素
+		 *
+		 * @return false=没有更多元素
 		 */
-		private int span = 0;
+		public boolean next() {
+			synchronized (SortedSet.this) {
+				if (this.list != SortedSet.this.list || this.modCount != this.list.modCount) {
+					throw new ConcurrentModificationException();
+				}
+
+				SkipListNode x = this.next;
+				if (x == null || this.remaining <= 0) {
+					return false;
+				}
+				if (this.range != null && !(reverse
+						? SkipList.keyGteMin(x.score, this.range)
+						: SkipList.keyLteMax(x.score, this.range))) {
+					this.next = null;
+					return false;
+				}
+
+				this.remaining--;
+				this.rank++;
+				this.key = x.obj;
+				this.score = x.score;
+				this.next = reverse ? x.backward : x.forward[0];
+				return true;
+			}
+		}
+
+		public int rank() {
+			return rank;
+		}
+
+		public long key() {
+			return key;
+		}
+
+		public long score() {
+			return score;
+		}
 	}
 
-	private static final class SkipListNode {
+	/**
+	 * 跳表节点，CompositeSortedSet 也直接使用，所以是包可见的
+	 */
+	static class SkipListNode {
 		/**
 		 * 分值
 		 */
-		private Long score;
+		final long score;
 		/**
 		 * 对象
 		 */
-		private Long obj;
+		final long obj;
 		/**
 		 * 后退指针
 		 */
-		private SkipListNode backward = null;
+		SkipListNode backward = null;
+		/**
+		 * 每层的前进指针
+		 */
+		final SkipListNode[] forward;
 		/**
-		 * 层
+		 * 每层跨越的节点数量
 		 */
-		private SkipListLevel[] level;
+		private final int[] span;
 
-		public SkipListNode(int level, Long score, Long obj) {
-			this.level = new SkipListLevel[level];
-			for (int i = 0; i < level; i++) {
-				this.level[i] = new SkipListLevel();
-			}
+		public SkipListNode(int level, long score, long obj) {
+			this.forward = new SkipListNode[level];
+			this.span = new int[level];
 			this.score = score;
 			this.obj = obj;
 		}
@@ -130,30 +363,107 @@ public final class SortedSet {
 		}
 	}
 
-	private static final class SkipList {
+	/**
+	 * 带 tiebreak 的节点，只有 TiebreakSkipList 会创建，普通节点不多占 8 字节
+	 */
+	static final class TiebreakNode extends SkipListNode {
+		final long tiebreak;
+
+		private TiebreakNode(int level, long score, long tiebreak, long obj) {
+			super(level, score, obj);
+			this.tiebreak = tiebreak;
+		}
+	}
+
+	/**
+	 * 范围删除时逐个通知被删的节点，用来同步 dict 等索引
+	 */
+	interface Removal {
+		void removed(SkipListNode x);
+	}
+
+	/**
+	 * 跳表，CompositeSortedSet 用子类 TiebreakSkipList 复用这里的实现
+	 */
+	static class SkipList {
 		private SkipListNode header = null;
 		private SkipListNode tail = null;
-		private int length = 0;
+		int length = 0;
+		/**
+		 * 结构修改次数，游标用来检测并发修改
+		 */
+		private int modCount = 0;
 		private int level = 1;
-		private Random random = new Random();
 
-		private SkipList() {
-			this.header = new SkipListNode(ZSKIPLIST_MAXLEVEL, 0L, null);
-			for (int i = 0; i < this.header.level.length; i++) {
-				this.header.level[i] = new SkipListLevel();
-			}
+		/**
+		 * 最大层数
+		 */
+		private final int maxLevel;
+		/**
+		 * 升一层的概率 * 65536
+		 */
+		private final int threshold;
+		/**
+		 * xorshift 随机数状态，只在锁内使用，不需要 java.util.Random 的 CAS
+		 */
+		private long seed;
+
+		/**
+		 * 查找过程中的临时数组，所有写操作都在锁内，可以复用
+		 */
+		private final SkipListNode[] update;
+		private final int[] rank;
+
+		private SkipList(int maxLevel, float p, long seed) {
+			this.maxLevel = maxLevel;
+			this.threshold = (int) (p * 0x10000);
+			this.seed = seed != 0 ? seed : 1;
+			this.header = new SkipListNode(maxLevel, 0L, 0L);
+			this.update = new SkipListNode[maxLevel];
+			this.rank = new int[maxLevel];
+		}
+
+		/**
+		 * xorshift64*
+		 */
+		private long nextRandom() {
+			long x = this.seed;
+			x ^= x >>> 12;
+			x ^= x << 25;
+			x ^= x >>> 27;
+			this.seed = x;
+			return x * 0x2545F4914F6CDD1DL;
 		}
 
 		/**
 		 * 通过多次随机过程
 		 *
-		 * @return 一个介于 1 和 ZSKIPLIST_MAXLEVEL 之间的随机值，作为节点的层数。
+		 * @return 一个介于 1 和 maxLevel 之间的随机值，作为节点的层数。
 		 */
 		private int randomLevel() {
 			int level = 1;
-			while ((random.nextInt() & 0xFFFF) < (ZSKIPLIST_P * 0xFFFF))
+			while (level < this.maxLevel && (int) (nextRandom() >>> 48) < this.threshold)
 				level += 1;
-			return (level < ZSKIPLIST_MAXLEVEL) ? level : ZSKIPLIST_MAXLEVEL;
+			return level;
+		}
+
+		/**
+		 * 查找 (score, obj) 需要比较的次数，用于统计
+		 */
+		private int searchLength(long score, long obj) {
+			int length = 0;
+			SkipListNode x = this.header;
+			for (int i = this.level - 1; i >= 0; i--) {
+				while (x.forward[i] != null) {
+					length++;
+					if (x.forward[i].score < score || (x.forward[i].score == score && x.forward[i].obj < obj)) {
+						x = x.forward[i];
+					} else {
+						break;
+					}
+				}
+			}
+			return length;
 		}
 
 		/**
@@ -164,10 +474,10 @@ public final class SortedSet {
 		private SkipListNode insert(long score, long obj) {
 
 			/**记录寻找元素过程中，每层能到达的最右节点*/
-			SkipListNode[] update = new SkipListNode[ZSKIPLIST_MAXLEVEL];
+			SkipListNode[] update = this.update;
 
 			/**记录寻找元素过程中，每层所跨越的节点数*/
-			int[] rank = new int[ZSKIPLIST_MAXLEVEL];
+			int[] rank = this.rank;
 
 			SkipListNode x = this.header;
 
@@ -178,26 +488,41 @@ public final class SortedSet {
 				rank[i] = i == (this.level - 1) ? 0 : rank[i + 1];
 
 				// 右节点不为空
-				while (x.level[i].forward != null &&
+				while (x.forward[i] != null &&
 						// 右节点的 score 比给定 score 小
-						(x.level[i].forward.score < score ||
+						(x.forward[i].score < score ||
 								// 右节点的 score 相同，但节点的 member 比输入 member 要小
-								(x.level[i].forward.score == score && x.level[i].forward.obj < obj))) {
+								(x.forward[i].score == score && x.forward[i].obj < obj))) {
 
 					// 记录跨越了多少个元素
-					rank[i] += x.level[i].span;
+					rank[i] += x.span[i];
 					// 继续向右前进
-					x = x.level[i].forward;
+					x = x.forward[i];
 				}
 				// 保存访问节点
 				update[i] = x;
 			}
 
+			return this.link(new SkipListNode(this.randomLevel(), score, obj));
+		}
+
+		/**
+		 * 在 update 和 rank 记录的位置之后插入新节点
+		 * <p/>
+		 * T = O(1)
+		 *
+		 * @param x 调用方用 randomLevel() 作为层数创建的新节点
+		 */
+		private SkipListNode link(SkipListNode x) {
+			SkipListNode[] update = this.update;
+			int[] rank = this.rank;
+			int i;
+
 			// 因为这个函数不可能处理两个元素的 member 和 score 都相同的情况，
-			// 所以直接创建新节点，不用检查存在性
+			// 所以新节点不用检查存在性
 
-			// 计算新的随机层数
-			int level = randomLevel();
+			// 新节点的随机层数
+			int level = x.forward.length;
 
 			// 如果 level 比当前 skiplist 的最大层数还要大
 			// 那么更新 this.level 参数
@@ -206,47 +531,169 @@ public final class SortedSet {
 				for (i = this.level; i < level; i++) {
 					rank[i] = 0;
 					update[i] = this.header;
-					update[i].level[i].span = this.length;
+					update[i].span[i] = this.length;
 				}
 				this.level = level;
 			}
 
-			// 创建新节点
-			x = new SkipListNode(level, score, obj);
-
 			// 根据 update 和 rank 两个数组的资料，初始化新节点
 			// 并设置相应的指针
 			// O(N)
 			for (i = 0; i < level; i++) {
 				// 设置指针
-				x.level[i].forward = update[i].level[i].forward;
-				update[i].level[i].forward = x;
+				x.forward[i] = update[i].forward[i];
+				update[i].forward[i] = x;
 
 				// 设置 span
-				x.level[i].span = update[i].level[i].span - (rank[0] - rank[i]);
-				update[i].level[i].span = (rank[0] - rank[i]) + 1;
+				x.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+				update[i].span[i] = (rank[0] - rank[i]) + 1;
 			}
 
 			// 更新沿途访问节点的 span 值
 			for (i = level; i < this.level; i++) {
-				update[i].level[i].span++;
+				update[i].span[i]++;
 			}
 
 			// 设置后退指针
 			x.backward = (update[0] == this.header) ? null : update[0];
 			// 设置 x 的前进指针
-			if (x.level[0].forward != null)
-				x.level[0].forward.backward = x;
+			if (x.forward[0] != null)
+				x.forward[0].backward = x;
 			else
 				// 这个是新的表尾节点
 				this.tail = x;
 
 			// 更新跳跃表节点数量
 			this.length++;
+			this.modCount++;
 
 			return x;
 		}
 
+		/**
+		 * 把 update/rank 重置为表头，开始一轮有序的批量操作
+		 */
+		private void resetFinger() {
+			for (int i = 0; i < this.maxLevel; i++) {
+				this.update[i] = this.header;
+				this.rank[i] = 0;
+			}
+		}
+
+		/**
+		 * 以上一次查找留下的 update/rank 为起点（finger），查找 (score, obj) 的插入位置
+		 * <p/>
+		 * 要求 (score, obj) 不小于上一次查找的值，这样每层都可以从
+		 * "上一层下来的节点" 和 "上一次在这一层停下的节点" 中靠后的那个继续向右走，
+		 * 有序的 M 个元素总共只需要走一遍链表，而不是 M 次从表头开始的查找。
+		 * <p/>
+		 * T = O(log d)，d 为与上一次查找位置的距离
+		 */
+		private void fingerSearch(long score, long obj) {
+			SkipListNode[] update = this.update;
+			int[] rank = this.rank;
+			SkipListNode x = this.header;
+			int r = 0;
+
+			for (int i = this.level - 1; i >= 0; i--) {
+				if (rank[i] > r) {
+					x = update[i];
+					r = rank[i];
+				}
+				while (x.forward[i] != null &&
+						(x.forward[i].score < score ||
+								(x.forward[i].score == score && x.forward[i].obj < obj))) {
+					r += x.span[i];
+					x = x.forward[i];
+				}
+				update[i] = x;
+				rank[i] = r;
+			}
+		}
+
+		/**
+		 * 有序批量插入，(scores[i], objs[i]) 必须严格递增且不在表中
+		 * <p/>
+		 * T = O(N + M)
+		 */
+		private void insertSorted(long[] scores, long[] objs, int n) {
+			this.resetFinger();
+			for (int j = 0; j < n; j++) {
+				this.fingerSearch(scores[j], objs[j]);
+				SkipListNode x = this.link(new SkipListNode(this.randomLevel(), scores[j], objs[j]));
+				// 新节点成为它所在各层的 finger，更高层的 finger 仍然在它前面，不用动
+				int r = this.rank[0] + 1;
+				for (int i = 0; i < x.forward.length; i++) {
+					this.update[i] = x;
+					this.rank[i] = r;
+				}
+			}
+		}
+
+		/**
+		 * 有序批量删除，(scores[i], objs[i]) 必须严格递增
+		 * <p/>
+		 * T = O(N + M)
+		 *
+		 * @return 删除的数量
+		 */
+		private int deleteSorted(long[] scores, long[] objs, int n) {
+			int removed = 0;
+			this.resetFinger();
+			for (int j = 0; j < n; j++) {
+				this.fingerSearch(scores[j], objs[j]);
+				// 删除不影响 update 中节点的 rank，它们都在被删节点之前
+				SkipListNode x = this.update[0].forward[0];
+				if (x != null && x.score == scores[j] && x.obj == objs[j]) {
+					this.deleteNode(x, this.update);
+					removed++;
+				}
+			}
+			return removed;
+		}
+
+		/**
+		 * 用有序数据自底向上直接建表，(scores[i], objs[i]) 必须严格递增
+		 * <p/>
+		 * 每个节点只在它的各层末尾追加一次，不需要查找
+		 * <p/>
+		 * T = O(N)
+		 */
+		private static SkipList build(SkipList list, long[] scores, long[] objs, int n) {
+			SkipListNode[] last = list.update;
+			int[] lastRank = list.rank;
+			list.resetFinger();
+
+			SkipListNode prev = null;
+			int maxLevel = 1;
+			for (int j = 0; j < n; j++) {
+				int level = list.randomLevel();
+				SkipListNode x = new SkipListNode(level, scores[j], objs[j]);
+				int r = j + 1;
+				for (int i = 0; i < level; i++) {
+					last[i].forward[i] = x;
+					last[i].span[i] = r - lastRank[i];
+					last[i] = x;
+					lastRank[i] = r;
+				}
+				x.backward = prev;
+				prev = x;
+				if (level > maxLevel) {
+					maxLevel = level;
+				}
+			}
+
+			// 每层最后一个节点的 span 指向表尾之后
+			for (int i = 0; i < maxLevel; i++) {
+				last[i].span[i] = n - lastRank[i];
+			}
+
+			list.tail = prev;
+			list.length = n;
+			list.level = maxLevel;
+			return list;
+		}
+
 		/**
 		 * 节点删除函数
 		 * <p/>
@@ -257,26 +704,27 @@ public final class SortedSet {
 
 			// 修改相应的指针和 span , O(N)
 			for (i = 0; i < this.level; i++) {
-				if (update[i].level[i].forward == x) {
-					update[i].level[i].span += x.level[i].span - 1;
-					update[i].level[i].forward = x.level[i].forward;
+				if (update[i].forward[i] == x) {
+					update[i].span[i] += x.span[i] - 1;
+					update[i].forward[i] = x.forward[i];
 				} else {
-					update[i].level[i].span -= 1;
+					update[i].span[i] -= 1;
 				}
 			}
 
 			// 处理表头和表尾节点
-			if (x.level[0].forward != null) {
-				x.level[0].forward.backward = x.backward;
+			if (x.forward[0] != null) {
+				x.forward[0].backward = x.backward;
 			} else {
 				this.tail = x.backward;
 			}
 
 			// 收缩 level 的值, O(N)
-			while (this.level > 1 && this.header.level[this.level - 1].forward == null)
+			while (this.level > 1 && this.header.forward[this.level - 1] == null)
 				this.level--;
 
 			this.length--;
+			this.modCount++;
 		}
 
 		/**
@@ -289,21 +737,21 @@ public final class SortedSet {
 		private int delete(long score, long obj) {
 			int i;
 
-			SkipListNode[] update = new SkipListNode[ZSKIPLIST_MAXLEVEL];
+			SkipListNode[] update = this.update;
 
 			SkipListNode x = this.header;
 			// 遍历所有层，记录删除节点后需要被修改的节点到 update 数组
 			for (i = this.level - 1; i >= 0; i--) {
-				while (x.level[i].forward != null &&
-						(x.level[i].forward.score < score ||
-								(x.level[i].forward.score == score &&
-										x.level[i].forward.obj < obj)))
-					x = x.level[i].forward;
+				while (x.forward[i] != null &&
+						(x.forward[i].score < score ||
+								(x.forward[i].score == score &&
+										x.forward[i].obj < obj)))
+					x = x.forward[i];
 				update[i] = x;
 			}
 			// 因为多个不同的 member 可能有相同的 score 
 			// 所以要确保 x 的 member 和 score 都匹配时，才进行删除
-			x = x.level[0].forward;
+			x = x.forward[0];
 			if (x != null && score == x.score && x.obj == obj) {
 				this.deleteNode(x, update);
 				return 1;
@@ -312,11 +760,11 @@ public final class SortedSet {
 			}
 		}
 
-		private static boolean keyGteMin(long key, RangeSpec spec) {
+		static boolean keyGteMin(long key, RangeSpec spec) {
 			return spec.minex ? (key > spec.min) : (key >= spec.min);
 		}
 
-		private static boolean keyLteMax(long key, RangeSpec spec) {
+		static boolean keyLteMax(long key, RangeSpec spec) {
 			return spec.maxex ? (key < spec.max) : (key <= spec.max);
 		}
 
@@ -341,7 +789,7 @@ public final class SortedSet {
 
 			// 如果 skiplist 的最小节点的 score 比范围的最大值要大
 			// 那么 skiplist 不在范围之内
-			x = this.header.level[0].forward;
+			x = this.header.forward[0];
 			if (x == null || !keyLteMax(x.score, range))
 				return false;
 
@@ -354,7 +802,7 @@ public final class SortedSet {
 		 * <p/>
 		 * T_worst = O(N) , T_average = O(log N)
 		 */
-		private SkipListNode firstInRange(RangeSpec range) {
+		SkipListNode firstInRange(RangeSpec range) {
 			SkipListNode x;
 			int i;
 
@@ -364,12 +812,12 @@ public final class SortedSet {
 			// O(N)
 			x = this.header;
 			for (i = this.level - 1; i >= 0; i--) {
-				while (x.level[i].forward != null &&
-						!keyGteMin(x.level[i].forward.score, range))
-					x = x.level[i].forward;
+				while (x.forward[i] != null &&
+						!keyGteMin(x.forward[i].score, range))
+					x = x.forward[i];
 			}
 
-			x = x.level[0].forward;
+			x = x.forward[0];
 
 			// O(1)
 			if (!keyLteMax(x.score, range)) return null;
@@ -381,7 +829,7 @@ public final class SortedSet {
 		 * <p/>
 		 * T_worst = O(N) , T_average = O(log N)
 		 */
-		private SkipListNode lastInRange(RangeSpec range) {
+		SkipListNode lastInRange(RangeSpec range) {
 			SkipListNode x;
 			int i;
 
@@ -390,9 +838,9 @@ public final class SortedSet {
 			// O(N)
 			x = this.header;
 			for (i = this.level - 1; i >= 0; i--) {
-				while (x.level[i].forward != null &&
-						keyLteMax(x.level[i].forward.score, range))
-					x = x.level[i].forward;
+				while (x.forward[i] != null &&
+						keyLteMax(x.forward[i].score, range))
+					x = x.forward[i];
 			}
 
 			if (!keyGteMin(x.score, range)) return null;
@@ -416,30 +864,54 @@ public final class SortedSet {
 			// 遍历 skiplist ，并累积沿途的 span 到 rank ，找到目标元素时返回 rank
 			// O(N)
 			for (i = this.level - 1; i >= 0; i--) {
-				while (x.level[i].forward != null &&
-						(x.level[i].forward.score < score ||
-								(x.level[i].forward.score == score &&
-										x.level[i].forward.obj <= obj))) {
+				while (x.forward[i] != null &&
+						(x.forward[i].score < score ||
+								(x.forward[i].score == score &&
+										x.forward[i].obj <= obj))) {
 					// 累积
-					rank += x.level[i].span;
+					rank += x.span[i];
 					// 前进
-					x = x.level[i].forward;
+					x = x.forward[i];
 				}
 
 				// 找到目标元素
-				if (x.obj != null && x.obj == obj) {
+				if (x != this.header && x.obj == obj) {
 					return rank;
 				}
 			}
 			return 0;
 		}
 
+		/**
+		 * 查找最后一个 (score, obj) 严格小于给定值的节点，没有时返回表头
+		 * <p/>
+		 * T_worst = O(N) , T_average = O(log N)
+		 *
+		 * @param out out[0] 为这个节点的 rank，也就是小于给定值的元素个数
+		 */
+		private SkipListNode lastLess(long score, long obj, int[] out) {
+			SkipListNode x = this.header;
+			int rank = 0;
+			for (int i = this.level - 1; i >= 0; i--) {
+				while (x.forward[i] != null &&
+						(x.forward[i].score < score ||
+								(x.forward[i].score == score && x.forward[i].obj < obj))) {
+					rank += x.span[i];
+					x = x.forward[i];
+				}
+			}
+			if (out != null) {
+				out[0] = rank;
+			}
+			return x;
+		}
+
 		/**
 		 * 根据给定的 rank 查找元素
 		 * <p/>
 		 * T = O(N)
 		 */
-		private SkipListNode getElementByRank(int rank) {
+		SkipListNode getElementByRank(int rank) {
 			SkipListNode x;
 			int traversed = 0;
 			int i;
@@ -448,9 +920,9 @@ public final class SortedSet {
 			// O(N)
 			x = this.header;
 			for (i = this.level - 1; i >= 0; i--) {
-				while (x.level[i].forward != null && (traversed + x.level[i].span) <= rank) {
-					traversed += x.level[i].span;
-					x = x.level[i].forward;
+				while (x.forward[i] != null && (traversed + x.span[i]) <= rank) {
+					traversed += x.span[i];
+					x = x.forward[i];
 				}
 				if (traversed == rank) {
 					return x;
@@ -461,130 +933,866 @@ public final class SortedSet {
 			return null;
 		}
 
-	}
+		/**
+		 * 删除给定范围内的 score 的元素。
+		 * <p/>
+		 * T = O(N^2)
+		 */
+		int deleteRangeByScore(RangeSpec range, Removal removal) {
+			SkipListNode[] update = this.update;
+			SkipListNode x;
+			int removed = 0;
+			int i;
 
+			// 记录沿途的节点
+			// O(N)
+			x = this.header;
+			for (i = this.level - 1; i >= 0; i--) {
+				while (x.forward[i] != null && (range.minex ?
+						x.forward[i].score <= range.min :
+						x.forward[i].score < range.min))
+					x = x.forward[i];
+				update[i] = x;
+			}
 
-	private static final int ZSKIPLIST_MAXLEVEL = 32; /* Should be enough for 2^32 elements */
-	private static final float ZSKIPLIST_P = 0.25f;
+			x = x.forward[0];
 
-	private SkipList list = new SkipList();
-	private Map<Long, Long> dict = new HashMap<>();
+			// 一直向右删除，直到到达 range 的底为止
+			// O(N^2)
+			while (x != null && (range.maxex ? x.score < range.max : x.score <= range.max)) {
+				// 保存后继指针
+				SkipListNode next = x.forward[0];
+				// 在跳跃表中删除, O(N)
+				this.deleteNode(x, update);
+				// 在字典等索引中删除
+				removal.removed(x);
 
-	/**
-	 * 清理这个 SortedSet
-	 */
-	public void clear() {
-		synchronized (this) {
-			this.list = new SkipList();
-			this.dict.clear();
-		}
-	}
+				removed++;
 
-	/**
-	 * 删除给定范围内的 score 的元素。
-	 * <p/>
-	 * T = O(N^2)
-	 */
-	private int deleteRangeByScore(RangeSpec range) {
-		SkipListNode[] update = new SkipListNode[ZSKIPLIST_MAXLEVEL];
-		SkipListNode x;
-		int removed = 0;
-		int i;
+				x = next;
+			}
 
-		// 记录沿途的节点
-		// O(N)
-		x = this.list.header;
-		for (i = this.list.level - 1; i >= 0; i--) {
-			while (x.level[i].forward != null && (range.minex ?
-					x.level[i].forward.score <= range.min :
-					x.level[i].forward.score < range.min))
-				x = x.level[i].forward;
-			update[i] = x;
+			return removed;
 		}
 
-		x = x.level[0].forward;
+		/**
+		 * 删除给定排序范围内的所有节点
+		 * <p/>
+		 * T = O(N^2)
+		 */
+		int deleteRangeByRank(int start, int end, Removal removal) {
+			SkipListNode[] update = this.update;
+			SkipListNode x;
+			int traversed = 0, removed = 0;
+			int i;
 
-		// 一直向右删除，直到到达 range 的底为止
-		// O(N^2)
-		while (x != null && (range.maxex ? x.score < range.max : x.score <= range.max)) {
-			// 保存后继指针
-			SkipListNode next = x.level[0].forward;
-			// 在跳跃表中删除, O(N)
-			this.list.deleteNode(x, update);
-			// 在字典中删除，O(1)
-			this.dict.remove(x.obj);
+			// 通过计算 rank ，移动到删除开始的地方
+			// O(N)
+			x = this.header;
+			for (i = this.level - 1; i >= 0; i--) {
+				while (x.forward[i] != null && (traversed + x.span[i]) < start) {
+					traversed += x.span[i];
+					x = x.forward[i];
+				}
+				update[i] = x;
+			}
 
-			removed++;
+			// 算上 start 节点
+			traversed++;
+			// 从 start 开始，删除直到到达索引 end ，或者末尾
+			// O(N^2)
+			x = x.forward[0];
+			while (x != null && traversed <= end) {
+				// 保存后一节点的指针
+				SkipListNode next = x.forward[0];
+				// 删除 skiplist 节点, O(N)
+				this.deleteNode(x, update);
+				// 在字典等索引中删除
+				removal.removed(x);
 
-			x = next;
+				removed++;
+				traversed++;
+				x = next;
+			}
+			return removed;
 		}
 
-		return removed;
 	}
 
+
 	/**
-	 * 删除给定排序范围内的所有节点
+	 * 按 (score, tiebreak, obj) 排序的跳表，只有 CompositeSortedSet 使用
 	 * <p/>
-	 * T = O(N^2)
-	 */
-	private int deleteRangeByRank(int start, int end) {
-		SkipListNode[] update = new SkipListNode[ZSKIPLIST_MAXLEVEL];
-		SkipListNode x;
-		int traversed = 0, removed = 0;
-		int i;
-
-		// 通过计算 rank ，移动到删除开始的地方
-		// O(N)
-		x = this.list.header;
-		for (i = this.list.level - 1; i >= 0; i--) {
-			while (x.level[i].forward != null && (traversed + x.level[i].span) < start) {
-				traversed += x.level[i].span;
-				x = x.level[i].forward;
-			}
-			update[i] = x;
-		}
-
-		// 算上 start 节点
-		traversed++;
-		// 从 start 开始，删除直到到达索引 end ，或者末尾
-		// O(N^2)
-		x = x.level[0].forward;
-		while (x != null && traversed <= end) {
-			// 保存后一节点的指针
-			SkipListNode next = x.level[0].forward;
-			// 删除 skiplist 节点, O(N)
-			this.list.deleteNode(x, update);
-			// 删除 dict 节点, O(1)
-			this.dict.remove(x.obj);
-
-			removed++;
-			traversed++;
-			x = next;
-		}
-		return removed;
-	}
+	 * 只重写了查找，节点的链接、删除、按排名和分数范围的查找都沿用 SkipList；
+	 * SkipList 自己的查找仍然只比较 (score, obj)，普通 SortedSet 不受影响。
+	 * 有序批量操作（insertSorted/deleteSorted/build/lastLess）不能用于这个跳表。
+	 */
+	static final class TiebreakSkipList extends SkipList {
 
-	private String debugString() {
-		StringBuilder sb = new StringBuilder();
-		for (int i = this.list.level - 1; i >= 0; i--) {
-			SkipListNode node = this.list.header;
-			sb.append("level ").append(i).append(":");
-			while (node.level[i].forward != null) {
-				node = node.level[i].forward;
-				sb.append("[k=").append(node.obj).append(":v=").append(node.score).append("]");
-			}
-			sb.append("\n");
+		TiebreakSkipList(int maxLevel, float p, long seed) {
+			super(maxLevel, p, seed);
 		}
 
-		return sb.toString();
-	}
+		/**
+		 * 节点 x 是否排在 (score, tiebreak, obj) 之前
+		 *
+		 * @param inclusive true=相等也算
+		 */
+		private static boolean before(SkipListNode x, long score, long tiebreak, long obj, boolean inclusive) {
+			if (x.score != score) {
+				return x.score < score;
+			}
+			long t = ((TiebreakNode) x).tiebreak;
+			if (t != tiebreak) {
+				return t < tiebreak;
+			}
+			return inclusive ? x.obj <= obj : x.obj < obj;
+		}
+
+		/**
+		 * @see SkipList#insert(long, long)
+		 */
+		TiebreakNode insert(long score, long tiebreak, long obj) {
+			SkipListNode[] update = super.update;
+			int[] rank = super.rank;
+			SkipListNode x = super.header;
+
+			for (int i = super.level - 1; i >= 0; i--) {
+				rank[i] = i == (super.level - 1) ? 0 : rank[i + 1];
+				while (x.forward[i] != null && before(x.forward[i], score, tiebreak, obj, false)) {
+					rank[i] += x.span[i];
+					x = x.forward[i];
+				}
+				update[i] = x;
+			}
+
+			return (TiebreakNode) super.link(new TiebreakNode(super.randomLevel(), score, tiebreak, obj));
+		}
+
+		/**
+		 * @return 1=success 0=not found
+		 * @see SkipList#delete(long, long)
+		 */
+		int delete(long score, long tiebreak, long obj) {
+			SkipListNode[] update = super.update;
+			SkipListNode x = super.header;
+			for (int i = super.level - 1; i >= 0; i--) {
+				while (x.forward[i] != null && before(x.forward[i], score, tiebreak, obj, false))
+					x = x.forward[i];
+				update[i] = x;
+			}
+			x = x.forward[0];
+			if (x != null && score == x.score && tiebreak == ((TiebreakNode) x).tiebreak && x.obj == obj) {
+				super.deleteNode(x, update);
+				return 1;
+			} else {
+				return 0;
+			}
+		}
+
+		/**
+		 * @return 0 if not found
+		 * @see SkipList#getRank(long, long)
+		 */
+		int getRank(long score, long tiebreak, long obj) {
+			int rank = 0;
+			SkipListNode x = super.header;
+			for (int i = super.level - 1; i >= 0; i--) {
+				while (x.forward[i] != null && before(x.forward[i], score, tiebreak, obj, true)) {
+					rank += x.span[i];
+					x = x.forward[i];
+				}
+				if (x != super.header && x.obj == obj) {
+					return rank;
+				}
+			}
+			return 0;
+		}
+	}
+
+
+	private static final int ZSKIPLIST_MAXLEVEL = 32; /* Should be enough for 2^32 elements */
+	private static final float ZSKIPLIST_P = 0.25f;
+
+	/**
+	 * 跳表参数，见构造函数
+	 */
+	private final float p;
+	private final int maxLevel;
+	private long seed;
+
+	private SkipList list;
+	private final LongLongHashMap dict = new LongLongHashMap();
+
+	/**
+	 * 修改日志，可以为 null
+	 */
+	private SortedSetJournal journal = null;
+
+	/**
+	 * 分数直方图，可以为 null
+	 */
+	private ScoreHistogram histogram = null;
+
+	/**
+	 * 前 K 名的快照，可以为 null
+	 */
+	private TopKView topK = null;
+
+	/**
+	 * 过期时间索引，按 (expireAt, key) 排序，第一次设置过期时间时才创建
+	 */
+	private SkipList expiry = null;
+	private LongLongHashMap expireAts = null;
+
+	/**
+	 * 默认参数：P=0.25，最大 32 层
+	 */
+	public SortedSet() {
+		this(ZSKIPLIST_P, ZSKIPLIST_MAXLEVEL);
+	}
+
+	/**
+	 * @param p        节点升一层的概率，越小越省内存、查找越慢，平均层数为 1/(1-p)
+	 * @param maxLevel 最大层数，约为 log(1/p, N)
+	 */
+	public SortedSet(float p, int maxLevel) {
+		this(p, maxLevel, System.nanoTime());
+	}
+
+	/**
+	 * 指定随机种子，相同的种子和相同的操作序列得到相同的表结构，便于复现和调参
+	 *
+	 * @see #SortedSet(float, int)
+	 */
+	public SortedSet(float p, int maxLevel, long seed) {
+		if (!(p > 0 && p < 1)) {
+			throw new IllegalArgumentException("p must in (0, 1)");
+		}
+		if (maxLevel < 1 || maxLevel > 64) {
+			throw new IllegalArgumentException("maxLevel must in [1, 64]");
+		}
+		this.p = p;
+		this.maxLevel = maxLevel;
+		this.seed = seed;
+		this.list = this.newSkipList();
+	}
+
+	/**
+	 * 每个跳表用不同的种子，由 seed 确定性地派生
+	 */
+	private SkipList newSkipList() {
+		this.seed += 0x9E3779B97F4A7C15L;
+		long z = this.seed;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new SkipList(this.maxLevel, this.p, z ^ (z >>> 31));
+	}
+
+	/**
+	 * 范围删除时同步 dict、钩子和过期索引
+	 */
+	private final Removal removal = new Removal() {
+		@Override
+		public void removed(SkipListNode x) {
+			dict.remove(x.obj);
+			onRemoved(x.score, x.obj);
+			dropExpireAt(x.obj);
+		}
+	};
+
+	/**
+	 * 按 (score, key) 升序原地排序两个平行数组
+	 * <p/>
+	 * introsort：快排，递归太深时改用堆排，小区间用插入排序，不装箱
+	 */
+	static void sort(long[] scores, long[] keys, int n) {
+		int depth = 2 * (32 - Integer.numberOfLeadingZeros(n));
+		quickSort(scores, keys, 0, n - 1, depth);
+	}
+
+	private static boolean less(long[] scores, long[] keys, int a, int b) {
+		return scores[a] < scores[b] || (scores[a] == scores[b] && keys[a] < keys[b]);
+	}
+
+	private static void swap(long[] scores, long[] keys, int a, int b) {
+		long t = scores[a];
+		scores[a] = scores[b];
+		scores[b] = t;
+		t = keys[a];
+		keys[a] = keys[b];
+		keys[b] = t;
+	}
+
+	private static void quickSort(long[] scores, long[] keys, int lo, int hi, int depth) {
+		while (hi - lo > 16) {
+			if (depth-- == 0) {
+				heapSort(scores, keys, lo, hi);
+				return;
+			}
+
+			// 三数取中，pivot 放到 hi
+			int mid = (lo + hi) >>> 1;
+			if (less(scores, keys, mid, lo)) swap(scores, keys, mid, lo);
+			if (less(scores, keys, hi, lo)) swap(scores, keys, hi, lo);
+			if (less(scores, keys, mid, hi)) swap(scores, keys, mid, hi);
+
+			int i = lo;
+			for (int j = lo; j < hi; j++) {
+				if (less(scores, keys, j, hi)) {
+					swap(scores, keys, i++, j);
+				}
+			}
+			swap(scores, keys, i, hi);
+
+			// 递归小的一边，循环大的一边
+			if (i - lo < hi - i) {
+				quickSort(scores, keys, lo, i - 1, depth);
+				lo = i + 1;
+			} else {
+				quickSort(scores, keys, i + 1, hi, depth);
+				hi = i - 1;
+			}
+		}
+
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; j > lo && less(scores, keys, j, j - 1); j--) {
+				swap(scores, keys, j, j - 1);
+			}
+		}
+	}
+
+	private static void heapSort(long[] scores, long[] keys, int lo, int hi) {
+		int n = hi - lo + 1;
+		for (int i = n / 2 - 1; i >= 0; i--) {
+			siftDown(scores, keys, lo, i, n);
+		}
+		for (int end = n - 1; end > 0; end--) {
+			swap(scores, keys, lo, lo + end);
+			siftDown(scores, keys, lo, 0, end);
+		}
+	}
+
+	private static void siftDown(long[] scores, long[] keys, int lo, int i, int n) {
+		for (int child; (child = 2 * i + 1) < n; i = child) {
+			if (child + 1 < n && less(scores, keys, lo + child, lo + child + 1)) {
+				child++;
+			}
+			if (!less(scores, keys, lo + i, lo + child)) {
+				return;
+			}
+			swap(scores, keys, lo + i, lo + child);
+		}
+	}
+
+	private String debugString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = this.list.level - 1; i >= 0; i--) {
+			SkipListNode node = this.list.header;
+			sb.append("level ").append(i).append(":");
+			while (node.forward[i] != null) {
+				node = node.forward[i];
+				sb.append("[k=").append(node.obj).append(":v=").append(node.score).append("]");
+			}
+			sb.append("\n");
+		}
+
+		return sb.toString();
+	}
+
+
+
+	/*-----------------------------------------------------------------------------
+	 * 不加锁的实现，由调用者负责同步
+	 * SortedSet 自己用 synchronized，ConcurrentSortedSet 用读写锁
+	 *----------------------------------------------------------------------------*/
+
+	void doClear() {
+		this.list = this.newSkipList();
+		this.dict.clear();
+		if (this.histogram != null) {
+			this.histogram.clear();
+		}
+		this.expiry = null;
+		this.expireAts = null;
+		if (this.topK != null) {
+			this.topK.invalidate();
+			this.publishTopK();
+		}
+	}
+
+	private void onAdded(long score, long key) {
+		if (this.histogram != null) {
+			this.histogram.add(score);
+		}
+		if (this.topK != null) {
+			this.topK.touch(score, key);
+		}
+	}
+
+	private void onRemoved(long score, long key) {
+		if (this.histogram != null) {
+			this.histogram.remove(score);
+		}
+		if (this.topK != null) {
+			this.topK.touch(score, key);
+		}
+	}
+
+	/**
+	 * 修改影响了前 K 名时，从表尾向前重新取 K 个并发布，O(K)
+	 * <p/>
+	 * 在每个修改操作的最后调用，批量修改只发布一次
+	 */
+	private void publishTopK() {
+		TopKView topK = this.topK;
+		if (topK == null || !topK.isDirty()) {
+			return;
+		}
+		int n = Math.min(topK.getK(), this.list.length);
+		long[] scores = new long[n];
+		long[] keys = new long[n];
+		SkipListNode x = this.list.tail;
+		for (int i = 0; i < n; i++) {
+			scores[i] = x.score;
+			keys[i] = x.obj;
+			x = x.backward;
+		}
+		topK.publish(scores, keys);
+	}
+
+	void doSetExpireAt(long key, long expireAt) {
+		if (this.expiry == null) {
+			this.expiry = this.newSkipList();
+			this.expireAts = new LongLongHashMap();
+		}
+		this.dropExpireAt(key);
+		this.expireAts.put(key, expireAt);
+		this.expiry.insert(expireAt, key);
+	}
+
+	private void dropExpireAt(long key) {
+		if (this.expireAts != null && this.expireAts.containsKey(key)) {
+			this.expiry.delete(this.expireAts.get(key, 0L), key);
+			this.expireAts.remove(key);
+		}
+	}
+
+	boolean doContainsKey(long key) {
+		return this.dict.containsKey(key);
+	}
+
+	long doGetScore(long key, long defaultScore) {
+		return this.dict.get(key, defaultScore);
+	}
+
+	void doAdd(long score, long key) {
+		if (this.dict.containsKey(key)) {
+			long old = this.dict.get(key, 0L);
+			this.list.delete(old, key);
+			this.onRemoved(old, key);
+		}
+		this.dict.put(key, score);
+		this.list.insert(score, key);
+		this.onAdded(score, key);
+		this.publishTopK();
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key，同一批里重复的key以最后一个为准
+	 * <p/>
+	 * <ul>
+	 * <li>表为空时：排序一次，然后自底向上直接建表，O(M log M)</li>
+	 * <li>表不为空时：把需要删除的旧值和需要插入的新值各排序一次，
+	 * 再分别沿着链表走一遍完成删除和插入，不需要 M 次独立查找</li>
+	 * </ul>
+	 */
+	void doAddAll(long[] scores, long[] keys, int n) {
+		// 去重，保留最后一次出现的
+		LongLongHashMap lastIndex = new LongLongHashMap(n);
+		for (int i = 0; i < n; i++) {
+			lastIndex.put(keys[i], i);
+		}
+
+		long[] newScores = new long[lastIndex.size()];
+		long[] newKeys = new long[lastIndex.size()];
+		long[] oldScores = new long[lastIndex.size()];
+		long[] oldKeys = new long[lastIndex.size()];
+		int m = 0, d = 0;
+		for (int i = 0; i < n; i++) {
+			long key = keys[i];
+			if (lastIndex.get(key, -1) != i) {
+				continue;
+			}
+			long score = scores[i];
+			if (this.dict.containsKey(key)) {
+				long old = this.dict.get(key, 0L);
+				if (old == score) {
+					continue;
+				}
+				oldScores[d] = old;
+				oldKeys[d] = key;
+				d++;
+			}
+			newScores[m] = score;
+			newKeys[m] = key;
+			m++;
+		}
+
+		sort(newScores, newKeys, m);
+
+		if (this.dict.isEmpty()) {
+			this.list = SkipList.build(this.newSkipList(), newScores, newKeys, m);
+		} else {
+			sort(oldScores, oldKeys, d);
+			this.list.deleteSorted(oldScores, oldKeys, d);
+			this.list.insertSorted(newScores, newKeys, m);
+		}
+
+		for (int i = 0; i < d; i++) {
+			this.onRemoved(oldScores[i], oldKeys[i]);
+		}
+		for (int i = 0; i < m; i++) {
+			this.dict.put(newKeys[i], newScores[i]);
+			this.onAdded(newScores[i], newKeys[i]);
+		}
+		this.publishTopK();
+	}
+
+	/**
+	 * @return [scores, keys]
+	 */
+	static long[][] toArrays(Collection<RecordObject> recordObjects) {
+		long[] scores = new long[recordObjects.size()];
+		long[] keys = new long[recordObjects.size()];
+		int n = 0;
+		for (RecordObject recordObject : recordObjects) {
+			scores[n] = recordObject.getScore();
+			keys[n] = recordObject.getKey();
+			n++;
+		}
+		return new long[][]{scores, keys};
+	}
+
+	/**
+	 * 按 (score, key) 升序导出到数组
+	 *
+	 * @return 元素个数
+	 */
+	int doToArrays(long[] scores, long[] keys) {
+		int n = 0;
+		for (SkipListNode x = this.list.header.forward[0]; x != null; x = x.forward[0]) {
+			scores[n] = x.score;
+			keys[n] = x.obj;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * 用已经按 (score, key) 严格升序且 key 不重复的数据替换全部内容，不排序直接建表
+	 */
+	void doLoadSorted(long[] scores, long[] keys, int n) {
+		this.dict.clear();
+		this.expiry = null;
+		this.expireAts = null;
+		if (this.histogram != null) {
+			this.histogram.clear();
+		}
+		for (int i = 0; i < n; i++) {
+			this.dict.put(keys[i], scores[i]);
+			this.onAdded(scores[i], keys[i]);
+		}
+		this.list = SkipList.build(this.newSkipList(), scores, keys, n);
+		if (this.topK != null) {
+			this.topK.invalidate();
+			this.publishTopK();
+		}
+	}
+
+	/**
+	 * @return (score, key) 严格小于给定值的元素个数
+	 */
+	int doCountLess(long score, long key) {
+		int[] rank = new int[1];
+		this.list.lastLess(score, key, rank);
+		return rank[0];
+	}
+
+	/**
+	 * 从 (score, key) 开始取最多 limit 个元素，RecordObject::rank 不设置
+	 *
+	 * @param reverse false=取不小于 (score, key) 的元素，升序；true=取不大于 (score, key) 的元素，降序
+	 */
+	List<RecordObject> doRangeFrom(long score, long key, boolean reverse, int limit) {
+		List<RecordObject> ls = new ArrayList<>(Math.min(limit, this.list.length));
+		SkipListNode x = this.list.lastLess(score, key, null);
+		SkipListNode next = x.forward[0];
+		if (reverse) {
+			if (next != null && next.score == score && next.obj == key) {
+				x = next;
+			}
+			for (; x != null && x != this.list.header && ls.size() < limit; x = x.backward) {
+				ls.add(x.toRecordObject());
+			}
+		} else {
+			for (x = next; x != null && ls.size() < limit; x = x.forward[0]) {
+				ls.add(x.toRecordObject());
+			}
+		}
+		return ls;
+	}
+
+	void doRemove(long key) {
+		this.removeEntry(key);
+		this.publishTopK();
+	}
+
+	/**
+	 * 删除但不发布 TopKView，批量删除时最后发布一次
+	 */
+	private void removeEntry(long key) {
+		if (this.dict.containsKey(key)) {
+			long score = this.dict.get(key, 0L);
+			this.dict.remove(key);
+			this.list.delete(score, key);
+			this.onRemoved(score, key);
+			this.dropExpireAt(key);
+		}
+	}
+
+	void doRemoveByScore(RangeSpec range) {
+		this.list.deleteRangeByScore(range, this.removal);
+		this.publishTopK();
+	}
+
+	void doRemoveByRank(int start, int end, boolean reverse) {
+		if (reverse) {
+			int size = this.dict.size();
+			this.list.deleteRangeByRank(size + 1 - end, size + 1 - start, this.removal);
+		} else {
+			this.list.deleteRangeByRank(start, end, this.removal);
+		}
+		this.publishTopK();
+	}
+
+	int doRank(long key, boolean reverse) {
+		if (this.dict.containsKey(key)) {
+			long score = this.dict.get(key, 0L);
+			return reverse
+					? this.dict.size() + 1 - this.list.getRank(score, key)
+					: this.list.getRank(score, key);
+		}
+		return -1;
+	}
+
+	RecordObject doGetByRank(int rank, boolean reverse) {
+		int realRank = reverse ? this.dict.size() + 1 - rank : rank;
+
+		SkipListNode res = this.list.getElementByRank(realRank);
+		if (res == null || res == this.list.header) {
+			return null;
+		}
+		RecordObject recordObject = res.toRecordObject();
+		recordObject.setRank(rank);
+
+		return recordObject;
+	}
+
+	List<RecordObject> doGetRangeByRank(int rankBegin, int rankEnd, boolean reverse) {
+		if (rankBegin > rankEnd) {
+			return null;
+		}
+		int size = this.list.length;
+		rankBegin = rankBegin < 1 ? 1 : rankBegin;
+		rankEnd = rankEnd > size ? size : rankEnd;
+		if (rankBegin > rankEnd) {
+			return new ArrayList<>(0);
+		}
+
+		// 从大到小时沿 backward 指针走，不需要先正向收集再反转
+		List<RecordObject> ls = new ArrayList<>(rankEnd - rankBegin + 1);
+		SkipListNode node = this.list.getElementByRank(reverse ? size + 1 - rankBegin : rankBegin);
+		for (int rank = rankBegin; node != null && rank <= rankEnd; rank++) {
+			ls.add(new RecordObject(node.score, node.obj, rank));
+			node = reverse ? node.backward : node.forward[0];
+		}
+		return ls;
+	}
+
+	List<RecordObject> doGetRangeByScore(long scoreBegin, long scoreEnd, boolean reverse) {
+		if (scoreBegin > scoreEnd) {
+			return null;
+		}
+
+		List<RecordObject> ls = new ArrayList<>();
+		RangeSpec range = new RangeSpec(scoreBegin, scoreEnd);
+		SkipListNode node = reverse ? this.list.lastInRange(range) : this.list.firstInRange(range);
+		if (node == null) {
+			return ls;
+		}
+
+		int r = this.list.getRank(node.score, node.obj);
+		int rank = reverse ? this.list.length + 1 - r : r;
+		if (reverse) {
+			for (; node != null && node.score >= scoreBegin; node = node.backward) {
+				ls.add(new RecordObject(node.score, node.obj, rank++));
+			}
+		} else {
+			for (; node != null && node.score <= scoreEnd; node = node.forward[0]) {
+				ls.add(new RecordObject(node.score, node.obj, rank++));
+			}
+		}
+		return ls;
+	}
+
+	int doForEachByRank(int rankBegin, int rankEnd, boolean reverse, RecordVisitor visitor) {
+		int size = this.list.length;
+		rankBegin = rankBegin < 1 ? 1 : rankBegin;
+		rankEnd = rankEnd > size ? size : rankEnd;
+		if (rankBegin > rankEnd) {
+			return 0;
+		}
+
+		int visited = 0;
+		SkipListNode node = this.list.getElementByRank(reverse ? size + 1 - rankBegin : rankBegin);
+		for (int rank = rankBegin; node != null && rank <= rankEnd; rank++) {
+			visited++;
+			if (!visitor.visit(rank, node.obj, node.score)) {
+				break;
+			}
+			node = reverse ? node.backward : node.forward[0];
+		}
+		return visited;
+	}
 
+	int doForEachByScore(RangeSpec range, boolean reverse, RecordVisitor visitor) {
+		SkipListNode node = reverse ? this.list.lastInRange(range) : this.list.firstInRange(range);
+		if (node == null) {
+			return 0;
+		}
 
+		int visited = 0;
+		int r = this.list.getRank(node.score, node.obj);
+		int rank = reverse ? this.list.length + 1 - r : r;
+		if (reverse) {
+			for (; node != null && SkipList.keyGteMin(node.score, range); node = node.backward) {
+				visited++;
+				if (!visitor.visit(rank++, node.obj, node.score)) {
+					break;
+				}
+			}
+		} else {
+			for (; node != null && SkipList.keyLteMax(node.score, range); node = node.forward[0]) {
+				visited++;
+				if (!visitor.visit(rank++, node.obj, node.score)) {
+					break;
+				}
+			}
+		}
+		return visited;
+	}
 
 	/*-----------------------------------------------------------------------------
 	 * sorted set API
 	 *----------------------------------------------------------------------------*/
 
+	/**
+	 * 清理这个 SortedSet
+	 */
+	public void clear() {
+		long lsn = 0;
+		SortedSetJournal journal;
+		synchronized (this) {
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logClear();
+			}
+			this.doClear();
+		}
+		syncJournal(journal, lsn);
+	}
+
+	/**
+	 * 设置修改日志，之后所有修改都会先写日志再修改内存
+	 *
+	 * @param journal null=不记录日志
+	 * @see SortedSetJournal
+	 */
+	public void setJournal(SortedSetJournal journal) {
+		synchronized (this) {
+			this.journal = journal;
+		}
+	}
+
+	/**
+	 * 设置分数直方图，会用当前数据初始化直方图，之后的修改在锁内同步更新
+	 * <p/>
+	 * 近似排名直接查询直方图，不需要持有这个 SortedSet 的锁
+	 *
+	 * @param histogram null=不维护直方图
+	 * @see ScoreHistogram
+	 */
+	public void setHistogram(ScoreHistogram histogram) {
+		synchronized (this) {
+			if (histogram != null) {
+				histogram.clear();
+				for (SkipListNode x = this.list.header.forward[0]; x != null; x = x.forward[0]) {
+					histogram.load(x.score);
+				}
+				histogram.rebuild();
+			}
+			this.histogram = histogram;
+		}
+	}
+
+	/**
+	 * @return null if not set
+	 */
+	public ScoreHistogram getHistogram() {
+		synchronized (this) {
+			return this.histogram;
+		}
+	}
+
+	/**
+	 * 维护从大到小前 k 名的快照，已经有相同 k 的快照时直接返回
+	 * <p/>
+	 * 读前 k 名时用 TopKView.get()，不需要持有这个 SortedSet 的锁
+	 *
+	 * @see TopKView
+	 */
+	public TopKView enableTopK(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must >= 1");
+		}
+		synchronized (this) {
+			if (this.topK == null || this.topK.getK() != k) {
+				this.topK = new TopKView(k);
+				this.publishTopK();
+			}
+			return this.topK;
+		}
+	}
+
+	/**
+	 * 停止维护前 k 名的快照，之前取得的 TopKView 不再更新
+	 */
+	public void disableTopK() {
+		synchronized (this) {
+			this.topK = null;
+		}
+	}
+
+	/**
+	 * 按日志的 fsync 策略等待，在锁外调用
+	 */
+	private static void syncJournal(SortedSetJournal journal, long lsn) {
+		if (journal != null && lsn > 0) {
+			journal.sync(lsn);
+		}
+	}
+
 	public int size() {
 		return this.dict.size();
 	}
@@ -595,7 +1803,22 @@ public final class SortedSet {
 	 * @return null if not found
 	 */
 	public Long getScore(long key){
-		return this.dict.get(key);
+		synchronized (this) {
+			return this.doContainsKey(key) ? this.doGetScore(key, 0L) : null;
+		}
+	}
+
+	/**
+	 * 无装箱版本
+	 *
+	 * @param key
+	 * @param defaultScore 不存在时返回的值
+	 * @return
+	 */
+	public long getScore(long key, long defaultScore) {
+		synchronized (this) {
+			return this.doGetScore(key, defaultScore);
+		}
 	}
 
 	/**
@@ -605,32 +1828,145 @@ public final class SortedSet {
 	 * @param key
 	 */
 	public void add(long score, long key) {
+		long lsn = 0;
+		SortedSetJournal journal;
 		synchronized (this) {
-			if (this.dict.containsKey(key)) {
-				this.list.delete(this.dict.get(key), key);
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logAdd(score, key);
 			}
-			this.dict.put(key, score);
-			this.list.insert(score, key);
+			this.doAdd(score, key);
 		}
+		syncJournal(journal, lsn);
 	}
 
 	/**
-	 * 批量添加，会自动合并重复的key
+	 * 添加并设置过期时间，会自动合并重复的key
 	 *
-	 * @param recordObjects RecordObject::rank不会自动更新
+	 * @param expireAt 过期时间(ms)
+	 * @see #setExpireAt(long, long)
 	 */
-	public void addAdll(RecordObject[] recordObjects) {
+	public void add(long score, long key, long expireAt) {
+		long lsn = 0;
+		SortedSetJournal journal;
+		synchronized (this) {
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logAdd(score, key);
+			}
+			this.doAdd(score, key);
+			this.doSetExpireAt(key, expireAt);
+		}
+		syncJournal(journal, lsn);
+	}
+
+	/**
+	 * 设置过期时间，过期的元素由 expire/scheduleExpiry 分批删除，删除之前仍然可以读到
+	 * <p/>
+	 * 用 add(score, key) 修改分数不会改变过期时间；过期时间不写入快照和修改日志
+	 *
+	 * @param expireAt 过期时间(ms)
+	 * @return false=key 不存在
+	 */
+	public boolean setExpireAt(long key, long expireAt) {
+		synchronized (this) {
+			if (!this.doContainsKey(key)) {
+				return false;
+			}
+			this.doSetExpireAt(key, expireAt);
+			return true;
+		}
+	}
+
+	/**
+	 * @return -1 if key not found or no expireAt
+	 */
+	public long getExpireAt(long key) {
+		synchronized (this) {
+			return this.expireAts != null ? this.expireAts.get(key, -1L) : -1L;
+		}
+	}
+
+	/**
+	 * 取消过期时间
+	 */
+	public void persist(long key) {
+		synchronized (this) {
+			this.dropExpireAt(key);
+		}
+	}
+
+	/**
+	 * 删除最多 batch 个 expireAt &lt;= now 的元素，只持有一次锁
+	 * <p/>
+	 * 每次只删一小批，读操作最多等待 batch 次删除
+	 *
+	 * @return 删除的个数，等于 batch 时可能还有过期的元素
+	 */
+	public int expire(long now, int batch) {
+		long lsn = 0;
+		int removed = 0;
+		SortedSetJournal journal;
 		synchronized (this) {
-			for (RecordObject recordObject : recordObjects) {
-				long score = recordObject.getScore();
-				long key = recordObject.getKey();
-				if (this.dict.containsKey(key)) {
-					this.list.delete(this.dict.get(key), key);
+			journal = this.journal;
+			while (removed < batch && this.expiry != null) {
+				SkipListNode x = this.expiry.header.forward[0];
+				if (x == null || x.score > now) {
+					break;
 				}
-				this.dict.put(key, score);
-				this.list.insert(score, key);
+				if (journal != null) {
+					lsn = journal.logRemove(x.obj);
+				}
+				this.removeEntry(x.obj);
+				removed++;
 			}
+			this.publishTopK();
+		}
+		syncJournal(journal, lsn);
+		return removed;
+	}
+
+	/**
+	 * 用 ThreadPool.getTimer() 定时删除过期元素
+	 *
+	 * @see #scheduleExpiry(ScheduledExecutorService, long, int)
+	 */
+	public ScheduledFuture<?> scheduleExpiry(long periodMillis, int batch) {
+		return this.scheduleExpiry(ThreadPool.getTimer(), periodMillis, batch);
+	}
+
+	/**
+	 * 定时删除过期元素，每轮反复调用 expire(now, batch) 直到没有过期元素，每批之间释放锁
+	 *
+	 * @param batch 每次持有锁删除的最大个数
+	 * @return 用于取消
+	 */
+	public ScheduledFuture<?> scheduleExpiry(ScheduledExecutorService timer, long periodMillis, final int batch) {
+		if (batch < 1) {
+			throw new IllegalArgumentException("batch must >= 1");
 		}
+		return timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long now = System.currentTimeMillis();
+					while (expire(now, batch) == batch) {
+						Thread.yield();
+					}
+				} catch (Exception e) {
+					logger.error("expire error:", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key
+	 *
+	 * @param recordObjects RecordObject::rank不会自动更新
+	 */
+	public void addAdll(RecordObject[] recordObjects) {
+		this.addAdll(Arrays.asList(recordObjects));
 	}
 
 	/**
@@ -639,17 +1975,32 @@ public final class SortedSet {
 	 * @param recordObjects RecordObject::rank不会自动更新
 	 */
 	public void addAdll(Collection<RecordObject> recordObjects) {
+		long[][] arrays = toArrays(recordObjects);
+		this.addAll(arrays[0], arrays[1]);
+	}
+
+	/**
+	 * 批量添加，会自动合并重复的key，同一批里重复的key以最后一个为准
+	 * <p/>
+	 * 空表时会排序后直接建表，适合启动时从数据库加载大量数据
+	 *
+	 * @param scores 与 keys 一一对应
+	 * @param keys
+	 */
+	public void addAll(long[] scores, long[] keys) {
+		if (scores.length != keys.length) {
+			throw new IllegalArgumentException("scores.length != keys.length");
+		}
+		long lsn = 0;
+		SortedSetJournal journal;
 		synchronized (this) {
-			for (RecordObject recordObject : recordObjects) {
-				long score = recordObject.getScore();
-				long key = recordObject.getKey();
-				if (this.dict.containsKey(key)) {
-					this.list.delete(score, key);
-				}
-				this.dict.put(key, score);
-				this.list.insert(score, key);
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logAddAll(scores, keys, keys.length);
 			}
+			this.doAddAll(scores, keys, keys.length);
 		}
+		syncJournal(journal, lsn);
 	}
 
 	/**
@@ -658,36 +2009,48 @@ public final class SortedSet {
 	 * @param key
 	 */
 	public void remove(long key) {
+		long lsn = 0;
+		SortedSetJournal journal;
 		synchronized (this) {
-			if (this.dict.containsKey(key)) {
-				Long score = this.dict.remove(key);
-				this.list.delete(score, key);
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logRemove(key);
 			}
+			this.doRemove(key);
 		}
+		syncJournal(journal, lsn);
 	}
 
 	/**
 	 * 通过分数范围删除
 	 */
 	public void removeByScore(RangeSpec range) {
+		long lsn = 0;
+		SortedSetJournal journal;
 		synchronized (this) {
-			this.deleteRangeByScore(range);
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logRemoveByScore(range);
+			}
+			this.doRemoveByScore(range);
 		}
+		syncJournal(journal, lsn);
 	}
 
 	/**
 	 * 通过分数范围删除
 	 */
 	public void removeByRank(int start, int end, boolean reverse) {
-
+		long lsn = 0;
+		SortedSetJournal journal;
 		synchronized (this) {
-			if(reverse) {
-				int size = this.size();
-				this.deleteRangeByRank(size + 1 - end, size + 1 - start);
-			} else {
-				this.deleteRangeByRank(start, end);
+			journal = this.journal;
+			if (journal != null) {
+				lsn = journal.logRemoveByRank(start, end, reverse);
 			}
+			this.doRemoveByRank(start, end, reverse);
 		}
+		syncJournal(journal, lsn);
 	}
 
 	/**
@@ -699,13 +2062,7 @@ public final class SortedSet {
 	 */
 	public int rank(long key, boolean reverse) {
 		synchronized (this) {
-			if (this.dict.containsKey(key)) {
-				Long score = this.dict.get(key);
-				return reverse
-						? this.dict.size() + 1 - this.list.getRank(score, key)
-						: this.list.getRank(score, key);
-			}
-			return -1;
+			return this.doRank(key, reverse);
 		}
 	}
 
@@ -717,18 +2074,8 @@ public final class SortedSet {
 	 * @return
 	 */
 	public RecordObject getByRank(int rank, boolean reverse) {
-		int realRank = reverse ? this.dict.size() + 1 - rank : rank;
-
 		synchronized (this) {
-
-			SkipListNode res = this.list.getElementByRank(realRank);
-			if (res == null || res.obj == null) {
-				return null;
-			}
-			RecordObject recordObject = res.toRecordObject();
-			recordObject.setRank(rank);
-
-			return recordObject;
+			return this.doGetByRank(rank, reverse);
 		}
 	}
 
@@ -741,93 +2088,264 @@ public final class SortedSet {
 	 * @return
 	 */
 	public List<RecordObject> getRangeByRank(int rankBegin, int rankEnd, boolean reverse) {
-		if (rankBegin > rankEnd) {
-			return null;
+		synchronized (this) {
+			return this.doGetRangeByRank(rankBegin, rankEnd, reverse);
 		}
-		int size = this.dict.size();
-
-		rankBegin = rankBegin < 1 ? 1 : rankBegin;
-		rankEnd = rankEnd > size ? size : rankEnd;
-
-		int realRankBegin = reverse ? size + 1 - rankEnd : rankBegin;
+	}
 
-		int i = 0;
-		int r = rankEnd - rankBegin;
+	/**
+	 * 通过分数获取一段 双闭区间
+	 *
+	 * @param scoreBegin 低分
+	 * @param scoreEnd   高分
+	 * @param reverse   true=从大到小 false=从小到大
+	 * @return
+	 */
+	public List<RecordObject> getRangeByScore(long scoreBegin, long scoreEnd, boolean reverse) {
+		synchronized (this) {
+			return this.doGetRangeByScore(scoreBegin, scoreEnd, reverse);
+		}
+	}
 
-		int rank = realRankBegin;
+	/**
+	 * 按排名遍历，不产生 RecordObject
+	 *
+	 * @param rankBegin 低排名
+	 * @param rankEnd   高排名
+	 * @param reverse   true=从大到小 false=从小到大
+	 * @param visitor   回调在锁内执行
+	 * @return 访问过的元素个数
+	 */
+	public int forEachByRank(int rankBegin, int rankEnd, boolean reverse, RecordVisitor visitor) {
+		synchronized (this) {
+			return this.doForEachByRank(rankBegin, rankEnd, reverse, visitor);
+		}
+	}
 
-		List<RecordObject> ls = new LinkedList<>();
+	/**
+	 * 按分数范围遍历，不产生 RecordObject
+	 *
+	 * @param range   分数范围
+	 * @param reverse true=从大到小 false=从小到大
+	 * @param visitor 回调在锁内执行
+	 * @return 访问过的元素个数
+	 */
+	public int forEachByScore(RangeSpec range, boolean reverse, RecordVisitor visitor) {
+		synchronized (this) {
+			return this.doForEachByScore(range, reverse, visitor);
+		}
+	}
 
+	/**
+	 * 统计各层节点数，并按排名均匀抽取 samples 个元素计算平均查找长度
+	 * <p/>
+	 * 需要遍历整个表，O(N + samples * log N)，不要频繁调用
+	 */
+	public Stats stats(int samples) {
 		synchronized (this) {
-			SkipListNode node = this.list.getElementByRank(realRankBegin);
-			if (node == null || node.obj == null) {
-				return ls;
+			SkipList list = this.list;
+			int[] histogram = new int[this.maxLevel];
+			int step = Math.max(1, list.length / Math.max(1, samples));
+			long searchLength = 0;
+			int sampled = 0;
+			int i = 0;
+			for (SkipListNode x = list.header.forward[0]; x != null; x = x.forward[0], i++) {
+				histogram[x.forward.length - 1]++;
+				if (i % step == 0 && sampled < samples) {
+					searchLength += list.searchLength(x.score, x.obj);
+					sampled++;
+				}
 			}
-			RecordObject ro = node.toRecordObject();
-			ro.setRank(reverse ? size + 1 - rank : rank);
-			ls.add(ro);
+			return new Stats(list.length, list.level, histogram,
+					sampled == 0 ? 0 : (double) searchLength / sampled);
+		}
+	}
 
-			while (i++ < r && node.level[0].forward != null) {
-				node = node.level[0].forward;
-				ro = node.toRecordObject();
-				rank++;
-				ro.setRank(reverse ? size + 1 - rank : rank);
-				ls.add(ro);
-			}
+	/**
+	 * 创建一个游标，需要先 seekRank 或 seekScore
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * 多个 SortedSet 的聚合，类似 redis 的 ZUNIONSTORE/ZINTERSTORE
+	 *----------------------------------------------------------------------------*/
 
+	/**
+	 * 按 (score, key) 升序导出 [scores, keys]
+	 */
+	long[][] toSortedArrays() {
+		synchronized (this) {
+			long[] scores = new long[this.size()];
+			long[] keys = new long[this.size()];
+			this.doToArrays(scores, keys);
+			return new long[][]{scores, keys};
 		}
+	}
+
+	/**
+	 * 并集，用 ThreadPool.getPool() 并行导出各个输入
+	 *
+	 * @see #union(SortedSet[], long[], Aggregate, ExecutorService)
+	 */
+	public static SortedSet union(SortedSet[] sets, long[] weights, Aggregate aggregate) {
+		return union(sets, weights, aggregate, ThreadPool.getPool());
+	}
+
+	/**
+	 * 并集，结果是一个新的 SortedSet
+	 * <p/>
+	 * 各个输入分别在自己的锁内导出为数组（在 executor 中并行），锁外按 key 合并分数，
+	 * 最后排序一次自底向上建表，不会逐个 add
+	 *
+	 * @param weights   每个输入的分数乘以对应的权重，null=全部为 1
+	 * @param aggregate 同一个 key 的多个分数的合并方式
+	 */
+	public static SortedSet union(SortedSet[] sets, long[] weights, Aggregate aggregate, ExecutorService executor) {
+		long[][][] inputs = export(sets, weights, executor);
 
-		if(reverse) {
-			Collections.reverse(ls);
+		int capacity = 0;
+		for (long[][] input : inputs) {
+			capacity = Math.max(capacity, input[1].length);
+		}
+		LongLongHashMap merged = new LongLongHashMap(capacity);
+		long[] keys = new long[Math.max(capacity, 16)];
+		int n = 0;
+		for (int i = 0; i < inputs.length; i++) {
+			long weight = weights == null ? 1 : weights[i];
+			long[] inputScores = inputs[i][0];
+			long[] inputKeys = inputs[i][1];
+			for (int j = 0; j < inputKeys.length; j++) {
+				long key = inputKeys[j];
+				long score = inputScores[j] * weight;
+				if (merged.containsKey(key)) {
+					merged.put(key, aggregate.apply(merged.get(key, 0L), score));
+				} else {
+					merged.put(key, score);
+					if (n == keys.length) {
+						keys = Arrays.copyOf(keys, keys.length * 2);
+					}
+					keys[n++] = key;
+				}
+			}
 		}
+		return build(merged, keys, n);
+	}
 
-		return ls;
+	/**
+	 * 交集，用 ThreadPool.getPool() 并行导出各个输入
+	 *
+	 * @see #intersect(SortedSet[], long[], Aggregate, ExecutorService)
+	 */
+	public static SortedSet intersect(SortedSet[] sets, long[] weights, Aggregate aggregate) {
+		return intersect(sets, weights, aggregate, ThreadPool.getPool());
 	}
 
 	/**
-	 * 通过分数获取一段 双闭区间
+	 * 交集，结果是一个新的 SortedSet
+	 * <p/>
+	 * 从最小的输入开始，依次和其他输入求交，中间结果不会超过最小的输入
 	 *
-	 * @param scoreBegin 低分
-	 * @param scoreEnd   高分
-	 * @param reverse   true=从大到小 false=从小到大
-	 * @return
+	 * @param weights   每个输入的分数乘以对应的权重，null=全部为 1
+	 * @param aggregate 同一个 key 的多个分数的合并方式
+	 * @see #union(SortedSet[], long[], Aggregate, ExecutorService)
 	 */
-	public List<RecordObject> getRangeByScore(int scoreBegin, int scoreEnd, boolean reverse) {
-		if (scoreBegin > scoreEnd) {
-			return null;
+	public static SortedSet intersect(SortedSet[] sets, long[] weights, Aggregate aggregate, ExecutorService executor) {
+		long[][][] inputs = export(sets, weights, executor);
+		if (inputs.length == 0) {
+			return new SortedSet();
 		}
 
-		int size = this.dict.size();
+		int smallest = 0;
+		for (int i = 1; i < inputs.length; i++) {
+			if (inputs[i][1].length < inputs[smallest][1].length) {
+				smallest = i;
+			}
+		}
 
-		List<RecordObject> ls = new LinkedList<>();
+		long[] keys = inputs[smallest][1];
+		int n = keys.length;
+		LongLongHashMap merged = new LongLongHashMap(n);
+		long weight = weights == null ? 1 : weights[smallest];
+		for (int j = 0; j < n; j++) {
+			merged.put(keys[j], inputs[smallest][0][j] * weight);
+		}
 
-		synchronized (this) {
-			SkipListNode node = this.list.firstInRange(new RangeSpec(scoreBegin, scoreEnd));
-			if (node == null || node.obj == null) {
-				return ls;
+		for (int i = 0; i < inputs.length && n > 0; i++) {
+			if (i == smallest) {
+				continue;
+			}
+			weight = weights == null ? 1 : weights[i];
+			long[] inputScores = inputs[i][0];
+			long[] inputKeys = inputs[i][1];
+			LongLongHashMap next = new LongLongHashMap(n);
+			long[] nextKeys = new long[n];
+			int m = 0;
+			for (int j = 0; j < inputKeys.length; j++) {
+				long key = inputKeys[j];
+				if (merged.containsKey(key)) {
+					next.put(key, aggregate.apply(merged.get(key, 0L), inputScores[j] * weight));
+					nextKeys[m++] = key;
+				}
 			}
+			merged = next;
+			keys = nextKeys;
+			n = m;
+		}
+		return build(merged, keys, n);
+	}
 
-			int r = this.list.getRank(node.score, node.obj);
+	/**
+	 * 并行导出各个输入，每个输入只在导出时持有自己的锁
+	 */
+	private static long[][][] export(final SortedSet[] sets, long[] weights, ExecutorService executor) {
+		if (weights != null && weights.length != sets.length) {
+			throw new IllegalArgumentException("weights.length != sets.length");
+		}
 
-			RecordObject ro = node.toRecordObject();
-			ro.setRank(reverse ? size + 1 - r : r);
-			ls.add(ro);
+		long[][][] inputs = new long[sets.length][][];
+		if (sets.length == 1) {
+			inputs[0] = sets[0].toSortedArrays();
+			return inputs;
+		}
 
-			while (node.level[0].forward != null && node.level[0].forward.score <= scoreEnd) {
-				node = node.level[0].forward;
-				ro = node.toRecordObject();
-				r++;
-				ro.setRank(reverse ? size + 1 - r : r);
-				ls.add(ro);
+		List<Future<long[][]>> futures = new ArrayList<>(sets.length);
+		for (final SortedSet set : sets) {
+			futures.add(executor.submit(new Callable<long[][]>() {
+				@Override
+				public long[][] call() {
+					return set.toSortedArrays();
+				}
+			}));
+		}
+		try {
+			for (int i = 0; i < sets.length; i++) {
+				inputs[i] = futures.get(i).get();
 			}
-
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while exporting sorted sets", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("export sorted set error", e.getCause());
 		}
+		return inputs;
+	}
 
-		if(reverse) {
-			Collections.reverse(ls);
+	/**
+	 * 用 keys[0, n) 和它们在 scores 中的分数建表
+	 */
+	private static SortedSet build(LongLongHashMap scores, long[] keys, int n) {
+		long[] sortedScores = new long[n];
+		long[] sortedKeys = Arrays.copyOf(keys, n);
+		for (int i = 0; i < n; i++) {
+			sortedScores[i] = scores.get(sortedKeys[i], 0L);
 		}
+		sort(sortedScores, sortedKeys, n);
 
-		return ls;
+		SortedSet set = new SortedSet();
+		set.doLoadSorted(sortedScores, sortedKeys, n);
+		return set;
 	}
 
 }
@@ -0,0 +1,558 @@
+package me.chaopeng.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import me.chaopeng.utils.SortedSet.RangeSpec;
+
+/**
+ * SortedSet 修改日志（write-ahead log）
+ * <p/>
+ * 记录 add/addAll/remove/removeByScore/removeByRank/clear，配合 SortedSetSnapshot 做崩溃恢复：
+ * <pre>
+ * SortedSet set = SortedSetJournal.replay(snapshotFile, dir, "rank");
+ * SortedSetJournal journal = SortedSetJournal.open(dir, "rank", SyncPolicy.INTERVAL, 100);
+ * set.setJournal(journal);
+ * ...
+ * journal.checkpoint(set, snapshotFile); // 定期做快照，删除旧日志
+ * </pre>
+ * <ul>
+ * <li>SortedSet 在自己的锁内调用 log，只是写入内存缓冲区，所以日志顺序和修改顺序一致</li>
+ * <li>后台线程把缓冲区整批写入文件（group commit），一批一个 frame：[int 长度][long checksum][records]，
+ * 重放时遇到写了一半的 frame 就停止</li>
+ * <li>fsync 策略见 {@link SyncPolicy}，ALWAYS 时修改方法在锁外等待，多个线程的修改共用一次 fsync</li>
+ * <li>日志按代（generation）分文件：dir/name.gen.log，每次 open 和 checkpoint 都开始新的一代，
+ * 快照里记录它之后第一代的代数，重放时只需要快照 + 之后的日志</li>
+ * </ul>
+ *
+ * @author chao
+ * @see SortedSet#setJournal(SortedSetJournal)
+ * @see SortedSetSnapshot
+ */
+public final class SortedSetJournal implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SortedSetJournal.class);
+
+	/**
+	 * fsync 策略
+	 */
+	public enum SyncPolicy {
+		/**
+		 * 每批都 fsync，修改方法返回时已经落盘
+		 */
+		ALWAYS,
+		/**
+		 * 每批都写入文件，每隔 syncIntervalMillis fsync 一次，最多丢失这段时间的修改
+		 */
+		INTERVAL,
+		/**
+		 * 只写入文件，由操作系统决定何时落盘，进程崩溃不丢，机器掉电会丢
+		 */
+		NONE
+	}
+
+	private static final byte OP_ADD = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_REMOVE_BY_SCORE = 3;
+	private static final byte OP_REMOVE_BY_RANK = 4;
+	private static final byte OP_CLEAR = 5;
+
+	private static final int FRAME_HEADER = 4 + 8;
+	private static final int INIT_BUFF_LEN = 1 << 16;
+	/**
+	 * 缓冲区超过这个大小时，写入方等待后台线程，避免磁盘跟不上时无限占用内存
+	 */
+	private static final int MAX_BUFF_LEN = 1 << 24;
+
+	private final File dir;
+	private final String name;
+	private final SyncPolicy policy;
+	private final long syncIntervalMillis;
+
+	/**
+	 * 以下字段由 this 保护
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(INIT_BUFF_LEN);
+	private ByteBuffer writing = ByteBuffer.allocate(INIT_BUFF_LEN);
+	private long appendedLsn = 0;
+	private long writtenLsn = 0;
+	private long durableLsn = 0;
+	private boolean flushing = false;
+	private boolean closed = false;
+	private IOException failure;
+
+	private long generation;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private long lastSync = System.currentTimeMillis();
+
+	private final Thread writer;
+
+	private SortedSetJournal(File dir, String name, SyncPolicy policy, long syncIntervalMillis) throws IOException {
+		this.dir = dir;
+		this.name = name;
+		this.policy = policy;
+		this.syncIntervalMillis = syncIntervalMillis;
+
+		List<Long> gens = generations(dir, name);
+		this.generation = gens.isEmpty() ? 0 : gens.get(gens.size() - 1) + 1;
+		openGeneration();
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "SortedSetJournal-" + name);
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * 打开日志，总是从新的一代开始写
+	 *
+	 * @param dir                日志目录
+	 * @param name               日志名
+	 * @param policy             fsync 策略
+	 * @param syncIntervalMillis INTERVAL 策略的 fsync 间隔
+	 */
+	public static SortedSetJournal open(File dir, String name, SyncPolicy policy, long syncIntervalMillis) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can not create dir " + dir);
+		}
+		return new SortedSetJournal(dir, name, policy, syncIntervalMillis);
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * append，由 SortedSet 在锁内调用
+	 *----------------------------------------------------------------------------*/
+
+	long logAdd(long score, long key) {
+		synchronized (this) {
+			ByteBuffer buf = reserve(17);
+			buf.put(OP_ADD).putLong(score).putLong(key);
+			return ++appendedLsn;
+		}
+	}
+
+	long logAddAll(long[] scores, long[] keys, int n) {
+		synchronized (this) {
+			for (int i = 0; i < n; i++) {
+				ByteBuffer buf = reserve(17);
+				buf.put(OP_ADD).putLong(scores[i]).putLong(keys[i]);
+			}
+			return ++appendedLsn;
+		}
+	}
+
+	long logRemove(long key) {
+		synchronized (this) {
+			reserve(9).put(OP_REMOVE).putLong(key);
+			return ++appendedLsn;
+		}
+	}
+
+	long logRemoveByScore(RangeSpec range) {
+		synchronized (this) {
+			reserve(18).put(OP_REMOVE_BY_SCORE)
+					.put((byte) ((range.minex ? 1 : 0) | (range.maxex ? 2 : 0)))
+					.putLong(range.min).putLong(range.max);
+			return ++appendedLsn;
+		}
+	}
+
+	long logRemoveByRank(int start, int end, boolean reverse) {
+		synchronized (this) {
+			reserve(10).put(OP_REMOVE_BY_RANK).putInt(start).putInt(end).put((byte) (reverse ? 1 : 0));
+			return ++appendedLsn;
+		}
+	}
+
+	long logClear() {
+		synchronized (this) {
+			reserve(1).put(OP_CLEAR);
+			return ++appendedLsn;
+		}
+	}
+
+	/**
+	 * 确保 pending 至少还有 len 字节，必须持有 this
+	 */
+	private ByteBuffer reserve(int len) {
+		checkState();
+		// 磁盘跟不上时在这里等待后台线程，对写入方形成反压
+		while (pending.position() + len > MAX_BUFF_LEN && flushing && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted while waiting for journal " + name, e);
+			}
+		}
+		checkState();
+		if (pending.position() == 0) {
+			// 缓冲区从空变为非空，唤醒后台线程
+			notifyAll();
+		}
+		if (pending.remaining() < len) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + len));
+			pending.flip();
+			bigger.put(pending);
+			pending = bigger;
+		}
+		return pending;
+	}
+
+	private void checkState() {
+		if (failure != null) {
+			throw new IllegalStateException("journal " + name + " failed", failure);
+		}
+		if (closed) {
+			throw new IllegalStateException("journal " + name + " closed");
+		}
+	}
+
+	/**
+	 * 按 fsync 策略等待 lsn 之前的日志写完
+	 * <p/>
+	 * ALWAYS 等待落盘，其他策略不等待；不能在 SortedSet 的锁内调用
+	 */
+	void sync(long lsn) {
+		if (policy != SyncPolicy.ALWAYS) {
+			return;
+		}
+		synchronized (this) {
+			while (durableLsn < lsn) {
+				if (failure != null) {
+					throw new IllegalStateException("journal " + name + " failed", failure);
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("interrupted while waiting for journal " + name, e);
+				}
+			}
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * 后台写线程
+	 *----------------------------------------------------------------------------*/
+
+	private void writeLoop() {
+		for (; ; ) {
+			long lsn;
+			FileChannel channel;
+			boolean doSync;
+			synchronized (this) {
+				while (pending.position() == 0 && !closed && !syncDue()) {
+					try {
+						wait(syncIntervalMillis > 0 ? syncIntervalMillis : 1000);
+					} catch (InterruptedException e) {
+						// 关闭时由 close() 唤醒
+					}
+				}
+				if (pending.position() == 0 && closed) {
+					return;
+				}
+
+				// 交换缓冲区，之后的 append 写到另一个缓冲区里
+				ByteBuffer tmp = writing;
+				writing = pending;
+				pending = tmp;
+				pending.clear();
+				lsn = appendedLsn;
+				channel = this.channel;
+				flushing = true;
+				doSync = policy == SyncPolicy.ALWAYS || syncDue();
+			}
+
+			IOException error = null;
+			try {
+				writeFrame(channel, writing);
+				if (doSync) {
+					channel.force(false);
+				}
+			} catch (IOException e) {
+				logger.error("write journal " + name + " error", e);
+				error = e;
+			}
+
+			synchronized (this) {
+				flushing = false;
+				if (error != null) {
+					failure = error;
+				} else {
+					writtenLsn = lsn;
+					if (doSync) {
+						durableLsn = lsn;
+						lastSync = System.currentTimeMillis();
+					} else if (policy == SyncPolicy.NONE) {
+						durableLsn = lsn;
+					}
+				}
+				notifyAll();
+				if (error != null) {
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean syncDue() {
+		return policy == SyncPolicy.INTERVAL && writtenLsn > durableLsn
+				&& System.currentTimeMillis() - lastSync >= syncIntervalMillis;
+	}
+
+	private static void writeFrame(FileChannel channel, ByteBuffer records) throws IOException {
+		records.flip();
+		if (!records.hasRemaining()) {
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		header.putInt(records.remaining());
+		header.putLong(checksum(records));
+		header.flip();
+		ByteBuffer[] bufs = new ByteBuffer[]{header, records};
+		while (records.hasRemaining()) {
+			channel.write(bufs);
+		}
+	}
+
+	private static long checksum(ByteBuffer buf) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = buf.position(); i < buf.limit(); i++) {
+			h = (h ^ (buf.get(i) & 0xFF)) * 0x100000001B3L;
+		}
+		return h;
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * generation
+	 *----------------------------------------------------------------------------*/
+
+	private void openGeneration() throws IOException {
+		this.file = new RandomAccessFile(logFile(dir, name, generation), "rw");
+		this.file.seek(this.file.length());
+		this.channel = this.file.getChannel();
+	}
+
+	/**
+	 * 等待缓冲区写完，然后切换到新的一代，必须在 SortedSet 的锁内调用，保证切换期间没有新的修改
+	 *
+	 * @return 新的代数
+	 */
+	private long rotate() throws IOException {
+		synchronized (this) {
+			checkState();
+			while (pending.position() > 0 || flushing) {
+				notifyAll();
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while rotating journal " + name, e);
+				}
+				checkState();
+			}
+
+			channel.force(false);
+			durableLsn = writtenLsn;
+			CloseUtils.close(file);
+			generation++;
+			openGeneration();
+			return generation;
+		}
+	}
+
+	/**
+	 * 写快照并删除快照已经包含的旧日志
+	 * <p/>
+	 * 锁内只做导出数组和切换日志文件，写快照在锁外
+	 */
+	public void checkpoint(SortedSet set, File snapshot) throws IOException {
+		long[] scores;
+		long[] keys;
+		int n;
+		long gen;
+		synchronized (set) {
+			scores = new long[set.size()];
+			keys = new long[set.size()];
+			n = set.doToArrays(scores, keys);
+			gen = rotate();
+		}
+
+		SortedSetSnapshot.write(scores, keys, n, snapshot, gen);
+
+		for (long old : generations(dir, name)) {
+			if (old < gen && !logFile(dir, name, old).delete()) {
+				logger.warn("can not delete journal " + logFile(dir, name, old));
+			}
+		}
+	}
+
+	/**
+	 * 写完缓冲区，fsync 并关闭
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				if (failure == null) {
+					channel.force(false);
+					durableLsn = writtenLsn;
+				}
+			} finally {
+				CloseUtils.close(file);
+				notifyAll();
+			}
+		}
+	}
+
+	/*-----------------------------------------------------------------------------
+	 * replay
+	 *----------------------------------------------------------------------------*/
+
+	/**
+	 * 从快照 + 日志恢复
+	 *
+	 * @param snapshot 快照文件，不存在时从空表开始重放全部日志
+	 * @param dir      日志目录
+	 * @param name     日志名
+	 */
+	public static SortedSet replay(File snapshot, File dir, String name) throws IOException {
+		SortedSet set = new SortedSet();
+		long from = 0;
+		if (snapshot != null && snapshot.exists()) {
+			from = SortedSetSnapshot.load(snapshot, set);
+		}
+
+		synchronized (set) {
+			for (long gen : generations(dir, name)) {
+				if (gen >= from) {
+					replay(logFile(dir, name, gen), set);
+				}
+			}
+		}
+		return set;
+	}
+
+	private static void replay(File log, SortedSet set) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(log, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length == 0) {
+				return;
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("journal too large: " + log);
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+			while (buf.remaining() >= FRAME_HEADER) {
+				int len = buf.getInt();
+				long checksum = buf.getLong();
+				if (len <= 0 || len > buf.remaining()) {
+					logger.warn("journal " + log + " truncated at " + (buf.position() - FRAME_HEADER));
+					return;
+				}
+				ByteBuffer frame = buf.slice();
+				frame.limit(len);
+				if (checksum(frame) != checksum) {
+					logger.warn("journal " + log + " corrupted at " + (buf.position() - FRAME_HEADER));
+					return;
+				}
+				apply(frame, set);
+				buf.position(buf.position() + len);
+			}
+		} finally {
+			CloseUtils.close(raf);
+		}
+	}
+
+	private static void apply(ByteBuffer frame, SortedSet set) throws IOException {
+		while (frame.hasRemaining()) {
+			byte op = frame.get();
+			switch (op) {
+				case OP_ADD: {
+					long score = frame.getLong();
+					set.doAdd(score, frame.getLong());
+					break;
+				}
+				case OP_REMOVE:
+					set.doRemove(frame.getLong());
+					break;
+				case OP_REMOVE_BY_SCORE: {
+					byte flags = frame.get();
+					long min = frame.getLong();
+					long max = frame.getLong();
+					set.doRemoveByScore(new RangeSpec((flags & 1) != 0, (flags & 2) != 0, min, max));
+					break;
+				}
+				case OP_REMOVE_BY_RANK: {
+					int start = frame.getInt();
+					int end = frame.getInt();
+					set.doRemoveByRank(start, end, frame.get() != 0);
+					break;
+				}
+				case OP_CLEAR:
+					set.doClear();
+					break;
+				default:
+					throw new IOException("unknown journal op " + op);
+			}
+		}
+	}
+
+	private static File logFile(File dir, String name, long gen) {
+		return new File(dir, name + "." + gen + ".log");
+	}
+
+	/**
+	 * @return 升序的代数
+	 */
+	private static List<Long> generations(File dir, final String name) {
+		final Pattern pattern = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)\\.log");
+		final List<Long> gens = new ArrayList<>();
+		dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				Matcher m = pattern.matcher(file.getName());
+				if (m.matches()) {
+					gens.add(Long.parseLong(m.group(1)));
+				}
+				return false;
+			}
+		});
+		Collections.sort(gens);
+		return gens;
+	}
+}
@@ -0,0 +1,229 @@
+package me.chaopeng.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * SortedSet 快照的二进制读写
+ * <p/>
+ * 文件格式（大端）：
+ * <pre>
+ * +-------+---------+----------+-------+----------+---------------+
+ * | magic | version | sequence | count | checksum | payloadLength |
+ * | int   | int     | long     | int   | long     | long          |
+ * +-------+---------+----------+-------+----------+---------------+
+ * | payload: count 个 (zigzag varint(score 增量), zigzag varint(key 增量))   |
+ * +-------------------------------------------------------------------------+
+ * </pre>
+ * <ul>
+ * <li>元素按 (score, key) 升序写出，score 和 key 都和前一个元素做差，再用 zigzag + varint 压缩，
+ * 分数集中时每个元素通常只占 3~6 字节</li>
+ * <li>写：在锁内导出为数组，锁外通过 FileChannel 写临时文件，force 后原子 rename，不会留下写了一半的快照</li>
+ * <li>读：mmap 整个文件，解码的同时校验顺序和 checksum，然后不排序直接自底向上建表，O(N)</li>
+ * <li>sequence 由调用者指定，原样保存，例如 journal 的代数</li>
+ * </ul>
+ * payload 用一次 mmap 读取，所以单个快照不能超过 2G
+ *
+ * @author chao
+ * @see SortedSet
+ */
+public final class SortedSetSnapshot {
+
+	private static final int MAGIC = 0x43535353; // "CSSS"
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 4 + 4 + 8 + 4 + 8 + 8;
+	private static final int BUFF_LEN = 1 << 16;
+
+	private SortedSetSnapshot() {
+	}
+
+	/**
+	 * 写快照，sequence = 0
+	 */
+	public static void write(SortedSet set, File file) throws IOException {
+		write(set, file, 0);
+	}
+
+	/**
+	 * 写快照
+	 *
+	 * @param sequence 调用者自定义的序号，load 时原样返回
+	 */
+	public static void write(SortedSet set, File file, long sequence) throws IOException {
+		long[][] arrays = set.toSortedArrays();
+		write(arrays[0], arrays[1], arrays[1].length, file, sequence);
+	}
+
+	/**
+	 * 写快照，数据必须按 (score, key) 严格升序
+	 */
+	static void write(long[] scores, long[] keys, int n, File file, long sequence) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(BUFF_LEN);
+
+			// 先跳过 header，写完 payload 再回填
+			channel.position(HEADER_LENGTH);
+
+			long prevScore = 0, prevKey = 0;
+			long checksum = 0;
+			for (int i = 0; i < n; i++) {
+				if (buf.remaining() < 20) {
+					flush(channel, buf);
+				}
+				putVarLong(buf, zigzag(scores[i] - prevScore));
+				putVarLong(buf, zigzag(keys[i] - prevKey));
+				prevScore = scores[i];
+				prevKey = keys[i];
+				checksum = checksum(checksum, scores[i], keys[i]);
+			}
+			flush(channel, buf);
+			long payloadLength = channel.position() - HEADER_LENGTH;
+
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			buf.putLong(sequence);
+			buf.putInt(n);
+			buf.putLong(checksum);
+			buf.putLong(payloadLength);
+			buf.flip();
+			while (buf.hasRemaining()) {
+				channel.write(buf, HEADER_LENGTH - buf.remaining());
+			}
+
+			channel.force(true);
+		} finally {
+			CloseUtils.close(raf);
+		}
+
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 读快照到一个新的 SortedSet
+	 */
+	public static SortedSet read(File file) throws IOException {
+		SortedSet set = new SortedSet();
+		load(file, set);
+		return set;
+	}
+
+	/**
+	 * 读快照，替换 set 的全部内容
+	 *
+	 * @return 写快照时指定的 sequence
+	 */
+	public static long load(File file, SortedSet set) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			if (length < HEADER_LENGTH) {
+				throw new IOException("snapshot too short: " + file);
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("snapshot too large: " + file);
+			}
+
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			if (buf.getInt() != MAGIC) {
+				throw new IOException("not a snapshot: " + file);
+			}
+			int version = buf.getInt();
+			if (version != VERSION) {
+				throw new IOException("unsupported snapshot version " + version + ": " + file);
+			}
+			long sequence = buf.getLong();
+			int n = buf.getInt();
+			long expectedChecksum = buf.getLong();
+			long payloadLength = buf.getLong();
+			if (n < 0 || payloadLength != length - HEADER_LENGTH) {
+				throw new IOException("snapshot truncated: " + file);
+			}
+			// 每条记录至少 2 字节，先检查条目数再按它分配数组
+			if (n > payloadLength / 2) {
+				throw new IOException("snapshot count " + n + " exceeds payload: " + file);
+			}
+
+			long[] scores = new long[n];
+			long[] keys = new long[n];
+			long score = 0, key = 0;
+			long checksum = 0;
+			try {
+				for (int i = 0; i < n; i++) {
+					score += unzigzag(getVarLong(buf));
+					key += unzigzag(getVarLong(buf));
+					if (i > 0 && (score < scores[i - 1] || (score == scores[i - 1] && key <= keys[i - 1]))) {
+						throw new IOException("snapshot not sorted at " + i + ": " + file);
+					}
+					scores[i] = score;
+					keys[i] = key;
+					checksum = checksum(checksum, score, key);
+				}
+			} catch (java.nio.BufferUnderflowException e) {
+				throw new IOException("snapshot truncated: " + file, e);
+			}
+			if (checksum != expectedChecksum || buf.hasRemaining()) {
+				throw new IOException("snapshot checksum mismatch: " + file);
+			}
+
+			synchronized (set) {
+				set.doLoadSorted(scores, keys, n);
+			}
+			return sequence;
+		} finally {
+			CloseUtils.close(raf);
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+	}
+
+	private static long checksum(long checksum, long score, long key) {
+		checksum = (checksum ^ score) * 0x9E3779B97F4A7C15L;
+		checksum = (checksum ^ key) * 0x9E3779B97F4A7C15L;
+		return checksum ^ (checksum >>> 29);
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	static void putVarLong(ByteBuffer buf, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	static long getVarLong(ByteBuffer buf) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return v;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+}
@@ -0,0 +1,141 @@
+package me.chaopeng.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import me.chaopeng.utils.SortedSet.RecordObject;
+
+/**
+ * TopKView - SortedSet 从大到小前 K 名的只读快照
+ * <p/>
+ * 相当于一直缓存着 getRangeByRank(1, K, true) 的结果：
+ * <ul>
+ * <li>SortedSet 每次修改时在锁内判断是否影响前 K 名（不满 K 个，或者修改的元素不小于第 K 名），
+ * 只有影响时才从表尾向前重新取 K 个，O(K)，发布为新的不可变 {@link Snapshot}</li>
+ * <li>{@link #get()} 只读一个 volatile 引用，不加锁，不分配对象</li>
+ * </ul>
+ * Snapshot 被所有读者共享，只能读；需要 RecordObject 时用 {@link Snapshot#toList()} 复制一份。
+ *
+ * @author chao
+ * @see SortedSet#enableTopK(int)
+ */
+public final class TopKView {
+
+	private final int k;
+
+	private volatile Snapshot top = new Snapshot(new long[0], new long[0]);
+
+	// 以下字段只在 SortedSet 的锁内访问
+
+	/**
+	 * 是否已经有 K 个，不满 K 个时任何修改都会影响前 K 名
+	 */
+	private boolean full = false;
+
+	/**
+	 * 第 K 名
+	 */
+	private long thresholdScore;
+	private long thresholdKey;
+
+	private boolean dirty = true;
+
+	TopKView(int k) {
+		this.k = k;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @return 从大到小的前 K 名（不足 K 个时为全部）
+	 */
+	public Snapshot get() {
+		return top;
+	}
+
+	/**
+	 * (score, key) 被加入或删除
+	 */
+	void touch(long score, long key) {
+		if (!dirty && (!full || score > thresholdScore || (score == thresholdScore && key >= thresholdKey))) {
+			dirty = true;
+		}
+	}
+
+	void invalidate() {
+		dirty = true;
+	}
+
+	boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * @param scores 从大到小，最多 K 个，发布后不能再修改
+	 * @param keys   与 scores 一一对应
+	 */
+	void publish(long[] scores, long[] keys) {
+		int n = scores.length;
+		this.full = n >= k;
+		if (this.full) {
+			this.thresholdScore = scores[n - 1];
+			this.thresholdKey = keys[n - 1];
+		}
+		this.dirty = false;
+		this.top = new Snapshot(scores, keys);
+	}
+
+	/**
+	 * 前 K 名的不可变快照，下标 0 为第一名
+	 */
+	public static final class Snapshot {
+		private final long[] scores;
+		private final long[] keys;
+
+		private Snapshot(long[] scores, long[] keys) {
+			this.scores = scores;
+			this.keys = keys;
+		}
+
+		public int size() {
+			return scores.length;
+		}
+
+		public boolean isEmpty() {
+			return scores.length == 0;
+		}
+
+		public long getScore(int index) {
+			return scores[index];
+		}
+
+		public long getKey(int index) {
+			return keys[index];
+		}
+
+		/**
+		 * @return 从大到小的排名，index + 1
+		 */
+		public int getRank(int index) {
+			return index + 1;
+		}
+
+		/**
+		 * @return 新建的列表，RecordObject::rank 为从大到小的排名，可以随意修改
+		 */
+		public List<RecordObject> toList() {
+			List<RecordObject> res = new ArrayList<>(scores.length);
+			for (int i = 0; i < scores.length; i++) {
+				res.add(new RecordObject(scores[i], keys[i], i + 1));
+			}
+			return res;
+		}
+
+		@Override
+		public String toString() {
+			return toList().toString();
+		}
+	}
+}
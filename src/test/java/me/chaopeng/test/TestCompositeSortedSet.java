@@ -0,0 +1,127 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import me.chaopeng.utils.CompositeSortedSet;
+import me.chaopeng.utils.CompositeSortedSet.RecordObject;
+import me.chaopeng.utils.SortedSet.RangeSpec;
+
+import org.junit.Test;
+
+public class TestCompositeSortedSet {
+
+	/**
+	 * 参照实现：score,tiebreak,key 升序
+	 */
+	private static TreeSet<long[]> newModel() {
+		return new TreeSet<long[]>(new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				for (int i = 0; i < 3; i++) {
+					if (a[i] != b[i]) {
+						return a[i] < b[i] ? -1 : 1;
+					}
+				}
+				return 0;
+			}
+		});
+	}
+
+	private static void assertSame(TreeSet<long[]> model, CompositeSortedSet set) {
+		assertEquals(model.size(), set.size());
+		List<RecordObject> all = set.getRangeByRank(1, set.size(), false);
+		int rank = 0;
+		for (long[] e : model) {
+			RecordObject ro = all.get(rank++);
+			assertEquals(e[0], ro.getScore());
+			assertEquals(e[1], ro.getTiebreak());
+			assertEquals(e[2], ro.getKey());
+			assertEquals(rank, ro.getRank());
+			assertEquals(rank, set.rank(e[2], false));
+			assertEquals(model.size() + 1 - rank, set.rank(e[2], true));
+		}
+	}
+
+	@Test
+	public void testRandomOps() {
+		Random random = new Random(7);
+		CompositeSortedSet set = new CompositeSortedSet();
+		TreeSet<long[]> model = newModel();
+		Map<Long, long[]> entries = new HashMap<>();
+
+		for (int i = 0; i < 20000; i++) {
+			long key = random.nextInt(2000);
+			long[] e = new long[]{random.nextInt(50), random.nextInt(10), key};
+			long[] old = entries.remove(key);
+			if (old != null) {
+				model.remove(old);
+			}
+			if (random.nextInt(4) == 0) {
+				set.remove(key);
+			} else {
+				set.add(e[0], e[1], key);
+				entries.put(key, e);
+				model.add(e);
+			}
+		}
+		assertSame(model, set);
+
+		set.removeByScore(new RangeSpec(10, 20));
+		set.removeByRank(1, 100, true);
+		List<long[]> rest = new ArrayList<>();
+		for (long[] e : model) {
+			if (e[0] < 10 || e[0] > 20) {
+				rest.add(e);
+			}
+		}
+		model.clear();
+		model.addAll(rest.subList(0, rest.size() - 100));
+		assertSame(model, set);
+	}
+
+	/**
+	 * 分数相同时，先达到的排在前面
+	 */
+	@Test
+	public void testTiebreak() {
+		CompositeSortedSet set = new CompositeSortedSet();
+		set.add(100, ~1000L, 1);
+		set.add(100, ~999L, 2);
+		set.add(100, ~1001L, 3);
+		set.add(200, ~2000L, 4);
+
+		assertEquals(1, set.rank(4, true));
+		assertEquals(2, set.rank(2, true));
+		assertEquals(3, set.rank(1, true));
+		assertEquals(4, set.rank(3, true));
+
+		List<RecordObject> ls = set.getRangeByScore(100, 100, true);
+		assertEquals(3, ls.size());
+		assertEquals(2, ls.get(0).getKey());
+		assertEquals(2, ls.get(0).getRank());
+		assertEquals(3, ls.get(2).getKey());
+	}
+
+	@Test
+	public void testGetByRankOutOfRange() {
+		CompositeSortedSet set = new CompositeSortedSet();
+		assertNull(set.getByRank(1, false));
+		set.add(100, 1, 1);
+		set.add(200, 2, 2);
+		for (boolean reverse : new boolean[]{false, true}) {
+			assertNull(set.getByRank(0, reverse));
+			assertNull(set.getByRank(-1, reverse));
+			assertNull(set.getByRank(3, reverse));
+		}
+		assertEquals(2, set.getByRank(1, true).getKey());
+		assertEquals(2, set.getByRank(2, false).getKey());
+	}
+}
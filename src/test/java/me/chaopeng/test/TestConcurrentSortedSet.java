@@ -0,0 +1,133 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.chaopeng.utils.ConcurrentSortedSet;
+import me.chaopeng.utils.SortedSet.RecordObject;
+import me.chaopeng.utils.SortedSet.RecordVisitor;
+
+import org.junit.Test;
+
+public class TestConcurrentSortedSet {
+
+	private static final int N = 2000;
+
+	/**
+	 * score = key * 1000 + [0, 1000)，所以无论怎么更新，排名总是等于 key
+	 */
+	@Test
+	public void testReadWhileWrite() throws InterruptedException {
+		final ConcurrentSortedSet set = new ConcurrentSortedSet();
+		for (int key = 1; key <= N; key++) {
+			set.add(key * 1000L, key);
+		}
+
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(6);
+
+		for (int t = 0; t < 2; t++) {
+			final int seed = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					while (!stop.get()) {
+						long key = random.nextInt(N) + 1;
+						set.add(key * 1000L + random.nextInt(1000), key);
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+
+		for (int t = 0; t < 4; t++) {
+			final int seed = t + 100;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					try {
+						while (!stop.get()) {
+							int key = random.nextInt(N) + 1;
+							assertEquals(key, set.rank(key, false));
+							assertEquals(key, set.getByRank(key, false).getKey());
+							long score = set.getScore(key, -1);
+							assertTrue(score >= key * 1000L && score < key * 1000L + 1000);
+
+							List<RecordObject> ls = set.getRangeByRank(key, key + 9, true);
+							for (int i = 0; i < ls.size(); i++) {
+								assertEquals(N + 1 - key - i, ls.get(i).getKey());
+							}
+
+							final int begin = key;
+							set.forEachByRank(key, key + 9, false, new RecordVisitor() {
+								@Override
+								public boolean visit(int rank, long k, long score) {
+									assertEquals(rank, k);
+									assertTrue(rank >= begin && rank <= begin + 9);
+									return true;
+								}
+							});
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+
+		Thread.sleep(1000);
+		stop.set(true);
+		done.await();
+
+		if (error.get() != null) {
+			throw new AssertionError(error.get());
+		}
+		assertEquals(N, set.size());
+	}
+
+	/**
+	 * 回调时不持有锁，回调里等写完成也不会死锁
+	 */
+	@Test
+	public void testVisitorDoesNotBlockWriter() throws InterruptedException {
+		final ConcurrentSortedSet set = new ConcurrentSortedSet();
+		for (int key = 1; key <= 10; key++) {
+			set.add(key, key);
+		}
+
+		final CountDownLatch written = new CountDownLatch(1);
+		int visited = set.forEachByRank(1, 10, false, new RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score) {
+				if (rank == 1) {
+					new Thread(new Runnable() {
+						@Override
+						public void run() {
+							set.add(100, 100);
+							written.countDown();
+						}
+					}).start();
+					try {
+						assertTrue(written.await(5, TimeUnit.SECONDS));
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return rank < 3;
+			}
+		});
+		assertEquals(3, visited);
+		assertEquals(11, set.size());
+		assertEquals(1, set.rank(100, true));
+	}
+}
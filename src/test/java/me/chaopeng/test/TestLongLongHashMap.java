@@ -0,0 +1,40 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import me.chaopeng.utils.LongLongHashMap;
+
+import org.junit.Test;
+
+public class TestLongLongHashMap {
+
+	@Test
+	public void testRandomOps() {
+		Random random = new Random(7);
+		LongLongHashMap map = new LongLongHashMap();
+		Map<Long, Long> model = new HashMap<>();
+
+		for (int i = 0; i < 200000; i++) {
+			long key = random.nextInt(5000) - 2500;
+			if (random.nextBoolean()) {
+				long value = random.nextLong();
+				assertEquals(!model.containsKey(key), map.put(key, value));
+				model.put(key, value);
+			} else {
+				assertEquals(model.remove(key) != null, map.remove(key));
+			}
+		}
+
+		assertEquals(model.size(), map.size());
+		for (long key = -2500; key < 2500; key++) {
+			assertEquals(model.containsKey(key), map.containsKey(key));
+			if (model.containsKey(key)) {
+				assertEquals(model.get(key).longValue(), map.get(key, -1));
+			}
+		}
+	}
+}
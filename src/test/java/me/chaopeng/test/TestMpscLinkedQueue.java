@@ -0,0 +1,115 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import me.chaopeng.utils.MpscLinkedQueue;
+
+import org.junit.Test;
+
+public class TestMpscLinkedQueue {
+
+	private static class Item extends MpscLinkedQueue.Node {
+		final int producer;
+		final int seq;
+
+		Item(int producer, int seq) {
+			this.producer = producer;
+			this.seq = seq;
+		}
+	}
+
+	@Test
+	public void testSingleThread() {
+		MpscLinkedQueue<Item> queue = new MpscLinkedQueue<>();
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		assertNull(queue.peek());
+
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 5; i++) {
+				queue.offer(new Item(0, i));
+			}
+			assertFalse(queue.isEmpty());
+
+			int n = 0;
+			for (Item it = queue.peek(); it != null; it = queue.successor(it)) {
+				assertEquals(n++, it.seq);
+			}
+			assertEquals(5, n);
+
+			for (int i = 0; i < 5; i++) {
+				assertEquals(i, queue.poll().seq);
+			}
+			assertNull(queue.poll());
+			assertTrue(queue.isEmpty());
+		}
+
+		// 出队后可以再次入队
+		Item item = new Item(0, 0);
+		queue.offer(item);
+		assertSame(item, queue.poll());
+		queue.offer(item);
+		assertSame(item, queue.poll());
+		assertTrue(queue.isEmpty());
+
+		// 还在队列中时再次入队会断开之后的元素，直接拒绝
+		Item other = new Item(1, 0);
+		queue.offer(item);
+		queue.offer(other);
+		assertTrue(item.isQueued());
+		try {
+			queue.offer(item);
+			fail();
+		} catch (IllegalStateException ignored) {
+		}
+		assertSame(item, queue.poll());
+		assertFalse(item.isQueued());
+		assertSame(other, queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * 多个生产者，每个生产者的元素按顺序出队
+	 */
+	@Test
+	public void testProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 200000;
+		final MpscLinkedQueue<Item> queue = new MpscLinkedQueue<>();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < perProducer; i++) {
+						queue.offer(new Item(producer, i));
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		int[] next = new int[producers];
+		long deadline = System.currentTimeMillis() + 10000;
+		for (int n = 0; n < producers * perProducer; ) {
+			Item item = queue.poll();
+			if (item == null) {
+				assertTrue(System.currentTimeMillis() < deadline);
+				continue;
+			}
+			assertEquals(next[item.producer]++, item.seq);
+			n++;
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.isEmpty());
+	}
+}
@@ -0,0 +1,120 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import me.chaopeng.utils.OffHeapSortedSet;
+import me.chaopeng.utils.SortedSet;
+import me.chaopeng.utils.SortedSet.RangeSpec;
+import me.chaopeng.utils.SortedSet.RecordObject;
+
+import org.junit.Test;
+
+public class TestOffHeapSortedSet {
+
+	private static void assertSameRange(List<RecordObject> expected, List<RecordObject> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).toString(), actual.get(i).toString());
+		}
+	}
+
+	private static void assertSame(SortedSet expected, OffHeapSortedSet actual) {
+		assertEquals(expected.size(), actual.size());
+		assertSameRange(expected.getRangeByRank(1, expected.size(), false),
+				actual.getRangeByRank(1, actual.size(), false));
+		for (int rank = 1; rank <= expected.size(); rank += 7) {
+			RecordObject ro = expected.getByRank(rank, true);
+			assertEquals(ro.toString(), actual.getByRank(rank, true).toString());
+			assertEquals(rank, actual.rank(ro.getKey(), true));
+			assertEquals(ro.getScore(), actual.getScore(ro.getKey(), 0L));
+		}
+	}
+
+	private static void randomOps(Random random, SortedSet expected, OffHeapSortedSet actual, int n) {
+		for (int i = 0; i < n; i++) {
+			long key = random.nextInt(5000) - 100;
+			long score = random.nextInt(500) - 250;
+			if (random.nextInt(4) == 0) {
+				expected.remove(key);
+				actual.remove(key);
+			} else {
+				expected.add(score, key);
+				actual.add(score, key);
+			}
+		}
+	}
+
+	/**
+	 * 与 SortedSet 的结果对比
+	 */
+	@Test
+	public void testSameAsSortedSet() throws IOException {
+		Random random = new Random(3);
+		SortedSet expected = new SortedSet();
+		OffHeapSortedSet actual = new OffHeapSortedSet();
+
+		randomOps(random, expected, actual, 20000);
+		assertSame(expected, actual);
+		assertNull(actual.getScore(100000));
+		assertEquals(-1, actual.rank(100000, false));
+
+		assertSameRange(expected.getRangeByScore(-10, 10, true), actual.getRangeByScore(-10, 10, true));
+		assertSameRange(expected.getRangeByScore(-10, 10, false), actual.getRangeByScore(-10, 10, false));
+		assertSameRange(expected.getRangeByRank(20, 80, true), actual.getRangeByRank(20, 80, true));
+
+		expected.removeByScore(new RangeSpec(true, false, -50, 50));
+		actual.removeByScore(new RangeSpec(true, false, -50, 50));
+		expected.removeByRank(10, 200, true);
+		actual.removeByRank(10, 200, true);
+		assertSame(expected, actual);
+
+		// 删除后空出来的节点可以重用
+		randomOps(random, expected, actual, 5000);
+		assertSame(expected, actual);
+
+		actual.clear();
+		assertEquals(0, actual.size());
+		actual.add(1, 1);
+		assertEquals(1, actual.rank(1, false));
+		actual.close();
+	}
+
+	/**
+	 * 文件模式：正常关闭后重新打开，数据不变
+	 */
+	@Test
+	public void testReopen() throws IOException {
+		File file = File.createTempFile("offheap", ".set");
+		File index = new File(file.getPath() + ".idx");
+		file.delete();
+		file.deleteOnExit();
+		index.deleteOnExit();
+
+		Random random = new Random(4);
+		SortedSet expected = new SortedSet();
+		OffHeapSortedSet actual = OffHeapSortedSet.open(file);
+		randomOps(random, expected, actual, 20000);
+		actual.close();
+
+		actual = OffHeapSortedSet.open(file);
+		assertSame(expected, actual);
+
+		// 没有正常关闭的文件不能打开
+		try {
+			OffHeapSortedSet.open(file);
+			fail();
+		} catch (IOException ignored) {
+		}
+
+		randomOps(random, expected, actual, 5000);
+		actual.close();
+		actual = OffHeapSortedSet.open(file);
+		assertSame(expected, actual);
+		actual.close();
+	}
+}
@@ -0,0 +1,650 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.chaopeng.utils.OrderedExecutorMetrics;
+import me.chaopeng.utils.OrderedThreadPoolExecutor;
+import me.chaopeng.utils.OrderedThreadPoolExecutor.BatchRunable;
+import me.chaopeng.utils.OrderedThreadPoolExecutor.CoalescingRunable;
+import me.chaopeng.utils.OrderedThreadPoolExecutor.OrderedRunable;
+import me.chaopeng.utils.OrderedThreadPoolExecutor.RejectPolicy;
+
+import javax.management.ObjectName;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Test;
+
+public class TestOrderedThreadPoolExecutor {
+
+	private static class Log {
+		private final List<String> lines = new ArrayList<>();
+
+		synchronized void add(String line) {
+			lines.add(line);
+		}
+
+		synchronized List<String> get(String prefix) {
+			List<String> res = new ArrayList<>();
+			for (String line : lines) {
+				if (line.startsWith(prefix)) {
+					res.add(line);
+				}
+			}
+			return res;
+		}
+	}
+
+	private static class Latch extends OrderedRunable {
+		private final CountDownLatch latch;
+
+		Latch(Long key, CountDownLatch latch) {
+			super(key);
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static class Done extends OrderedRunable {
+		private final CountDownLatch done;
+
+		Done(Long key, CountDownLatch done) {
+			super(key);
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			done.countDown();
+		}
+	}
+
+	private static class Plain extends OrderedRunable {
+		private final Log log;
+		private final String name;
+
+		Plain(Long key, Log log, String name) {
+			super(key);
+			this.log = log;
+			this.name = name;
+		}
+
+		@Override
+		public void run() {
+			log.add(key + ":" + name);
+		}
+	}
+
+	private static class Save extends CoalescingRunable<Save> {
+		private final Log log;
+		private final int version;
+
+		Save(Long key, Log log, int version) {
+			super(key);
+			this.log = log;
+			this.version = version;
+		}
+
+		@Override
+		protected void runLatest() {
+			log.add(key + ":save" + version);
+		}
+	}
+
+	private static class Write extends BatchRunable<Write> {
+		private final Log log;
+		private final int value;
+
+		Write(Long key, Log log, int value) {
+			super(key);
+			this.log = log;
+			this.value = value;
+		}
+
+		@Override
+		protected void runBatch(List<Write> batch) {
+			StringBuilder sb = new StringBuilder();
+			for (Write w : batch) {
+				sb.append(w.value);
+			}
+			log.add(key + ":write" + sb);
+		}
+	}
+
+	/**
+	 * 执行器被阻塞时积压的任务，执行时同key可合并的任务合并，不越过同key的其他任务
+	 */
+	@Test
+	public void testBatch() throws InterruptedException {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.newFixesOrderedThreadPool(2, 1, 5);
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		Log log = new Log();
+
+		pool.execute(new Latch(1L, latch));
+		for (int i = 1; i <= 3; i++) {
+			pool.execute(new Save(2L, log, i));
+			pool.execute(new Write(3L, log, i));
+		}
+		pool.execute(new Plain(2L, log, "plain"));
+		pool.execute(new Plain(3L, log, "plain"));
+		for (int i = 4; i <= 5; i++) {
+			pool.execute(new Save(2L, log, i));
+			pool.execute(new Write(3L, log, i));
+		}
+		pool.execute(new Done(4L, done));
+
+		latch.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals("[2:save3, 2:plain, 2:save5]", log.get("2:").toString());
+		assertEquals("[3:write123, 3:plain, 3:write45]", log.get("3:").toString());
+		pool.shutdown();
+	}
+
+	/**
+	 * 被合并执行的任务出队时才释放排队空间
+	 */
+	@Test
+	public void testBatchReleaseOnDequeue() throws InterruptedException {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(1)
+				.maxPending(10).build();
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch blocker = new CountDownLatch(1);
+		Log log = new Log();
+
+		pool.execute(new Latch(0L, latch));
+		pool.execute(new Write(1L, log, 1));
+		pool.execute(new Latch(2L, blocker));
+		pool.execute(new Write(1L, log, 2));
+		assertEquals(4, pool.getPendingCount());
+
+		// Write 1、2 合并执行后停在 Latch 2，Write 2 还在队列中
+		latch.countDown();
+		for (int i = 0; i < 100 && (log.get("1:").isEmpty() || pool.getPendingCount() > 2); i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		assertEquals("[1:write12]", log.get("1:").toString());
+		assertEquals(2, pool.getPendingCount());
+
+		blocker.countDown();
+		for (int i = 0; i < 100 && pool.getPendingCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getPendingCount());
+		pool.shutdown();
+	}
+
+	/**
+	 * 每个key最多排队3个（包括正在执行的）
+	 */
+	@Test
+	public void testAbortAndBlock() throws InterruptedException {
+		final OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder()
+				.corePoolSize(2).numOfExecutor(2).maxPendingPerKey(3)
+				.rejectPolicy(RejectPolicy.BLOCK).blockTimeoutMillis(50).build();
+		CountDownLatch latch = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		Log log = new Log();
+
+		pool.execute(new Latch(0L, latch));
+		pool.execute(new Plain(0L, log, "a"));
+		pool.execute(new Plain(0L, log, "b"));
+		assertEquals(3, pool.getPendingCount(0L));
+		try {
+			pool.execute(new Plain(0L, log, "c"));
+			fail();
+		} catch (RejectedExecutionException ignored) {
+		}
+		assertEquals(1, pool.getRejectedCount());
+		assertEquals(1, pool.getBlockedCount());
+
+		// 阻塞到有空间
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pool.execute(new Done(0L, done));
+				} catch (Throwable e) {
+					error.set(e);
+				}
+			}
+		});
+		producer.start();
+		Thread.sleep(20);
+		latch.countDown();
+		producer.join();
+		assertNull(error.get());
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("[0:a, 0:b]", log.get("0:").toString());
+		assertTrue(pool.getPendingCount() <= 1);
+		pool.shutdown();
+	}
+
+	/**
+	 * 唯一的线程被阻塞时，调用者自己执行该key排队的任务
+	 */
+	@Test
+	public void testCallerRuns() throws InterruptedException {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder()
+				.corePoolSize(1).numOfExecutor(2).maxPendingPerKey(2)
+				.rejectPolicy(RejectPolicy.CALLER_RUNS).build();
+		CountDownLatch latch = new CountDownLatch(1);
+		Log log = new Log();
+
+		pool.execute(new Latch(0L, latch));
+		for (int i = 0; i < 10; i++) {
+			pool.execute(new Plain(1L, log, String.valueOf(i)));
+		}
+		assertEquals("[1:0, 1:1, 1:2, 1:3, 1:4, 1:5, 1:6, 1:7]", log.get("1:").toString());
+		assertEquals(2, pool.getPendingCount(1L));
+		latch.countDown();
+		pool.shutdown();
+	}
+
+	private static class Seq extends OrderedRunable {
+		private final long[] last;
+		private final int index;
+		private final long seq;
+		private final CountDownLatch done;
+
+		Seq(Long key, long[] last, int index, long seq, CountDownLatch done) {
+			super(key);
+			this.last = last;
+			this.index = index;
+			this.seq = seq;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			// 同key顺序执行，上一个任务的写对这里可见
+			if (last[index] == seq - 1) {
+				last[index] = seq;
+			}
+			done.countDown();
+		}
+	}
+
+	private static void runSeq(OrderedThreadPoolExecutor pool) throws InterruptedException {
+		final int keys = 200;
+		final int perKey = 200;
+		final long[] last = new long[keys];
+		final CountDownLatch done = new CountDownLatch(keys * perKey);
+		final long[] nextSeq = new long[keys];
+		Random random = new Random(11);
+		for (int i = 0; i < keys * perKey; i++) {
+			int index = random.nextInt(keys);
+			while (nextSeq[index] == perKey) {
+				index = (index + 1) % keys;
+			}
+			pool.execute(new Seq((long) (index - keys / 2), last, index, ++nextSeq[index], done));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < keys; i++) {
+			assertEquals(perKey, last[i]);
+		}
+	}
+
+	/**
+	 * 每个key一个mailbox，顺序不变，负数key可用，执行完后mailbox被回收
+	 */
+	@Test
+	public void testMailbox() throws InterruptedException {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder().corePoolSize(4).perKeyMailbox(true).build();
+		runSeq(pool);
+		for (int i = 0; i < 100 && pool.getMailboxCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getMailboxCount());
+		assertEquals(0, pool.getPendingCount());
+		pool.shutdown();
+
+		pool = OrderedThreadPoolExecutor.newFixesOrderedThreadPool(4, 16, 5);
+		runSeq(pool);
+		pool.shutdown();
+	}
+
+	@Test
+	public void testAffinity() throws InterruptedException {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder().corePoolSize(4).numOfExecutor(16).affinity(true).build();
+		runSeq(pool);
+		pool.shutdown();
+
+		pool = OrderedThreadPoolExecutor.builder().corePoolSize(4).perKeyMailbox(true).affinity(true).build();
+		runSeq(pool);
+		pool.shutdown();
+	}
+
+	private static int switches(OrderedThreadPoolExecutor pool) throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+		Log log = new Log();
+		pool.execute(new Latch(2L, latch));
+		for (int i = 0; i < 100; i++) {
+			pool.execute(new Plain(0L, log, String.valueOf(i)));
+			pool.execute(new Plain(1L, log, String.valueOf(i)));
+		}
+		pool.execute(new Done(0L, done));
+		pool.execute(new Done(1L, done));
+		latch.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		pool.shutdown();
+
+		List<String> lines = log.get("");
+		assertEquals(200, lines.size());
+		int switches = 0;
+		for (int i = 1; i < lines.size(); i++) {
+			if (lines.get(i).charAt(0) != lines.get(i - 1).charAt(0)) {
+				switches++;
+			}
+		}
+		return switches;
+	}
+
+	/**
+	 * 单线程两个key交替执行：按个数限制时每5个换一次，按时间限制时小任务一次执行更多，都需要 fairReschedule
+	 */
+	@Test
+	public void testTimeBudget() throws InterruptedException {
+		int bySize = switches(OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(3)
+				.fairReschedule(true).build());
+		int byTime = switches(OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(3)
+				.timeBudgetMicros(1000000).build());
+		assertTrue(String.valueOf(bySize), bySize >= 30);
+		assertTrue(String.valueOf(byTime), byTime < 10);
+	}
+
+	private static class Rendezvous extends OrderedRunable {
+		private final CountDownLatch all;
+		private final CountDownLatch done;
+
+		Rendezvous(Long key, CountDownLatch all, CountDownLatch done) {
+			super(key);
+			this.all = all;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			all.countDown();
+			try {
+				if (all.await(10, TimeUnit.SECONDS)) {
+					done.countDown();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 交给每次一个新线程的scheduler：20个key同时阻塞也不会互相等待，顺序不变
+	 */
+	@Test
+	public void testScheduler() throws InterruptedException {
+		Executor threadPerRun = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		};
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder().corePoolSize(1)
+				.perKeyMailbox(true).scheduler(threadPerRun).build();
+
+		CountDownLatch all = new CountDownLatch(20);
+		CountDownLatch done = new CountDownLatch(20);
+		for (int i = 0; i < 20; i++) {
+			pool.execute(new Rendezvous((long) i, all, done));
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		runSeq(pool);
+		pool.shutdown();
+		try {
+			pool.execute(new Plain(0L, new Log(), "x"));
+			fail();
+		} catch (RejectedExecutionException ignored) {
+		}
+	}
+
+	/**
+	 * 还在队列中的任务不能再次 execute，不影响同一个队列中的其他任务；执行后可以再次 execute
+	 */
+	@Test
+	public void testExecuteTwice() throws InterruptedException {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(1)
+				.maxPendingPerKey(10).build();
+		CountDownLatch latch = new CountDownLatch(1);
+		Log log = new Log();
+		Plain task = new Plain(1L, log, "a");
+
+		pool.execute(new Latch(0L, latch));
+		pool.execute(task);
+		pool.execute(new Plain(2L, log, "b"));
+		try {
+			pool.execute(task);
+			fail();
+		} catch (IllegalStateException ignored) {
+		}
+		assertEquals(3, pool.getPendingCount());
+
+		latch.countDown();
+		CountDownLatch done = new CountDownLatch(1);
+		pool.execute(new Done(0L, done));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		pool.execute(task);
+		done = new CountDownLatch(1);
+		pool.execute(new Done(0L, done));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("[1:a, 1:a]", log.get("1:").toString());
+		assertEquals("[2:b]", log.get("2:").toString());
+		// Done 执行完后才释放
+		for (int i = 0; i < 100 && pool.getPendingCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, pool.getPendingCount());
+		pool.shutdown();
+	}
+
+	private static class Sleep extends OrderedRunable {
+		Sleep(Long key) {
+			super(key);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Thread.sleep(2);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 再次 execute 的任务没有被采样时不记录，不沿用上一次的采样
+	 */
+	@Test
+	public void testMetricsReexecute() throws InterruptedException {
+		OrderedThreadPoolExecutor always = OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(1)
+				.metricsSampleRate(1).build();
+		OrderedThreadPoolExecutor rarely = OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(1)
+				.metricsSampleRate(1 << 30).build();
+		Log log = new Log();
+		Plain task = new Plain(1L, log, "a");
+
+		CountDownLatch done = new CountDownLatch(1);
+		always.execute(task);
+		always.execute(new Done(1L, done));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		done = new CountDownLatch(1);
+		rarely.execute(task);
+		rarely.execute(new Done(1L, done));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals("[1:a, 1:a]", log.get("1:").toString());
+		// task 在 Done 之前执行完并记录
+		assertEquals(0, rarely.getMetrics().getSampledTasks());
+		assertTrue(rarely.getMetrics().getHotKeys(10).isEmpty());
+		always.shutdown();
+		rarely.shutdown();
+	}
+
+	/**
+	 * 每个任务都采样：排队数、热点key、排队和执行时间、重新调度次数，以及JMX
+	 */
+	@Test
+	public void testMetrics() throws Exception {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.builder().corePoolSize(1).numOfExecutor(16)
+				.batchLimit(5).metricsSampleRate(1).build();
+		OrderedExecutorMetrics metrics = pool.getMetrics();
+		assertEquals(1, metrics.getSampleRate());
+		assertNull(OrderedThreadPoolExecutor.newFixesOrderedThreadPool(1).getMetrics());
+
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(1);
+		Log log = new Log();
+		pool.execute(new Latch(1L, latch));
+		for (int i = 0; i < 99; i++) {
+			pool.execute(new Plain(1L, log, String.valueOf(i)));
+		}
+		for (long key = 2; key < 12; key++) {
+			pool.execute(new Plain(key, log, "x"));
+		}
+		pool.execute(new Sleep(2L));
+
+		Map<Long, Integer> deepest = pool.getDeepestQueues(2);
+		assertEquals("{1=100, 2=2}", deepest.toString());
+		// 按桶的上界，误差不超过25%
+		assertTrue(metrics.getQueueDepth(1) >= 100 && metrics.getQueueDepth(1) < 125);
+
+		// 全部排好队再开始执行，key 1 的101个任务每5个重新调度一次
+		pool.execute(new Done(1L, done));
+		latch.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 100 && metrics.getSampledTasks() < 112; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(112, metrics.getSampledTasks());
+
+		List<OrderedExecutorMetrics.HotKey> hot = metrics.getHotKeys(2);
+		assertEquals(2, hot.size());
+		assertEquals(Long.valueOf(1), hot.get(0).getKey());
+		assertEquals(101, hot.get(0).getCount());
+		assertEquals(Long.valueOf(2), hot.get(1).getKey());
+		assertTrue(hot.get(1).getExecNanos() >= TimeUnit.MILLISECONDS.toNanos(2));
+
+		// Latch 等待了主线程提交完所有任务
+		assertTrue(metrics.getWaitNanos(0.99) > 0);
+		assertTrue(metrics.getExecNanos(1) >= TimeUnit.MILLISECONDS.toNanos(2));
+		assertTrue(String.valueOf(metrics.getRescheduleCount()), metrics.getRescheduleCount() >= 100 / 5);
+		assertTrue(metrics.getBatchCount() > metrics.getRescheduleCount());
+
+		metrics.registerMBean("test");
+		ObjectName name = new ObjectName("me.chaopeng.utils:type=OrderedThreadPoolExecutor,name=\"test\"");
+		String[] hotKeys = (String[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HotKeys");
+		assertTrue(hotKeys[0], hotKeys[0].startsWith("key=1,count=101,"));
+		assertEquals(112L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SampledTasks"));
+		ManagementFactory.getPlatformMBeanServer().invoke(name, "reset", null, null);
+		assertEquals(0, metrics.getSampledTasks());
+		assertTrue(metrics.getHotKeys(10).isEmpty());
+		metrics.unregisterMBean();
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+		pool.shutdown();
+	}
+
+	private static class Step implements Callable<Integer>, Function<Integer, Integer> {
+		private final Log log;
+		private final String name;
+
+		Step(Log log, String name) {
+			this.log = log;
+			this.name = name;
+		}
+
+		@Override
+		public Integer call() {
+			log.add(name);
+			return 1;
+		}
+
+		@Override
+		public Integer apply(Integer input) {
+			log.add(name + input);
+			if (input < 0) {
+				throw new IllegalStateException(name);
+			}
+			return input * 10;
+		}
+	}
+
+	/**
+	 * 同key的下一步立即排队，排在之后execute的任务前面；其他key的下一步等上一步完成；失败一直传下去
+	 */
+	@Test
+	public void testSubmit() throws Exception {
+		OrderedThreadPoolExecutor pool = OrderedThreadPoolExecutor.newFixesOrderedThreadPool(2, 16, 5);
+		CountDownLatch latch = new CountDownLatch(1);
+		Log log = new Log();
+
+		pool.execute(new Latch(1L, latch));
+		ListenableFuture<Integer> first = pool.submit(1L, new Step(log, "1:first"));
+		ListenableFuture<Integer> second = pool.submit(1L, first, new Step(log, "1:second"));
+		ListenableFuture<Integer> other = pool.submit(2L, second, new Step(log, "2:other"));
+		ListenableFuture<Integer> third = pool.submit(2L, other, new Step(log, "2:third"));
+		pool.execute(new Plain(1L, log, "plain"));
+		pool.execute(new Plain(2L, log, "plain"));
+		CountDownLatch done = new CountDownLatch(1);
+		pool.execute(new Done(1L, done));
+		assertFalse(third.isDone());
+
+		latch.countDown();
+		assertEquals(Integer.valueOf(1000), third.get(10, TimeUnit.SECONDS));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Integer.valueOf(10), second.get());
+		assertEquals("[1:first, 1:second1, 1:plain]", log.get("1:").toString());
+		assertEquals("[2:plain, 2:other10, 2:third100]", log.get("2:").toString());
+
+		ListenableFuture<Integer> failed = pool.submit(3L, pool.submit(3L, new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return -1;
+			}
+		}), new Step(log, "3:fail"));
+		ListenableFuture<Integer> skipped = pool.submit(4L, failed, new Step(log, "4:skipped"));
+		try {
+			skipped.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals("3:fail", e.getCause().getMessage());
+		}
+		assertEquals("[3:fail-1]", log.get("3:").toString());
+		assertTrue(log.get("4:").isEmpty());
+		pool.shutdown();
+	}
+}
@@ -0,0 +1,61 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+
+import me.chaopeng.utils.ShardedSortedSet;
+import me.chaopeng.utils.SortedSet;
+import me.chaopeng.utils.SortedSet.RecordObject;
+
+import org.junit.Test;
+
+public class TestShardedSortedSet {
+
+	private static void assertSameRange(List<RecordObject> expected, List<RecordObject> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).toString(), actual.get(i).toString());
+		}
+	}
+
+	/**
+	 * 与单个 SortedSet 的结果对比
+	 */
+	@Test
+	public void testSameAsSortedSet() {
+		Random random = new Random(11);
+		SortedSet expected = new SortedSet();
+		ShardedSortedSet sharded = new ShardedSortedSet(7);
+
+		for (int i = 0; i < 5000; i++) {
+			long key = random.nextInt(3000);
+			long score = random.nextInt(200);
+			expected.add(score, key);
+			sharded.add(score, key);
+		}
+		sharded.remove(7);
+		expected.remove(7);
+		assertEquals(expected.size(), sharded.size());
+
+		for (int key = 0; key < 3000; key += 13) {
+			assertEquals(expected.rank(key, false), sharded.rank(key, false));
+			assertEquals(expected.rank(key, true), sharded.rank(key, true));
+		}
+		for (int rank = 1; rank <= expected.size(); rank += 17) {
+			assertEquals(expected.getByRank(rank, false).toString(), sharded.getByRank(rank, false).toString());
+			assertEquals(expected.getByRank(rank, true).toString(), sharded.getByRank(rank, true).toString());
+		}
+
+		assertSameRange(expected.getRangeByRank(100, 150, false), sharded.getRangeByRank(100, 150, false));
+		assertSameRange(expected.getRangeByRank(1, 100, true), sharded.getRangeByRank(1, 100, true));
+		assertSameRange(expected.getRangeByScore(50, 60, false), sharded.getRangeByScore(50, 60, false));
+		assertSameRange(expected.getRangeByScore(50, 60, true), sharded.getRangeByScore(50, 60, true));
+
+		expected.removeByRank(10, 500, true);
+		sharded.removeByRank(10, 500, true);
+		assertSameRange(expected.getRangeByRank(1, expected.size(), false),
+				sharded.getRangeByRank(1, sharded.size(), false));
+	}
+}
@@ -0,0 +1,531 @@
+package me.chaopeng.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+
+import me.chaopeng.utils.ScoreHistogram;
+import me.chaopeng.utils.SortedSet;
+import me.chaopeng.utils.SortedSet.RecordObject;
+import me.chaopeng.utils.SortedSetJournal;
+import me.chaopeng.utils.SortedSetSnapshot;
+import me.chaopeng.utils.TopKView;
+
+import org.junit.Test;
+
+public class TestSortedSet {
+
+	/**
+	 * 参照实现：score,key 升序
+	 */
+	private static TreeSet<long[]> newModel() {
+		return new TreeSet<long[]>(new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0]) {
+					return a[0] < b[0] ? -1 : 1;
+				}
+				return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+			}
+		});
+	}
+
+	private static void assertSame(TreeSet<long[]> model, SortedSet set) {
+		assertEquals(model.size(), set.size());
+		int rank = 0;
+		for (long[] e : model) {
+			rank++;
+			assertEquals(rank, set.rank(e[1], false));
+			assertEquals(model.size() + 1 - rank, set.rank(e[1], true));
+			RecordObject ro = set.getByRank(rank, false);
+			assertEquals(e[1], ro.getKey());
+			assertEquals(e[0], ro.getScore());
+			assertEquals(Long.valueOf(e[0]), set.getScore(e[1]));
+		}
+	}
+
+	@Test
+	public void testRandomOps() {
+		Random random = new Random(1);
+		SortedSet set = new SortedSet();
+		TreeSet<long[]> model = newModel();
+		Map<Long, Long> scores = new HashMap<>();
+
+		for (int i = 0; i < 20000; i++) {
+			long key = random.nextInt(2000) - 100;
+			long score = random.nextInt(500) - 250;
+			if (random.nextInt(4) == 0) {
+				set.remove(key);
+				Long old = scores.remove(key);
+				if (old != null) {
+					model.remove(new long[]{old, key});
+				}
+			} else {
+				set.add(score, key);
+				Long old = scores.put(key, score);
+				if (old != null) {
+					model.remove(new long[]{old, key});
+				}
+				model.add(new long[]{score, key});
+			}
+		}
+
+		assertSame(model, set);
+		assertNull(set.getScore(100000L));
+		assertEquals(-1, set.rank(100000L, false));
+	}
+
+	@Test
+	public void testRange() {
+		SortedSet set = new SortedSet();
+		for (int i = 1; i <= 100; i++) {
+			set.add(i * 10, i);
+		}
+
+		List<RecordObject> ls = set.getRangeByRank(1, 10, true);
+		assertEquals(10, ls.size());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(100 - i, ls.get(i).getKey());
+			assertEquals(i + 1, ls.get(i).getRank());
+		}
+
+		ls = set.getRangeByScore(15, 55, false);
+		List<Long> keys = new ArrayList<>();
+		for (RecordObject ro : ls) {
+			keys.add(ro.getKey());
+		}
+		assertEquals("[2, 3, 4, 5]", keys.toString());
+		assertEquals(2, ls.get(0).getRank());
+
+		ls = set.getRangeByScore(15, 55, true);
+		keys.clear();
+		for (RecordObject ro : ls) {
+			keys.add(ro.getKey());
+		}
+		assertEquals("[5, 4, 3, 2]", keys.toString());
+		assertEquals(96, ls.get(0).getRank());
+		assertEquals(99, ls.get(3).getRank());
+
+		// 超出 int 的分数
+		set.add(1L << 40, 101);
+		assertEquals(101, set.getRangeByScore(Integer.MAX_VALUE + 1L, Long.MAX_VALUE, true).get(0).getKey());
+		assertEquals(101, set.getRangeByScore(Long.MIN_VALUE, Long.MAX_VALUE, true).get(0).getKey());
+		assertEquals(0, set.getRangeByScore(1001, Integer.MAX_VALUE, true).size());
+		assertNull(set.getRangeByScore(55, 15, true));
+		set.remove(101);
+
+		// 从大到小和从小到大反转的结果一致
+		List<RecordObject> asc = set.getRangeByRank(81, 95, false);
+		List<RecordObject> desc = set.getRangeByRank(6, 20, true);
+		assertEquals(15, desc.size());
+		for (int i = 0; i < 15; i++) {
+			assertEquals(asc.get(14 - i).getKey(), desc.get(i).getKey());
+			assertEquals(i + 6, desc.get(i).getRank());
+		}
+		assertEquals(0, set.getRangeByRank(101, 110, true).size());
+		assertEquals(100, set.getRangeByRank(-5, 1000, true).size());
+
+		set.removeByRank(1, 10, true);
+		assertEquals(90, set.size());
+		assertEquals(90, set.getByRank(1, true).getKey());
+
+		set.removeByScore(new SortedSet.RangeSpec(0, 100));
+		assertEquals(80, set.size());
+		assertEquals(11, set.getByRank(1, false).getKey());
+	}
+
+	@Test
+	public void testAddAll() {
+		Random random = new Random(3);
+		SortedSet set = new SortedSet();
+		TreeSet<long[]> model = newModel();
+		Map<Long, Long> scores = new HashMap<>();
+
+		// 第一批是空表，走自底向上建表；之后的批次走有序合并
+		for (int round = 0; round < 5; round++) {
+			int n = round == 0 ? 20000 : 3000;
+			long[] s = new long[n];
+			long[] k = new long[n];
+			for (int i = 0; i < n; i++) {
+				k[i] = random.nextInt(30000);
+				s[i] = random.nextInt(1000);
+			}
+			set.addAll(s, k);
+
+			for (int i = 0; i < n; i++) {
+				Long old = scores.put(k[i], s[i]);
+				if (old != null) {
+					model.remove(new long[]{old, k[i]});
+				}
+				model.add(new long[]{s[i], k[i]});
+			}
+			assertSame(model, set);
+
+			// 合并之后单个操作仍然正确
+			set.add(-1, -1);
+			set.remove(-1);
+		}
+	}
+
+	@Test
+	public void testVisitorAndCursor() {
+		SortedSet set = new SortedSet();
+		for (int i = 1; i <= 100; i++) {
+			set.add(i * 10, i);
+		}
+
+		final List<String> visited = new ArrayList<>();
+		SortedSet.RecordVisitor visitor = new SortedSet.RecordVisitor() {
+			@Override
+			public boolean visit(int rank, long key, long score) {
+				visited.add(rank + ":" + key);
+				return visited.size() < 3;
+			}
+		};
+
+		assertEquals(3, set.forEachByRank(1, 10, true, visitor));
+		assertEquals("[1:100, 2:99, 3:98]", visited.toString());
+
+		visited.clear();
+		assertEquals(3, set.forEachByScore(new SortedSet.RangeSpec(true, false, 150, 1000), false, visitor));
+		assertEquals("[16:16, 17:17, 18:18]", visited.toString());
+
+		visited.clear();
+		assertEquals(3, set.forEachByScore(new SortedSet.RangeSpec(0, 555), true, visitor));
+		assertEquals("[46:55, 47:54, 48:53]", visited.toString());
+
+		SortedSet.Cursor cursor = set.cursor();
+		List<Long> keys = new ArrayList<>();
+		cursor.seekRank(5, 8, false);
+		while (cursor.next()) {
+			keys.add(cursor.key());
+		}
+		assertEquals("[5, 6, 7, 8]", keys.toString());
+
+		keys.clear();
+		cursor.seekScore(new SortedSet.RangeSpec(35, 70), true);
+		while (cursor.next()) {
+			keys.add(cursor.key());
+			assertEquals(101 - cursor.key(), cursor.rank());
+		}
+		assertEquals("[7, 6, 5, 4]", keys.toString());
+
+		cursor.seekRank(1, 10, false);
+		assertTrue(cursor.next());
+		set.add(1, 1000);
+		try {
+			cursor.next();
+			fail();
+		} catch (ConcurrentModificationException ignored) {
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		Random random = new Random(5);
+		SortedSet set = new SortedSet();
+		TreeSet<long[]> model = newModel();
+		for (int i = 0; i < 10000; i++) {
+			long key = random.nextLong();
+			long score = random.nextInt(100000) - 50000;
+			set.add(score, key);
+			model.add(new long[]{score, key});
+		}
+
+		File file = File.createTempFile("sortedset", ".snapshot");
+		file.deleteOnExit();
+		SortedSetSnapshot.write(set, file, 42);
+
+		SortedSet restored = new SortedSet();
+		assertEquals(42, SortedSetSnapshot.load(file, restored));
+		assertSame(model, restored);
+
+		// 恢复后可以继续正常修改
+		restored.add(Long.MIN_VALUE, 1);
+		assertEquals(1, restored.rank(1, false));
+
+		// 损坏的快照不能被加载
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 3);
+		raf.write(0x55);
+		raf.close();
+		try {
+			SortedSetSnapshot.read(file);
+			fail();
+		} catch (IOException ignored) {
+		}
+
+		// 头部的条目数被改大，不能先按它分配数组
+		raf = new RandomAccessFile(file, "rw");
+		raf.seek(16);
+		raf.writeInt(Integer.MAX_VALUE);
+		raf.close();
+		try {
+			SortedSetSnapshot.read(file);
+			fail();
+		} catch (IOException ignored) {
+		}
+	}
+
+	@Test
+	public void testJournal() throws IOException {
+		File dir = File.createTempFile("sortedset", ".journal");
+		assertTrue(dir.delete() && dir.mkdirs());
+		File snapshot = new File(dir, "rank.snapshot");
+
+		SortedSet set = SortedSetJournal.replay(snapshot, dir, "rank");
+		SortedSetJournal journal = SortedSetJournal.open(dir, "rank", SortedSetJournal.SyncPolicy.ALWAYS, 0);
+		set.setJournal(journal);
+
+		Random random = new Random(9);
+		for (int i = 0; i < 1000; i++) {
+			set.add(random.nextInt(100), random.nextInt(300));
+		}
+		set.remove(5);
+		set.removeByScore(new SortedSet.RangeSpec(true, false, 10, 20));
+		journal.checkpoint(set, snapshot);
+
+		set.removeByRank(1, 3, true);
+		set.addAll(new long[]{-1, -2}, new long[]{1000, 1001});
+		for (int i = 0; i < 1000; i++) {
+			set.add(random.nextInt(100), random.nextInt(300));
+		}
+		journal.close();
+
+		SortedSet restored = SortedSetJournal.replay(snapshot, dir, "rank");
+		assertEquals(set.size(), restored.size());
+		for (int rank = 1; rank <= set.size(); rank++) {
+			assertEquals(set.getByRank(rank, false).toString(), restored.getByRank(rank, false).toString());
+		}
+
+		// 快照之前的日志已经删除
+		assertEquals(2, dir.listFiles().length);
+
+		for (File file : dir.listFiles()) {
+			assertTrue(file.delete());
+		}
+		assertTrue(dir.delete());
+	}
+
+	/**
+	 * 直方图的近似排名必须在误差范围内
+	 */
+	@Test
+	public void testHistogram() {
+		Random random = new Random(5);
+		SortedSet set = new SortedSet();
+		for (int i = 0; i < 2000; i++) {
+			set.add(random.nextInt(10000), i);
+		}
+		set.setHistogram(ScoreHistogram.fixed(0, 9999, 100));
+
+		for (int i = 0; i < 3000; i++) {
+			long key = random.nextInt(3000);
+			if (random.nextInt(4) == 0) {
+				set.remove(key);
+			} else {
+				set.add(random.nextInt(10000), key);
+			}
+		}
+		set.removeByRank(1, 10, true);
+		set.removeByScore(new SortedSet.RangeSpec(0, 100));
+		set.addAll(new long[]{1, 2, 3}, new long[]{5000, 5001, 1});
+		checkHistogram(set);
+
+		set.setHistogram(ScoreHistogram.equiDepth(set, 50));
+		checkHistogram(set);
+
+		// 快照过期的误差不超过 maxPrefixError，0 为每次修改都重新计算
+		set.setHistogram(ScoreHistogram.fixed(0, 9999, 100, 0));
+		set.add(5, 100000);
+		checkHistogram(set);
+		ScoreHistogram histogram = ScoreHistogram.equiDepth(set, 50, 30);
+		set.setHistogram(histogram);
+		for (int i = 0; i < 100; i++) {
+			set.add(random.nextInt(10000), 200000 + i);
+			if (i % 7 == 0) {
+				checkHistogram(set);
+			}
+		}
+
+		set.clear();
+		assertEquals(0, set.getHistogram().count());
+	}
+
+	private void checkHistogram(SortedSet set) {
+		ScoreHistogram histogram = set.getHistogram();
+		assertEquals(set.size(), histogram.count());
+		for (int rank = 1; rank <= set.size(); rank++) {
+			RecordObject o = set.getByRank(rank, false);
+			long error = histogram.maxRankError(o.getScore());
+			assertTrue(Math.abs(histogram.approxRank(o.getScore(), false) - rank) <= error);
+			long reverseRank = set.rank(o.getKey(), true);
+			assertTrue(Math.abs(histogram.approxRank(o.getScore(), true) - reverseRank) <= error);
+		}
+	}
+
+	@Test
+	public void testExpire() throws InterruptedException {
+		SortedSet set = new SortedSet();
+		TopKView view = set.enableTopK(20);
+		for (int i = 0; i < 10; i++) {
+			set.add(i, i, 1000 + i);
+		}
+		set.add(100, 100);
+		assertEquals(1005, set.getExpireAt(5));
+		assertEquals(-1, set.getExpireAt(100));
+
+		// 修改分数不影响过期时间，删除后过期时间也一起删除
+		set.add(50, 5);
+		assertEquals(1005, set.getExpireAt(5));
+		set.remove(6);
+		assertEquals(-1, set.getExpireAt(6));
+		set.persist(7);
+		assertFalse(set.setExpireAt(6, 1000));
+
+		// 每次最多删除 batch 个，先过期的先删
+		assertEquals(3, set.expire(1004, 3));
+		assertEquals(7, set.size());
+		assertEquals(7, view.get().size());
+		assertEquals(3, view.get().getKey(6));
+		assertEquals(-1, set.rank(0, false));
+		assertEquals(-1, set.rank(2, false));
+		assertEquals(2, set.expire(1004, 3));
+		assertEquals(0, set.expire(1004, 3));
+		assertEquals(5, set.size());
+
+		set.setExpireAt(100, System.currentTimeMillis());
+		ScheduledFuture<?> future = set.scheduleExpiry(10, 1);
+		for (int i = 0; i < 200 && set.size() > 1; i++) {
+			Thread.sleep(10);
+		}
+		future.cancel(false);
+		assertEquals(1, set.size());
+		assertEquals(7, set.getByRank(1, false).getKey());
+	}
+
+	@Test
+	public void testTopK() {
+		Random random = new Random(9);
+		SortedSet set = new SortedSet();
+		TopKView view = set.enableTopK(20);
+		assertTrue(view.get().isEmpty());
+
+		for (int i = 0; i < 5000; i++) {
+			long key = random.nextInt(1000);
+			if (random.nextInt(4) == 0) {
+				set.remove(key);
+			} else {
+				set.add(random.nextInt(100000), key);
+			}
+			if (i % 100 == 0) {
+				assertEquals(set.getRangeByRank(1, 20, true).toString(), view.get().toList().toString());
+			}
+		}
+
+		// 不影响前 K 名的修改不会重新发布
+		TopKView.Snapshot top = view.get();
+		RecordObject last = set.getByRank(1, false);
+		set.add(last.getScore(), last.getKey() + 100000);
+		assertTrue(top == view.get());
+
+		set.addAll(new long[]{200000, 200001}, new long[]{1, 2});
+		assertEquals(2, view.get().getKey(0));
+
+		// 修改复制出来的 RecordObject 不影响其他读者
+		view.get().toList().get(0).setRank(100);
+		assertEquals(1, view.get().toList().get(0).getRank());
+		set.removeByRank(1, 5, true);
+		set.removeByScore(new SortedSet.RangeSpec(90000, 100000));
+		assertEquals(set.getRangeByRank(1, 20, true).toString(), view.get().toList().toString());
+
+		set.clear();
+		assertTrue(view.get().isEmpty());
+	}
+
+	@Test
+	public void testUnionAndIntersect() {
+		Random random = new Random(13);
+		SortedSet[] sets = new SortedSet[3];
+		List<Map<Long, Long>> models = new ArrayList<>();
+		for (int i = 0; i < sets.length; i++) {
+			sets[i] = new SortedSet();
+			Map<Long, Long> model = new HashMap<>();
+			for (int j = 0; j < 3000; j++) {
+				long key = random.nextInt(5000);
+				long score = random.nextInt(1000) - 500;
+				sets[i].add(score, key);
+				model.put(key, score);
+			}
+			models.add(model);
+		}
+		long[] weights = {1, 2, -1};
+
+		for (SortedSet.Aggregate aggregate : SortedSet.Aggregate.values()) {
+			Map<Long, Long> union = new HashMap<>();
+			Map<Long, Integer> counts = new HashMap<>();
+			for (int i = 0; i < sets.length; i++) {
+				for (Map.Entry<Long, Long> e : models.get(i).entrySet()) {
+					long score = e.getValue() * weights[i];
+					Long old = union.get(e.getKey());
+					if (old == null) {
+						union.put(e.getKey(), score);
+						counts.put(e.getKey(), 1);
+					} else {
+						union.put(e.getKey(), aggregate == SortedSet.Aggregate.SUM ? old + score
+								: aggregate == SortedSet.Aggregate.MIN ? Math.min(old, score) : Math.max(old, score));
+						counts.put(e.getKey(), counts.get(e.getKey()) + 1);
+					}
+				}
+			}
+
+			TreeSet<long[]> unionModel = newModel();
+			TreeSet<long[]> interModel = newModel();
+			for (Map.Entry<Long, Long> e : union.entrySet()) {
+				unionModel.add(new long[]{e.getValue(), e.getKey()});
+				if (counts.get(e.getKey()) == sets.length) {
+					interModel.add(new long[]{e.getValue(), e.getKey()});
+				}
+			}
+			assertSame(unionModel, SortedSet.union(sets, weights, aggregate));
+			assertSame(interModel, SortedSet.intersect(sets, weights, aggregate));
+		}
+
+		assertEquals(0, SortedSet.union(new SortedSet[0], null, SortedSet.Aggregate.SUM).size());
+	}
+
+	@Test
+	public void testLevelConfig() {
+		// 相同的种子得到相同的表结构
+		SortedSet a = new SortedSet(0.5f, 16, 42);
+		SortedSet b = new SortedSet(0.5f, 16, 42);
+		SortedSet c = new SortedSet(0.125f, 8, 42);
+		for (int i = 0; i < 20000; i++) {
+			a.add(i * 7 % 1000, i);
+			b.add(i * 7 % 1000, i);
+			c.add(i * 7 % 1000, i);
+		}
+		SortedSet.Stats sa = a.stats(100);
+		assertEquals(sa.toString(), b.stats(100).toString());
+		assertEquals(20000, sa.getLength());
+		assertTrue(sa.getLevel() <= 16);
+		assertEquals(2.0, sa.getAverageLevel(), 0.1);
+
+		SortedSet.Stats sc = c.stats(100);
+		assertTrue(sc.getLevel() <= 8);
+		assertEquals(8.0 / 7, sc.getAverageLevel(), 0.05);
+		assertTrue(sc.getAverageSearchLength() > sa.getAverageSearchLength());
+		assertEquals(a.getRangeByRank(1, 20000, false).toString(), c.getRangeByRank(1, 20000, false).toString());
+	}
+}